@@ -0,0 +1,24 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar: plain JMH, but with the GC profiler on unless
+ * another profiler is requested, so allocation rates are always reported.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        if (!jmhArgs.contains("-prof") && !jmhArgs.contains("-h") && !jmhArgs.contains("-l")) {
+            jmhArgs.add("-prof");
+            jmhArgs.add("gc");
+        }
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
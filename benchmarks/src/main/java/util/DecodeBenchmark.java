@@ -0,0 +1,47 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decode stage: ImageUtils.readSubsampledImage per input format and size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class DecodeBenchmark {
+
+    @Param({ "jpeg", "png", "webp" })
+    public String format;
+
+    @Param({ "1", "12", "50" })
+    public int megapixels;
+
+    private File input;
+
+    @Setup
+    public void setUp() throws Exception {
+        int[] size = Fixtures.size(megapixels);
+        input = Fixtures.write(Fixtures.photo(size[0], size[1]), format, 1);
+    }
+
+    @Benchmark
+    public BufferedImage readSubsampledImage() throws Exception {
+        return ImageUtils.readSubsampledImage(input, 2048);
+    }
+}
@@ -0,0 +1,50 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encode stage: the in-memory JPEG re-encode of an already oriented page image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class EncodeBenchmark {
+
+    @Param({ "1", "12", "50" })
+    public int megapixels;
+
+    private BufferedImage page;
+
+    @Setup
+    public void setUp() throws Exception {
+        int[] size = Fixtures.size(megapixels);
+        File input = Fixtures.write(Fixtures.photo(size[0], size[1]), "jpeg", 1);
+        page = ImageUtils.compressAndOrientImage(ImageUtils.readSubsampledImage(input, 2048), 1);
+    }
+
+    @Benchmark
+    public long encodeJpeg() throws Exception {
+        ByteArrayImageOutputStream jpeg = ImageUtils.encodeJpeg(page);
+        try {
+            return jpeg.size();
+        } finally {
+            jpeg.release();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package util;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Generates benchmark input images on the fly, so the repository does not have
+ * to carry multi-megabyte fixtures.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /** Width/height for a 4:3 image of roughly the given number of megapixels. */
+    static int[] size(int megapixels) {
+        int height = (int) Math.round(Math.sqrt(megapixels * 1_000_000 * 3.0 / 4.0));
+        int width = (int) Math.round(height * 4.0 / 3.0);
+        return new int[] { width, height };
+    }
+
+    /**
+     * A photo-like test image: gradients plus noise, so encoders cannot compress
+     * it to nothing and decoders do realistic work.
+     */
+    static BufferedImage photo(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), width, height, new Color(240, 200, 120)));
+            g.fillRect(0, 0, width, height);
+            g.setColor(new Color(20, 20, 20));
+            for (int x = 0; x < width; x += Math.max(8, width / 64)) {
+                g.drawLine(x, 0, width - x, height);
+            }
+        } finally {
+            g.dispose();
+        }
+
+        Random random = new Random(42);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(17) - 8;
+                int r = clamp(((row[x] >> 16) & 0xFF) + noise);
+                int gr = clamp(((row[x] >> 8) & 0xFF) + noise);
+                int b = clamp((row[x] & 0xFF) + noise);
+                row[x] = (r << 16) | (gr << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Writes the image in the given format ("jpeg", "png" or "webp") to a temp
+     * file. For JPEG, an EXIF APP1 segment with the given orientation is added.
+     */
+    static File write(BufferedImage image, String format, int orientation) throws IOException {
+        File file = File.createTempFile("bench_", "." + format);
+        file.deleteOnExit();
+
+        if (!"jpeg".equals(format)) {
+            if (!ImageIO.write(image, format, file)) {
+                throw new IOException("No ImageIO writer for " + format);
+            }
+            return file;
+        }
+
+        byte[] jpeg = encodeJpeg(image);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(jpeg, 0, 2); // SOI
+            out.write(exifSegment(orientation));
+            // Drop the JFIF APP0 the JDK writer emits; EXIF files don't carry it
+            int app0Length = ((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF);
+            int rest = 4 + app0Length;
+            out.write(jpeg, rest, jpeg.length - rest);
+        }
+        return file;
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), writer.getDefaultWriteParam());
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Minimal big-endian EXIF APP1 segment holding only the Orientation tag. */
+    private static byte[] exifSegment(int orientation) {
+        byte[] tiff = {
+            'M', 'M', 0, 42, 0, 0, 0, 8,          // header, IFD0 at offset 8
+            0, 1,                                  // one entry
+            0x01, 0x12, 0, 3, 0, 0, 0, 1,          // Orientation, SHORT, count 1
+            0, (byte) orientation, 0, 0,
+            0, 0, 0, 0                             // no next IFD
+        };
+        int length = 2 + 6 + tiff.length;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xE1);
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write(new byte[] { 'E', 'x', 'i', 'f', 0, 0 }, 0, 6);
+        out.write(tiff, 0, tiff.length);
+        return out.toByteArray();
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(255, value);
+    }
+}
@@ -0,0 +1,55 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Orientation stages: EXIF lookup and the scale/rotate/RGB redraw, for all
+ * eight EXIF orientations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class OrientationBenchmark {
+
+    @Param({ "1", "2", "3", "4", "5", "6", "7", "8" })
+    public int orientation;
+
+    @Param({ "1", "12", "50" })
+    public int megapixels;
+
+    private File input;
+    private BufferedImage decoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        int[] size = Fixtures.size(megapixels);
+        input = Fixtures.write(Fixtures.photo(size[0], size[1]), "jpeg", orientation);
+        decoded = ImageUtils.readSubsampledImage(input, 2048);
+    }
+
+    @Benchmark
+    public int getExifOrientation() {
+        return ImageUtils.getExifOrientation(input);
+    }
+
+    @Benchmark
+    public BufferedImage compressAndOrientImage() {
+        return ImageUtils.compressAndOrientImage(decoded, orientation);
+    }
+}
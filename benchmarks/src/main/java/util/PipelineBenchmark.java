@@ -0,0 +1,76 @@
+package util;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end: ImageUtils.imagesToPdf over a batch of pages, with every EXIF
+ * orientation represented in the batch. The page cache is off so every
+ * iteration does the full work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class PipelineBenchmark {
+
+    @Param({ "jpeg", "png", "webp" })
+    public String format;
+
+    @Param({ "1", "12" })
+    public int megapixels;
+
+    @Param({ "16" })
+    public int pages;
+
+    @Param({ "1", "4" })
+    public int maxConcurrency;
+
+    @Param({ "true", "false" })
+    public boolean jpegPassthrough;
+
+    private String[] inputs;
+    private File output;
+    private ConversionOptions options;
+
+    @Setup
+    public void setUp() throws Exception {
+        int[] size = Fixtures.size(megapixels);
+        java.awt.image.BufferedImage photo = Fixtures.photo(size[0], size[1]);
+        inputs = new String[pages];
+        for (int i = 0; i < pages; i++) {
+            inputs[i] = Fixtures.write(photo, format, 1 + i % 8).getAbsolutePath();
+        }
+        output = File.createTempFile("bench_pipeline_", ".pdf");
+
+        options = ConversionOptions.defaults();
+        options.setCacheEnabled(false);
+        options.setMaxConcurrency(maxConcurrency);
+        options.setJpegPassthrough(jpegPassthrough);
+    }
+
+    @TearDown
+    public void tearDown() {
+        output.delete();
+    }
+
+    @Benchmark
+    public long imagesToPdf() throws Exception {
+        ImageUtils.imagesToPdf(inputs, output.getAbsolutePath(), options);
+        return output.length();
+    }
+}
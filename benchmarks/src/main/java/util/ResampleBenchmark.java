@@ -0,0 +1,74 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.awt.geom.AffineTransform;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resampler filters against the Java2D bilinear redraw it replaced, scaling a
+ * decoded photo down to 2048px with a 90 degree rotation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class ResampleBenchmark {
+
+    @Param({ "BOX", "BILINEAR", "LANCZOS3" })
+    public String filter;
+
+    @Param({ "12", "50" })
+    public int megapixels;
+
+    private BufferedImage decoded;
+    private int targetWidth;
+    private int targetHeight;
+
+    @Setup
+    public void setUp() throws Exception {
+        int[] size = Fixtures.size(megapixels);
+        decoded = ImageUtils.readSubsampledImage(Fixtures.write(Fixtures.photo(size[0], size[1]), "jpeg", 1), 2048);
+        double scale = Math.min(1.0, 2048.0 / Math.max(decoded.getWidth(), decoded.getHeight()));
+        targetWidth = (int) (decoded.getWidth() * scale);
+        targetHeight = (int) (decoded.getHeight() * scale);
+    }
+
+    @Benchmark
+    public BufferedImage resample() {
+        return Resampler.resample(decoded, 6, targetWidth, targetHeight, Resampler.Filter.valueOf(filter));
+    }
+
+    /** The previous implementation, for comparison; ignores the filter parameter. */
+    @Benchmark
+    public BufferedImage java2dBilinear() {
+        BufferedImage out = new BufferedImage(targetHeight, targetWidth, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            AffineTransform t = new AffineTransform();
+            t.translate(targetHeight, 0);
+            t.rotate(Math.PI / 2);
+            t.scale((double) targetWidth / decoded.getWidth(), (double) targetHeight / decoded.getHeight());
+            g.drawImage(decoded, t, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+}
@@ -0,0 +1,193 @@
+package controller;
+
+import util.AdmissionControl;
+import util.ConversionOptions;
+import util.ImageUtils;
+import util.MultipartStream;
+import util.VirtualThreads;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.*;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.*;
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Changes a PDF generated earlier without rebuilding it: POST /append with
+ * file=output_123.pdf, any number of "image" parts to add as pages at the
+ * end, and optionally order (e.g. "4,1-3" or "1-2,5") to reorder or remove
+ * pages. Page numbers in order count the existing pages first, then the
+ * appended images.
+ *
+ * file and order may come as form fields or in the query string; file must
+ * come before the first image. The images are checked and stored as they
+ * arrive, as for ImageServlet (ImageUploads); once the upload is complete the
+ * request is admitted, and only then is the PDF opened, under a lock shared
+ * with other edits of the same file. The changes are saved to the same file
+ * as an incremental update (ImageUtils.PdfEdit), so the work done is
+ * proportional to what changed. Answers with the file name and page count as
+ * JSON.
+ */
+@SuppressWarnings("serial")
+@WebServlet(urlPatterns = "/append", asyncSupported = true)
+public class AppendServlet extends HttpServlet {
+
+    private static final Log LOG = LogFactory.getLog(AppendServlet.class);
+
+    private static final int MAX_FIELD_BYTES = 1024;
+
+    /** Edits of the same PDF take turns; striped by file name so the set stays bounded. */
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    protected void doPost(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException {
+        java.util.concurrent.ExecutorService executor = VirtualThreads.executor();
+        if (executor == null || !req.isAsyncSupported()) {
+            process(req, res);
+            return;
+        }
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+        executor.execute(() -> {
+            try {
+                process(req, res);
+            } catch (Exception e) {
+                LOG.error("Append failed", e);
+            } finally {
+                async.complete();
+            }
+        });
+    }
+
+    private void process(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        String boundary = MultipartStream.boundary(req.getContentType());
+        if (boundary == null) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected a multipart/form-data upload");
+            return;
+        }
+        String uploadPath = getServletContext().getRealPath("/") + "uploads/";
+
+        java.util.List<ImageUploads.Upload> uploads = new java.util.ArrayList<>();
+        ConversionOptions options = ConversionOptions.defaults();
+        String fileName = req.getParameter("file");
+        String order = req.getParameter("order");
+        File pdf = null;
+        ReentrantLock lock = null;
+        ImageUtils.PdfEdit edit = null;
+        AdmissionControl.Ticket ticket = null;
+
+        try {
+            MultipartStream multipart = new MultipartStream(req.getInputStream(), boundary,
+                    ImageUploads.MAX_REQUEST_SIZE);
+            MultipartStream.Part part;
+            while ((part = multipart.next()) != null) {
+                if (!part.isFile()) {
+                    if ("file".equals(part.getName()) && pdf == null) {
+                        fileName = part.getString(MAX_FIELD_BYTES);
+                    } else if ("order".equals(part.getName())) {
+                        order = part.getString(MAX_FIELD_BYTES);
+                    }
+                    continue;
+                }
+                if (!"image".equals(part.getName())) {
+                    continue;
+                }
+                if (pdf == null) {
+                    // Fail before storing images for a PDF that is not there
+                    pdf = storedPdf(uploadPath, fileName);
+                }
+                ImageUploads.Upload upload = ImageUploads.receive(part, uploadPath);
+                if (upload != null) {
+                    uploads.add(upload);
+                }
+            }
+
+            if (pdf == null) {
+                // Nothing to append: only a new page order
+                pdf = storedPdf(uploadPath, fileName);
+                if (order == null || order.trim().isEmpty()) {
+                    res.sendError(HttpServletResponse.SC_BAD_REQUEST, "No image or page order was given");
+                    return;
+                }
+            }
+            if (!uploads.isEmpty()) {
+                ticket = ImageUploads.admit(uploads, options, res);
+                if (ticket == null) {
+                    return;
+                }
+            }
+
+            // Only the edit itself takes turns with other edits of the file
+            lock = LOCKS[Math.floorMod(pdf.getName().hashCode(), LOCKS.length)];
+            lock.lock();
+            edit = ImageUtils.editPdf(pdf, options);
+            for (ImageUploads.Upload upload : uploads) {
+                edit.append(upload.getPath(), upload.header);
+            }
+            edit.setPageOrder(order);
+            int pages = edit.save();
+
+            res.setContentType("application/json");
+            res.setCharacterEncoding("UTF-8");
+            res.getWriter().write("{\"file\":\"" + pdf.getName() + "\",\"pages\":" + pages
+                    + ",\"appended\":" + edit.getAppendedCount() + "}");
+
+        } catch (FileNotFoundException e) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+        } catch (SecurityException e) {
+            res.sendError(HttpServletResponse.SC_FORBIDDEN, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (MultipartStream.SizeLimitExceededException e) {
+            res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "File size limit exceeded. Maximum file size is 50 MB per image and 300 MB per upload.");
+        } catch (Exception e) {
+            if (!res.isCommitted()) {
+                res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot change PDF: " + e.getMessage());
+            } else {
+                LOG.error("Append failed after the response was committed", e);
+            }
+        } finally {
+            try {
+                if (edit != null) {
+                    edit.close();
+                }
+            } finally {
+                if (lock != null) {
+                    lock.unlock();
+                }
+                if (ticket != null) {
+                    ticket.close();
+                }
+                ImageUploads.delete(uploads);
+            }
+        }
+    }
+
+    /** The PDF under uploads/ named by the file parameter. */
+    private static File storedPdf(String uploadPath, String fileName) throws FileNotFoundException {
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalArgumentException("File parameter is required before the images");
+        }
+        fileName = fileName.trim();
+        // Security: prevent directory traversal
+        if (fileName.contains("..") || fileName.contains("/") || fileName.contains("\\")
+                || !fileName.toLowerCase().endsWith(".pdf")) {
+            throw new SecurityException("Invalid file path");
+        }
+        File file = new File(uploadPath + fileName);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("File not found");
+        }
+        return file;
+    }
+}
@@ -1,18 +1,48 @@
 package controller;
 
+import util.ConversionJob;
+import util.ConversionJobs;
+
 import javax.servlet.*;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.*;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 
 @SuppressWarnings("serial")
 @WebServlet("/download")
 public class DownloadServlet extends HttpServlet {
 
+    /** Below this, handing the file to the connector costs more than copying it (Tomcat's default). */
+    private static final long SENDFILE_MIN_BYTES = 48 * 1024;
+
     protected void doGet(HttpServletRequest req, HttpServletResponse res)
             throws ServletException, IOException {
         
         String fileName = req.getParameter("file");
+
+        // Result of an asynchronous conversion
+        String jobId = req.getParameter("job");
+        if (jobId != null && !jobId.isEmpty()) {
+            ConversionJob job = ConversionJobs.get(jobId);
+            if (job == null) {
+                res.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown or expired job");
+                return;
+            }
+            if (job.getState() == ConversionJob.State.FAILED) {
+                res.sendError(HttpServletResponse.SC_GONE, "Conversion failed: " + job.getError());
+                return;
+            }
+            if (job.getState() != ConversionJob.State.DONE) {
+                res.sendError(HttpServletResponse.SC_CONFLICT, "Conversion not finished yet");
+                return;
+            }
+            fileName = job.getOutput().getName();
+        }
+
         if (fileName == null || fileName.isEmpty()) {
             res.sendError(HttpServletResponse.SC_BAD_REQUEST, "File parameter is required");
             return;
@@ -51,21 +81,173 @@ public class DownloadServlet extends HttpServlet {
                 break;
         }
         
+        long length = file.length();
+        long lastModified = file.lastModified() / 1000 * 1000; // HTTP dates have second precision
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+
+        res.setHeader("ETag", etag);
+        res.setDateHeader("Last-Modified", lastModified);
+        res.setHeader("Accept-Ranges", "bytes");
+        // Let the browser keep a copy but check back, so repeat fetches become 304s
+        res.setHeader("Cache-Control", "private, no-cache");
+
+        if (notModified(req, etag, lastModified)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        // Single byte range, e.g. a PDF viewer loading progressively or a resumed
+        // download; anything we do not handle gets the whole file
+        long start = 0;
+        long end = length - 1;
+        String range = req.getHeader("Range");
+        if (range != null && rangeStillValid(req, etag, lastModified)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == UNSATISFIABLE) {
+                res.setHeader("Content-Range", "bytes */" + length);
+                res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (bounds != null) {
+                start = bounds[0];
+                end = bounds[1];
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        long count = end - start + 1;
+
         // Set response headers
         res.setContentType(contentType);
         res.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-        res.setContentLengthLong(file.length());
-        
+        res.setContentLengthLong(count);
+
+        if ("HEAD".equals(req.getMethod()) || count <= 0) {
+            return;
+        }
+
+        // Let the connector send the file straight from the page cache (sendfile)
+        if (count >= SENDFILE_MIN_BYTES && Boolean.TRUE.equals(req.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            req.setAttribute("org.apache.tomcat.sendfile.filename", file.getCanonicalPath());
+            req.setAttribute("org.apache.tomcat.sendfile.start", start);
+            req.setAttribute("org.apache.tomcat.sendfile.end", end + 1);
+            return;
+        }
+
         // Stream the file
-        try (InputStream in = new FileInputStream(file);
-             OutputStream out = res.getOutputStream()) {
-            
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(res.getOutputStream());
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long sent = in.transferTo(position, remaining, out);
+                if (sent <= 0) {
+                    break; // file shrank underneath us
+                }
+                position += sent;
+                remaining -= sent;
             }
         }
     }
-}
 
+    /**
+     * True if the client's copy is current: If-None-Match takes precedence,
+     * If-Modified-Since is only looked at without it.
+     */
+    private static boolean notModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag, true);
+        }
+        long ifModifiedSince = dateHeader(req, "If-Modified-Since");
+        return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+    }
+
+    /** If-Range: the range only applies while the file still matches the client's validator. */
+    private static boolean rangeStillValid(HttpServletRequest req, String etag, long lastModified) {
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return matches(ifRange, etag, false);
+        }
+        long date = dateHeader(req, "If-Range");
+        return date != -1 && lastModified == date;
+    }
+
+    /** Whether a comma-separated entity-tag list (or *) contains etag. */
+    private static boolean matches(String header, String etag, boolean weak) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (weak && candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long dateHeader(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1; // malformed date: treat as absent
+        }
+    }
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    /**
+     * Parses a single "bytes=first-last", "bytes=first-" or "bytes=-suffix"
+     * range into inclusive bounds. Returns null to serve the whole file
+     * (malformed or multiple ranges) and UNSATISFIABLE if it lies past the end.
+     */
+    static long[] parseRange(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null; // invalid, ignore the header
+                }
+                if (start >= length) {
+                    return UNSATISFIABLE;
+                }
+                end = Math.min(end, length - 1);
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -1,109 +1,316 @@
 package controller;
 
+import util.AdmissionControl;
+import util.ConversionJob;
+import util.ConversionJobs;
+import util.ConversionOptions;
+import util.ImageHeader;
 import util.ImageUtils;
+import util.MultipartStream;
+import util.VirtualThreads;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import javax.servlet.*;
-import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.*;
 import java.io.*;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Receives the upload and converts it. The multipart body is parsed as it
+ * streams in (no @MultipartConfig, so the container never buffers it): each
+ * image part is sniffed from its first bytes, refused right away if it is not
+ * an image we can convert, otherwise written straight to uploads/ (see
+ * ImageUploads) and handed to the conversion, with the header probed on the
+ * way in, while the next part is still arriving. Each image makes room for
+ * itself in the memory budget first (ImageUploads.Admission).
+ *
+ * mode, delivery, profile and maxSizeKb may come as form fields or in the
+ * query string. mode, profile and maxSizeKb decide how the images are
+ * converted, so as fields they must come before the first image; later ones
+ * are answered with 400. Asynchronous jobs and uploads with a size budget
+ * (which is shared out by page count) convert once the upload is complete.
+ * With virtual threads enabled (VirtualThreads) the whole request is handled
+ * on one instead of a connector thread.
+ */
 @SuppressWarnings("serial")
-@WebServlet("/ImageServlet")
-@MultipartConfig(
-    fileSizeThreshold = 1024 * 1024 * 5,    // 5 MB
-    maxFileSize = 1024 * 1024 * 50,         // 50 MB per file
-    maxRequestSize = 1024 * 1024 * 300      // 300 MB total (for multiple files)
-)
+@WebServlet(urlPatterns = "/ImageServlet", asyncSupported = true)
 public class ImageServlet extends HttpServlet {
 
+    private static final Log LOG = LogFactory.getLog(ImageServlet.class);
+
+    private static final int MAX_FIELD_BYTES = 1024;
+
     protected void doPost(HttpServletRequest req, HttpServletResponse res)
             throws ServletException, IOException {
+        java.util.concurrent.ExecutorService executor = VirtualThreads.executor();
+        if (executor == null || !req.isAsyncSupported()) {
+            String view = process(req, res);
+            if (view != null) {
+                req.getRequestDispatcher(view).forward(req, res);
+            }
+            return;
+        }
+
+        // Hand the request to a virtual thread and give the connector thread
+        // back: a slow client uploading a large batch then only parks a virtual
+        // thread. No timeout; the upload and the conversion bound themselves.
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+        executor.execute(() -> {
+            String view = null;
+            try {
+                view = process(req, res);
+            } catch (Exception e) {
+                LOG.error("Upload handling failed", e);
+            } finally {
+                if (view != null) {
+                    async.dispatch(view);
+                } else {
+                    async.complete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Handles the upload and the conversion, and answers the request itself
+     * unless it returns the view to forward to.
+     */
+    private String process(HttpServletRequest req, HttpServletResponse res) throws IOException {
+
+        java.util.List<ImageUploads.Upload> uploads = new java.util.ArrayList<>();
+        ImageUtils.Conversion conversion = null;
+        ImageUploads.Admission admission = null;
+        AdmissionControl.Ticket ticket = null;
+        boolean keepUploads = false; // handed over to an asynchronous job, which deletes them
 
         try {
-            // Get all parts from the request
-            java.util.Collection<Part> parts = req.getParts();
-            java.util.List<String> imagePaths = new java.util.ArrayList<>();
-            
+            String boundary = MultipartStream.boundary(req.getContentType());
+            if (boundary == null) {
+                res.sendRedirect("index.jsp?error=" + java.net.URLEncoder.encode("No valid image files were uploaded. Please select at least one image file.", "UTF-8"));
+                return null;
+            }
+
             String uploadPath = getServletContext().getRealPath("/") + "uploads/";
             File uploadDir = new File(uploadPath);
             if (!uploadDir.exists()) uploadDir.mkdirs();
-            
-            // Process all image parts
-            for (Part part : parts) {
-                // Only process parts with name "image" and that have content
-                if ("image".equals(part.getName()) && part.getSize() > 0) {
-                    String fileName = System.currentTimeMillis() + "_" + part.getSubmittedFileName();
-                    String filePath = uploadPath + fileName;
-                    
-                    // Validate file type
-                    String contentType = part.getContentType();
-                    if (contentType == null || !contentType.startsWith("image/")) {
-                        continue; // Skip non-image files
+
+            // Without @MultipartConfig these only see the query string; form
+            // fields of the same name override them below
+            String mode = req.getParameter("mode");
+            String delivery = req.getParameter("delivery");
+            ConversionOptions options = ConversionOptions.defaults();
+            applyOutputSetting(options, "profile", req.getParameter("profile"));
+            applyOutputSetting(options, "maxSizeKb", req.getParameter("maxSizeKb"));
+
+            MultipartStream multipart = new MultipartStream(req.getInputStream(), boundary,
+                    ImageUploads.MAX_REQUEST_SIZE);
+            MultipartStream.Part part;
+            while ((part = multipart.next()) != null) {
+                if (!part.isFile()) {
+                    String name = part.getName();
+                    if ("delivery".equals(name)) {
+                        delivery = part.getString(MAX_FIELD_BYTES);
+                    } else if ("mode".equals(name) || "profile".equals(name) || "maxSizeKb".equals(name)) {
+                        // Images already taken in were converted without it
+                        if (!uploads.isEmpty()) {
+                            res.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                                    name + " must come before the first image");
+                            return null;
+                        }
+                        String value = part.getString(MAX_FIELD_BYTES);
+                        if ("mode".equals(name)) {
+                            mode = value;
+                        } else {
+                            applyOutputSetting(options, name, value);
+                        }
                     }
-                    
-                    // Save the file
-                    part.write(filePath);
-                    imagePaths.add(filePath);
+                    continue;
+                }
+                // Only process parts with name "image" that look like an image
+                if (!"image".equals(part.getName())) {
+                    continue;
+                }
+                ImageUploads.Upload upload = ImageUploads.receive(part, uploadPath);
+                if (upload == null) {
+                    continue;
+                }
+                uploads.add(upload);
+
+                // Async jobs, and a size budget shared out by page count, wait
+                // for the last image
+                if ("async".equals(mode) || options.getMaxOutputBytes() > 0) {
+                    continue;
+                }
+
+                // Start converting while the rest of the upload is still arriving
+                if (conversion == null) {
+                    conversion = ImageUtils.startConversion(options);
+                    admission = new ImageUploads.Admission(options);
+                }
+                if (!admission.admit(upload.header, conversion, res)) {
+                    return null;
                 }
+                conversion.add(upload.getPath(), upload.header);
             }
-            
+
             // Check if we have at least one image
-            if (imagePaths.isEmpty()) {
+            if (uploads.isEmpty()) {
                 res.sendRedirect("index.jsp?error=" + java.net.URLEncoder.encode("No valid image files were uploaded. Please select at least one image file.", "UTF-8"));
-                return;
+                return null;
+            }
+
+            // Async mode: queue the conversion and return a job ID right away;
+            // the client polls /status and fetches /download?job=<id>
+            if ("async".equals(mode)) {
+                keepUploads = submitJob(uploads, options, uploadPath, res);
+                return null;
+            }
+
+            // With a size budget: one reservation for the whole request, now
+            // that the number of pages is known
+            if (conversion == null) {
+                ticket = ImageUploads.admit(uploads, options, res);
+                if (ticket == null) {
+                    return null;
+                }
+                conversion = ImageUtils.startConversion(options, uploads.size());
+                for (ImageUploads.Upload upload : uploads) {
+                    conversion.add(upload.getPath(), upload.header);
+                }
+            }
+
+            // Direct delivery: stream the PDF back on this response instead of
+            // saving it under uploads/ for a later /download request
+            if ("stream".equals(delivery)) {
+                streamPdf(conversion, res);
+                return null;
             }
 
-            // Convert all images to a single PDF
+            // Wait for the remaining pages and save the PDF
             String resultFile;
             try {
-                String[] imgPathsArray = imagePaths.toArray(new String[0]);
-                resultFile = ImageUtils.imagesToPdf(
-                        imgPathsArray,
-                        uploadPath + "output_" + System.currentTimeMillis() + ".pdf"
-                );
+                resultFile = conversion.saveTo(uploadPath + "output_" + System.currentTimeMillis() + ".pdf");
             } catch (Exception e) {
-                // Clean up uploaded files on error
-                for (String imgPath : imagePaths) {
-                    try {
-                        new File(imgPath).delete();
-                    } catch (Exception ex) {
-                        // Ignore cleanup errors
-                    }
-                }
                 res.sendRedirect("index.jsp?error=" + java.net.URLEncoder.encode("Error converting images to PDF: " + e.getMessage(), "UTF-8"));
-                return;
-            }
-            
-            // Clean up temporary image files after PDF creation
-            for (String imgPath : imagePaths) {
-                try {
-                    new File(imgPath).delete();
-                } catch (Exception e) {
-                    // Ignore cleanup errors
-                }
+                return null;
             }
 
             // Set the result file name for download
             String resultFileName = new File(resultFile).getName();
             req.setAttribute("result", resultFileName);
-            req.getRequestDispatcher("result.jsp").forward(req, res);
-            
-        } catch (IllegalStateException e) {
-            // Handle file size limit exceeded
-            String errorMsg = "File size limit exceeded. ";
-            if (e.getCause() != null && e.getCause().getMessage() != null) {
-                if (e.getCause().getMessage().contains("FileSizeLimitExceededException")) {
-                    errorMsg += "Maximum file size is 50 MB. Please choose a smaller image.";
-                } else {
-                    errorMsg += e.getCause().getMessage();
-                }
+            return "/result.jsp";
+
+        } catch (MultipartStream.SizeLimitExceededException e) {
+            String errorMsg = "File size limit exceeded. Maximum file size is 50 MB per image and 300 MB per upload.";
+            if (!res.isCommitted()) {
+                res.sendRedirect("index.jsp?error=" + java.net.URLEncoder.encode(errorMsg, "UTF-8"));
+            }
+        } catch (Exception e) {
+            if (!res.isCommitted()) {
+                res.sendRedirect("index.jsp?error=" + java.net.URLEncoder.encode("An error occurred: " + e.getMessage(), "UTF-8"));
             } else {
-                errorMsg += "Maximum file size is 50 MB. Please choose a smaller image.";
+                LOG.error("Upload failed after the response was committed", e);
+            }
+        } finally {
+            if (conversion != null) {
+                conversion.close();
+            }
+            if (admission != null) {
+                admission.close();
+            }
+            if (ticket != null) {
+                ticket.close();
+            }
+            // Clean up uploaded image files
+            if (!keepUploads) {
+                ImageUploads.delete(uploads);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies the profile (screen, ebook, print or original) or maxSizeKb
+     * (largest PDF, in KiB) field to the options; other names and empty
+     * values are ignored.
+     */
+    private static void applyOutputSetting(ConversionOptions options, String name, String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return;
+        }
+        if ("profile".equals(name)) {
+            options.setOutputProfile(ConversionOptions.OutputProfile.parse(value));
+        } else if ("maxSizeKb".equals(name)) {
+            long kb;
+            try {
+                kb = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("maxSizeKb must be a number of kilobytes");
+            }
+            if (kb < 0 || kb > Long.MAX_VALUE / 1024) {
+                throw new IllegalArgumentException("maxSizeKb must be a number of kilobytes");
+            }
+            options.setMaxOutputBytes(kb * 1024);
+        }
+    }
+
+    /**
+     * Queues the conversion on ConversionJobs and answers 202 with the job
+     * status as JSON, or 503 if the job queue is full.
+     *
+     * @return true if the job was queued and now owns the uploaded files
+     */
+    private boolean submitJob(java.util.List<ImageUploads.Upload> uploads, ConversionOptions options,
+            String uploadPath, HttpServletResponse res) throws IOException {
+        File output = new File(uploadPath + "output_" + System.currentTimeMillis() + ".pdf");
+        res.setContentType("application/json");
+        res.setCharacterEncoding("UTF-8");
+
+        ConversionJob job;
+        try {
+            // The job reuses the headers probed on the way in
+            String[] imagePaths = new String[uploads.size()];
+            ImageHeader[] headers = new ImageHeader[uploads.size()];
+            for (int i = 0; i < imagePaths.length; i++) {
+                imagePaths[i] = uploads.get(i).getPath();
+                headers[i] = uploads.get(i).header;
             }
-            res.sendRedirect("index.jsp?error=" + java.net.URLEncoder.encode(errorMsg, "UTF-8"));
+            job = ConversionJobs.submit(imagePaths, headers, output, options);
+        } catch (RejectedExecutionException e) {
+            res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            res.setHeader("Retry-After", "30");
+            res.getWriter().write("{\"error\":\"Too many conversions queued, please retry later\"}");
+            return false;
+        }
+
+        res.setStatus(HttpServletResponse.SC_ACCEPTED);
+        res.setHeader("Location", "status?job=" + job.getId());
+        res.getWriter().write(job.toJson());
+        return true;
+    }
+
+    /**
+     * Waits for the conversion to finish and writes the PDF as the response body.
+     */
+    private void streamPdf(ImageUtils.Conversion conversion, HttpServletResponse res)
+            throws IOException {
+        String fileName = "output_" + System.currentTimeMillis() + ".pdf";
+        try {
+            res.setContentType("application/pdf");
+            res.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+            conversion.writeTo(res.getOutputStream());
         } catch (Exception e) {
-            res.sendRedirect("index.jsp?error=" + java.net.URLEncoder.encode("An error occurred: " + e.getMessage(), "UTF-8"));
+            // Nothing has been sent if conversion itself failed, so we can still redirect
+            if (!res.isCommitted()) {
+                res.reset();
+                res.sendRedirect("index.jsp?error=" + java.net.URLEncoder.encode("Error converting images to PDF: " + e.getMessage(), "UTF-8"));
+            } else {
+                LOG.error("Failed while streaming " + fileName, e);
+            }
         }
     }
 }
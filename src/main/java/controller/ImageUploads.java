@@ -0,0 +1,235 @@
+package controller;
+
+import util.AdmissionControl;
+import util.ConversionOptions;
+import util.ImageHeader;
+import util.ImageUtils;
+import util.Metrics;
+import util.MultipartStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.util.List;
+
+/**
+ * Intake of uploaded images, shared by the servlets that convert them: each
+ * image part is sniffed from its first bytes and refused right away if it is
+ * not an image we can convert, otherwise written straight to disk. Memory is
+ * reserved either image by image as they are handed to a conversion
+ * (Admission), or in one go once the upload is complete (admit).
+ */
+final class ImageUploads {
+
+    private static final Log LOG = LogFactory.getLog(ImageUploads.class);
+
+    static final long MAX_FILE_SIZE = 1024 * 1024 * 50;       // 50 MB per file
+    static final long MAX_REQUEST_SIZE = 1024 * 1024 * 300;   // 300 MB total (for multiple files)
+
+    /** Enough of the file for ImageHeader to find format and size in nearly every image. */
+    private static final int SNIFF_BYTES = 64 * 1024;
+
+    /** Larger images are refused before they are stored (imageutil.upload.maxPixels). */
+    private static final long MAX_PIXELS = Long.getLong("imageutil.upload.maxPixels", 200_000_000L);
+
+    /** An image stored on disk and the header probed while it arrived. */
+    static final class Upload {
+        final File file;
+        final ImageHeader header;
+
+        Upload(File file, ImageHeader header) {
+            this.file = file;
+            this.header = header;
+        }
+
+        String getPath() {
+            return file.getPath();
+        }
+    }
+
+    private ImageUploads() {
+    }
+
+    /**
+     * Stores one uploaded image under uploadPath after checking its first bytes.
+     * Returns null, having stored nothing, for an empty part or one that is not
+     * an image we can convert; next() then skips the rest of it unsaved.
+     */
+    static Upload receive(MultipartStream.Part part, String uploadPath) throws IOException {
+        InputStream in = part.getInputStream();
+        byte[] buffer = new byte[SNIFF_BYTES];
+        int length = in.readNBytes(buffer, 0, buffer.length);
+        if (length == 0) {
+            return null;
+        }
+
+        // Validate file type from its content, not the client's Content-Type
+        ImageHeader header = ImageHeader.probe(buffer, length);
+        String problem = rejectReason(header);
+        if (problem != null) {
+            rejected(part, problem);
+            return null;
+        }
+
+        // A unique name, so parts with the same file name never share a file
+        File target = File.createTempFile("upload_", "_" + baseName(part.getSubmittedFileName()),
+                new File(uploadPath));
+        boolean complete = false;
+        try (OutputStream out = new FileOutputStream(target)) {
+            long size = 0;
+            int n = length;
+            do {
+                size += n;
+                if (size > MAX_FILE_SIZE) {
+                    throw new MultipartStream.SizeLimitExceededException(
+                            "File " + part.getSubmittedFileName() + " larger than " + MAX_FILE_SIZE + " bytes");
+                }
+                out.write(buffer, 0, n);
+            } while ((n = in.read(buffer)) != -1);
+            complete = true;
+        } finally {
+            if (!complete) {
+                target.delete();
+            }
+        }
+
+        // The prefix held everything up to the frame header in nearly every
+        // image; only the rest have to be probed again from the file, and
+        // checked again now that their size is known
+        if (!header.hasDimensions()) {
+            try {
+                header = ImageHeader.probe(target);
+            } catch (IOException e) {
+                target.delete();
+                throw e;
+            }
+            problem = rejectReason(header);
+            if (problem != null) {
+                target.delete();
+                rejected(part, problem);
+                return null;
+            }
+        }
+        return new Upload(target, header);
+    }
+
+    private static void rejected(MultipartStream.Part part, String problem) {
+        Metrics.UPLOADS_REJECTED.inc();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Rejected upload " + part.getSubmittedFileName() + ": " + problem);
+        }
+    }
+
+    /**
+     * The memory of a request that converts its images while the rest of the
+     * upload is still arriving. Each image asks for room before it is added
+     * to the conversion. The reservation grows without waiting while the
+     * budget has room. When it has not, the conversion finishes the images it
+     * has in flight, the whole reservation is given back and the request waits
+     * for the new total from nothing. A request therefore never waits while it
+     * holds part of the budget, so two large uploads cannot starve each other.
+     */
+    static final class Admission implements AutoCloseable {
+        private final ConversionOptions options;
+        private final List<ImageHeader> headers = new java.util.ArrayList<>();
+        private AdmissionControl.Ticket ticket;
+
+        Admission(ConversionOptions options) {
+            this.options = options;
+        }
+
+        /**
+         * Makes room for one more image of the conversion, before it is added.
+         * Answers 503 and returns false if the memory does not come free in time.
+         */
+        boolean admit(ImageHeader header, ImageUtils.Conversion conversion, HttpServletResponse res)
+                throws Exception {
+            headers.add(header);
+            long estimate = ImageUtils.estimateProcessingBytes(headers, options);
+            if (ticket != null) {
+                if (ticket.tryGrowTo(estimate)) {
+                    return true;
+                }
+                // Wait holding nothing: no decoded pixels left, no reservation
+                conversion.finishPending();
+                ticket.close();
+                ticket = null;
+            }
+            ticket = AdmissionControl.admit(estimate, AdmissionControl.DEFAULT_WAIT_MILLIS);
+            if (ticket == null) {
+                busy(res);
+                return false;
+            }
+            return true;
+        }
+
+        /** Bytes reserved right now. */
+        long getBytes() {
+            return ticket == null ? 0 : ticket.getBytes();
+        }
+
+        @Override
+        public void close() {
+            if (ticket != null) {
+                ticket.close();
+                ticket = null;
+            }
+        }
+    }
+
+    /**
+     * Reserves the memory for converting the uploaded images in one go, for
+     * requests that only convert once the whole upload is in. Answers 503 and
+     * returns null if the request cannot be admitted in time.
+     */
+    static AdmissionControl.Ticket admit(List<Upload> uploads, ConversionOptions options, HttpServletResponse res)
+            throws IOException, InterruptedException {
+        java.util.List<ImageHeader> headers = new java.util.ArrayList<>();
+        for (Upload upload : uploads) {
+            headers.add(upload.header);
+        }
+        AdmissionControl.Ticket ticket = AdmissionControl.admit(
+                ImageUtils.estimateProcessingBytes(headers, options), AdmissionControl.DEFAULT_WAIT_MILLIS);
+        if (ticket == null) {
+            busy(res);
+        }
+        return ticket;
+    }
+
+    private static void busy(HttpServletResponse res) throws IOException {
+        res.setHeader("Retry-After", "30");
+        res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "The server is busy converting other uploads. Please retry in a moment.");
+    }
+
+    /** Deletes the stored files. */
+    static void delete(List<Upload> uploads) {
+        for (Upload upload : uploads) {
+            try {
+                upload.file.delete();
+            } catch (Exception e) {
+                // Ignore cleanup errors
+            }
+        }
+    }
+
+    /** Why an upload is refused after a look at its header, or null if it is acceptable. */
+    static String rejectReason(ImageHeader header) {
+        if (header.getFormat() == ImageHeader.Format.UNKNOWN) {
+            return "not a JPEG, PNG, WebP, GIF or BMP image";
+        }
+        if (header.hasDimensions() && (long) header.getWidth() * header.getHeight() > MAX_PIXELS) {
+            return header.getWidth() + "x" + header.getHeight() + " exceeds " + MAX_PIXELS + " pixels";
+        }
+        return null;
+    }
+
+    /** The submitted file name without any client-side directories. */
+    private static String baseName(String submittedFileName) {
+        String name = submittedFileName.substring(
+                Math.max(submittedFileName.lastIndexOf('/'), submittedFileName.lastIndexOf('\\')) + 1);
+        return name.isEmpty() || name.equals("..") ? "upload" : name;
+    }
+}
@@ -0,0 +1,33 @@
+package controller;
+
+import util.ConversionJob;
+import util.ConversionJobs;
+
+import javax.servlet.*;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.*;
+import java.io.*;
+
+@SuppressWarnings("serial")
+@WebServlet("/status")
+public class JobStatusServlet extends HttpServlet {
+
+    /**
+     * Reports the progress of an asynchronous conversion as JSON, e.g.
+     * {"jobId":"...","state":"RUNNING","pagesDone":12,"totalPages":40}.
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException {
+
+        ConversionJob job = ConversionJobs.get(req.getParameter("job"));
+        if (job == null) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown or expired job");
+            return;
+        }
+
+        res.setContentType("application/json");
+        res.setCharacterEncoding("UTF-8");
+        res.setHeader("Cache-Control", "no-store");
+        res.getWriter().write(job.toJson());
+    }
+}
@@ -0,0 +1,43 @@
+package controller;
+
+import util.Metrics;
+
+import javax.servlet.*;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.*;
+import java.io.*;
+import java.net.InetAddress;
+
+@SuppressWarnings("serial")
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+    /** Set imageutil.metrics.allowRemote=true to let non-local scrapers in. */
+    private static final boolean ALLOW_REMOTE = Boolean.getBoolean("imageutil.metrics.allowRemote");
+
+    /**
+     * Serves the conversion metrics in the Prometheus text format. Only answers
+     * requests from the local machine unless remote scraping is enabled.
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException {
+
+        if (!ALLOW_REMOTE && !isLocal(req.getRemoteAddr())) {
+            res.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        res.setContentType("text/plain; version=0.0.4");
+        res.setCharacterEncoding("UTF-8");
+        res.setHeader("Cache-Control", "no-store");
+        Metrics.writePrometheus(res.getWriter());
+    }
+
+    private static boolean isLocal(String address) {
+        try {
+            return address != null && InetAddress.getByName(address).isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
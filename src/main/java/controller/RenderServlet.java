@@ -0,0 +1,287 @@
+package controller;
+
+import util.AdmissionControl;
+import util.ByteArrayImageOutputStream;
+import util.ImageUtils;
+import util.MultipartStream;
+import util.RenderOptions;
+import util.VirtualThreads;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.*;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Renders PDF pages to images: GET /render?file=output_123.pdf for a PDF
+ * generated earlier, or POST a PDF as the multipart field "pdf".
+ *
+ * pages (e.g. "1-5,8", default all), dpi (default 96) and format (jpeg, png
+ * or webp) come from the query string or, for POST, form fields sent before
+ * the PDF. A single page is answered with the image itself; several pages
+ * with a ZIP that is streamed page by page as they are rendered, so the
+ * client gets the first page without waiting for the last.
+ */
+@SuppressWarnings("serial")
+@WebServlet(urlPatterns = "/render", asyncSupported = true)
+public class RenderServlet extends HttpServlet {
+
+    private static final Log LOG = LogFactory.getLog(RenderServlet.class);
+
+    private static final long MAX_PDF_SIZE = 1024 * 1024 * 50;       // 50 MB
+    private static final int MAX_FIELD_BYTES = 1024;
+    private static final byte[] PDF_MAGIC = "%PDF-".getBytes(StandardCharsets.ISO_8859_1);
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException {
+        handle(req, res);
+    }
+
+    protected void doPost(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException {
+        handle(req, res);
+    }
+
+    /** Runs the request on a virtual thread when enabled, as ImageServlet does. */
+    private void handle(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        java.util.concurrent.ExecutorService executor = VirtualThreads.executor();
+        if (executor == null || !req.isAsyncSupported()) {
+            process(req, res);
+            return;
+        }
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+        executor.execute(() -> {
+            try {
+                process(req, res);
+            } catch (Exception e) {
+                LOG.error("Rendering failed", e);
+            } finally {
+                async.complete();
+            }
+        });
+    }
+
+    private void process(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        RenderOptions options = RenderOptions.defaults();
+        File pdf;
+        boolean uploaded = "POST".equals(req.getMethod());
+        try {
+            applySetting(options, "pages", req.getParameter("pages"));
+            applySetting(options, "dpi", req.getParameter("dpi"));
+            applySetting(options, "format", req.getParameter("format"));
+            pdf = uploaded ? receivePdf(req, options) : storedPdf(req.getParameter("file"));
+        } catch (IllegalArgumentException e) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        } catch (MultipartStream.SizeLimitExceededException e) {
+            res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Maximum PDF size is 50 MB");
+            return;
+        }
+        if (pdf == null) {
+            res.sendError(uploaded ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_NOT_FOUND,
+                    uploaded ? "No PDF was uploaded" : "File not found");
+            return;
+        }
+
+        try {
+            ImageUtils.PdfRendering rendering;
+            try {
+                rendering = ImageUtils.startRendering(pdf, options);
+            } catch (IllegalArgumentException | IOException e) {
+                // Unreadable PDF or a page range outside the document
+                res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot render PDF: " + e.getMessage());
+                return;
+            }
+            try {
+                render(rendering, uploaded ? "document" : pdf.getName().replaceFirst("\\.pdf$", ""), options, res);
+            } finally {
+                rendering.close();
+            }
+        } finally {
+            if (uploaded) {
+                pdf.delete();
+            }
+        }
+    }
+
+    private void render(ImageUtils.PdfRendering rendering, String baseName, RenderOptions options,
+            HttpServletResponse res) throws IOException {
+        AdmissionControl.Ticket ticket = null;
+        try {
+            ticket = AdmissionControl.admit(rendering.estimateProcessingBytes(), AdmissionControl.DEFAULT_WAIT_MILLIS);
+            if (ticket == null) {
+                res.setHeader("Retry-After", "30");
+                res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "The server is busy converting other uploads. Please retry in a moment.");
+                return;
+            }
+
+            int rendered;
+            if (rendering.getPages().length == 1) {
+                rendered = rendering.renderTo((pageNumber, image) -> sendImage(res, image, options));
+            } else {
+                rendered = streamZip(rendering, baseName, options, res);
+            }
+            if (rendered == 0 && !res.isCommitted()) {
+                res.reset();
+                res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "No page could be rendered");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!res.isCommitted()) {
+                res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+        } catch (Exception e) {
+            if (!res.isCommitted()) {
+                res.reset();
+                res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot render PDF: " + e.getMessage());
+            } else {
+                LOG.error("Rendering " + baseName + " failed after the response was committed", e);
+            }
+        } finally {
+            if (ticket != null) {
+                ticket.close();
+            }
+        }
+    }
+
+    /** A PDF under uploads/, as named by the file parameter, or null if there is none. */
+    private File storedPdf(String fileName) {
+        if (fileName == null || fileName.isEmpty()) {
+            throw new IllegalArgumentException("File parameter is required");
+        }
+        // Security: prevent directory traversal
+        if (fileName.contains("..") || fileName.contains("/") || fileName.contains("\\")
+                || !fileName.toLowerCase().endsWith(".pdf")) {
+            throw new IllegalArgumentException("Invalid file path");
+        }
+        File file = new File(getServletContext().getRealPath("/") + "uploads/" + fileName);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Stores the uploaded "pdf" part in a temporary file, applying the form
+     * fields that precede it. Returns null if there is no PDF part.
+     */
+    private File receivePdf(HttpServletRequest req, RenderOptions options) throws IOException {
+        String boundary = MultipartStream.boundary(req.getContentType());
+        if (boundary == null) {
+            return null;
+        }
+        MultipartStream multipart = new MultipartStream(req.getInputStream(), boundary, MAX_PDF_SIZE + 64 * 1024);
+        MultipartStream.Part part;
+        while ((part = multipart.next()) != null) {
+            if (!part.isFile()) {
+                applySetting(options, part.getName(), part.getString(MAX_FIELD_BYTES));
+                continue;
+            }
+            if (!"pdf".equals(part.getName())) {
+                continue;
+            }
+            InputStream in = new BufferedInputStream(part.getInputStream());
+            in.mark(PDF_MAGIC.length);
+            byte[] magic = new byte[PDF_MAGIC.length];
+            int length = in.readNBytes(magic, 0, magic.length);
+            if (length < magic.length || !java.util.Arrays.equals(magic, PDF_MAGIC)) {
+                throw new IllegalArgumentException("Uploaded file is not a PDF");
+            }
+            in.reset();
+
+            File target = File.createTempFile("render_", ".pdf");
+            boolean complete = false;
+            try (OutputStream out = new FileOutputStream(target)) {
+                byte[] buffer = new byte[64 * 1024];
+                long size = 0;
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    size += n;
+                    if (size > MAX_PDF_SIZE) {
+                        throw new MultipartStream.SizeLimitExceededException("PDF larger than " + MAX_PDF_SIZE + " bytes");
+                    }
+                    out.write(buffer, 0, n);
+                }
+                complete = true;
+            } finally {
+                if (!complete) {
+                    target.delete();
+                }
+            }
+            return target;
+        }
+        return null;
+    }
+
+    /** Applies the pages, dpi or format setting; other names and empty values are ignored. */
+    private static void applySetting(RenderOptions options, String name, String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return;
+        }
+        if ("pages".equals(name)) {
+            options.setPages(value);
+        } else if ("dpi".equals(name)) {
+            try {
+                options.setDpi(Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("dpi must be a number");
+            }
+        } else if ("format".equals(name)) {
+            options.setFormat(RenderOptions.Format.parse(value));
+        }
+    }
+
+    private static void sendImage(HttpServletResponse res, ByteArrayImageOutputStream image, RenderOptions options)
+            throws IOException {
+        res.setContentType(options.getFormat().getContentType());
+        res.setContentLength(image.size());
+        try (InputStream in = image.toInputStream()) {
+            in.transferTo(res.getOutputStream());
+        }
+    }
+
+    /**
+     * Writes the pages as a ZIP of stored (already compressed) entries named
+     * page-0001.jpg and so on, flushing after each so they reach the client
+     * as they are rendered.
+     */
+    private static int streamZip(ImageUtils.PdfRendering rendering, String baseName, RenderOptions options,
+            HttpServletResponse res) throws Exception {
+        res.setContentType("application/zip");
+        res.setHeader("Content-Disposition", "attachment; filename=\"" + baseName + "-pages.zip\"");
+        ZipOutputStream zip = new ZipOutputStream(res.getOutputStream());
+        int rendered = rendering.renderTo((pageNumber, image) -> {
+            CRC32 crc = new CRC32();
+            try (InputStream in = image.toInputStream()) {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, n);
+                }
+            }
+            ZipEntry entry = new ZipEntry(String.format("page-%04d.%s", pageNumber, options.getFormat().getExtension()));
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(image.size());
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            try (InputStream in = image.toInputStream()) {
+                in.transferTo(zip);
+            }
+            zip.closeEntry();
+            zip.flush();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Sent page " + pageNumber + " (" + image.size() + " bytes)");
+            }
+        });
+        if (rendered > 0) {
+            zip.finish();
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,179 @@
+package controller;
+
+import util.ImageHeader;
+import util.MultipartStream;
+import util.Thumbnails;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.*;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.*;
+import java.io.*;
+
+/**
+ * Small JPEG previews of images: POST an image as the multipart field
+ * "image". size (longest side, default 256) comes from the query string or a
+ * form field sent before the image. There is no GET by file name: uploads are
+ * deleted once converted, so nothing would be left to preview.
+ *
+ * For a POST the first 64 KB of the image are looked at first: when they
+ * hold a usable EXIF thumbnail the preview is answered from it, and the
+ * rest of the upload is read off but never stored. If more follows than the
+ * size limit allows, the connection is closed instead. PDFs are previewed by
+ * /render.
+ */
+@SuppressWarnings("serial")
+@WebServlet("/thumbnail")
+public class ThumbnailServlet extends HttpServlet {
+
+    private static final Log LOG = LogFactory.getLog(ThumbnailServlet.class);
+
+    private static final int MAX_FIELD_BYTES = 1024;
+
+    /** Enough of the file to hold the EXIF segment, and its thumbnail, of nearly every camera JPEG. */
+    private static final int SNIFF_BYTES = 64 * 1024;
+
+    protected void doPost(HttpServletRequest req, HttpServletResponse res)
+            throws ServletException, IOException {
+        String boundary = MultipartStream.boundary(req.getContentType());
+        if (boundary == null) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected a multipart/form-data upload");
+            return;
+        }
+
+        File stored = null;
+        try {
+            String sizeValue = req.getParameter("size");
+            MultipartStream multipart = new MultipartStream(req.getInputStream(), boundary,
+                    ImageUploads.MAX_REQUEST_SIZE);
+            MultipartStream.Part part;
+            while ((part = multipart.next()) != null) {
+                if (!part.isFile()) {
+                    if ("size".equals(part.getName())) {
+                        sizeValue = part.getString(MAX_FIELD_BYTES);
+                    }
+                    continue;
+                }
+                if (!"image".equals(part.getName())) {
+                    continue;
+                }
+                int size = size(sizeValue);
+
+                InputStream in = part.getInputStream();
+                byte[] prefix = new byte[SNIFF_BYTES];
+                int length = in.readNBytes(prefix, 0, prefix.length);
+                ImageHeader header = ImageHeader.probe(prefix, length);
+                String problem = ImageUploads.rejectReason(header);
+                if (problem != null) {
+                    // Whatever else the client is sending is not wanted
+                    res.setHeader("Connection", "close");
+                    res.sendError(header.getFormat() == ImageHeader.Format.UNKNOWN
+                            ? HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE
+                            : HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Cannot preview: " + problem);
+                    return;
+                }
+
+                // Lazy path: the EXIF thumbnail is already here, skip the rest
+                Thumbnails.Thumbnail thumbnail = Thumbnails.fromPrefix(prefix, length, header, size);
+                if (thumbnail == null) {
+                    stored = store(prefix, length, in);
+                    thumbnail = Thumbnails.create(stored, size);
+                } else if (!drain(in, ImageUploads.MAX_FILE_SIZE - length) || multipart.next() != null) {
+                    // The rest of the body was not read, so the connection
+                    // cannot carry another request
+                    res.setHeader("Connection", "close");
+                }
+                send(res, thumbnail);
+                return;
+            }
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "No image was uploaded");
+        } catch (MultipartStream.SizeLimitExceededException e) {
+            res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Maximum file size is 50 MB");
+        } catch (IllegalArgumentException e) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (Exception e) {
+            LOG.error("Preview failed", e);
+            if (!res.isCommitted()) {
+                res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Cannot create preview: " + e.getMessage());
+            }
+        } finally {
+            if (stored != null) {
+                stored.delete();
+            }
+        }
+    }
+
+    /** The requested preview size, or the default if none was given. */
+    private static int size(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Thumbnails.DEFAULT_SIZE;
+        }
+        int size;
+        try {
+            size = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("size must be a number of pixels");
+        }
+        if (size < 16 || size > Thumbnails.MAX_SIZE) {
+            throw new IllegalArgumentException("size must be between 16 and " + Thumbnails.MAX_SIZE);
+        }
+        return size;
+    }
+
+    /** Writes the already-read prefix and the rest of the part to a temporary file. */
+    private static File store(byte[] prefix, int length, InputStream rest) throws IOException {
+        File target = File.createTempFile("thumbnail_", ".img");
+        boolean complete = false;
+        try (OutputStream out = new FileOutputStream(target)) {
+            out.write(prefix, 0, length);
+            long size = length;
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = rest.read(buffer)) != -1) {
+                size += n;
+                if (size > ImageUploads.MAX_FILE_SIZE) {
+                    throw new MultipartStream.SizeLimitExceededException(
+                            "Image larger than " + ImageUploads.MAX_FILE_SIZE + " bytes");
+                }
+                out.write(buffer, 0, n);
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                target.delete();
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Reads the rest of the part without keeping it, so the connection is
+     * left at the next request; false if more than limit bytes remain.
+     */
+    private static boolean drain(InputStream rest, long limit) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long left = limit;
+        int n;
+        while ((n = rest.read(buffer, 0, (int) Math.min(buffer.length, left + 1))) != -1) {
+            left -= n;
+            if (left < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void send(HttpServletResponse res, Thumbnails.Thumbnail thumbnail) throws IOException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Sending " + thumbnail.getWidth() + "x" + thumbnail.getHeight() + " preview, "
+                    + thumbnail.getJpeg().length + " bytes");
+        }
+        res.setContentType("image/jpeg");
+        res.setContentLength(thumbnail.getJpeg().length);
+        // Same content, same preview: let the browser keep it
+        res.setHeader("Cache-Control", "private, max-age=3600");
+        res.getOutputStream().write(thumbnail.getJpeg());
+    }
+}
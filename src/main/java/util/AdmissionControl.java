@@ -0,0 +1,121 @@
+package util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Admission control in front of imagesToPdf. A request reserves its estimated
+ * pixel memory (ImageUtils.estimateProcessingBytes) against the global
+ * MemoryBudget.PROCESSING budget and only starts decoding once it fits; when
+ * the budget stays full for too long the caller should reject the request
+ * (503) instead of letting the node run out of memory.
+ */
+public class AdmissionControl {
+
+    private static final Log LOG = LogFactory.getLog(AdmissionControl.class);
+
+    /** How long a synchronous request may wait for memory (imageutil.admission.waitMillis). */
+    public static final long DEFAULT_WAIT_MILLIS = Long.getLong("imageutil.admission.waitMillis", 10_000L);
+
+    /** Held while a conversion runs; closing it gives the memory back. */
+    public static final class Ticket implements AutoCloseable {
+        private long bytes;
+        private boolean closed;
+
+        private Ticket(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Raises the ticket to the given estimate (capped at the budget, as in
+         * admit) if the budget has room right now; never waits, so a caller
+         * that cannot grow can give its ticket back before waiting for more.
+         * @return true if the ticket now covers the estimate
+         */
+        public synchronized boolean tryGrowTo(long estimatedBytes) {
+            if (closed) {
+                throw new IllegalStateException("Ticket already closed");
+            }
+            long target = Math.min(estimatedBytes, MemoryBudget.PROCESSING.getCapacity());
+            if (target <= bytes) {
+                return true;
+            }
+            if (!MemoryBudget.PROCESSING.tryReserve(target - bytes)) {
+                return false;
+            }
+            bytes = target;
+            return true;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                MemoryBudget.PROCESSING.release(bytes);
+            }
+        }
+    }
+
+    private AdmissionControl() {
+    }
+
+    /**
+     * Waits up to waitMillis for room in the budget.
+     * @return a ticket to close when the conversion is done, or null if the
+     *         request could not be admitted in time
+     */
+    public static Ticket admit(String[] imgPaths, ConversionOptions options, long waitMillis)
+            throws InterruptedException {
+        return admit(ImageUtils.estimateProcessingBytes(imgPaths, options), waitMillis);
+    }
+
+    /** Same as above, for an estimate the caller already has. */
+    public static Ticket admit(long estimatedBytes, long waitMillis) throws InterruptedException {
+        // A single request larger than the whole budget may still run, alone
+        long bytes = Math.min(estimatedBytes, MemoryBudget.PROCESSING.getCapacity());
+        if (!reserve(bytes, waitMillis)) {
+            return null;
+        }
+        return new Ticket(bytes);
+    }
+
+    /**
+     * For work that is already queued and cannot be turned away, such as a
+     * background job: waits as long as it takes for room in the budget. Each
+     * retryMillis spent without room counts as an admission retry, not as a
+     * rejection, so waiting jobs do not look like refused requests.
+     */
+    public static Ticket admitQueued(String[] imgPaths, ConversionOptions options, long retryMillis)
+            throws InterruptedException {
+        return admitQueued(ImageUtils.estimateProcessingBytes(imgPaths, options), retryMillis);
+    }
+
+    /** Same as above, for an estimate the caller already has. */
+    public static Ticket admitQueued(long estimatedBytes, long retryMillis) throws InterruptedException {
+        long bytes = Math.min(estimatedBytes, MemoryBudget.PROCESSING.getCapacity());
+        while (!MemoryBudget.PROCESSING.reserve(bytes, retryMillis)) {
+            Metrics.ADMISSION_RETRIES.inc();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Still waiting for " + bytes + " bytes, "
+                        + MemoryBudget.PROCESSING.getUsed() + " of " + MemoryBudget.PROCESSING.getCapacity() + " in use");
+            }
+        }
+        return new Ticket(bytes);
+    }
+
+    private static boolean reserve(long bytes, long waitMillis) throws InterruptedException {
+        if (!MemoryBudget.PROCESSING.reserve(bytes, waitMillis)) {
+            Metrics.ADMISSIONS_REJECTED.inc();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Admission rejected, " + bytes + " bytes needed, "
+                        + MemoryBudget.PROCESSING.getUsed() + " of " + MemoryBudget.PROCESSING.getCapacity() + " in use");
+            }
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,431 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Command-line bulk conversion for offline jobs, without Tomcat: one PDF per
+ * folder of images (--input) or per manifest line (--manifest), many
+ * documents at a time.
+ *
+ * Documents, not pages, are spread over a fixed pool of --jobs workers,
+ * largest first, and each is converted sequentially on its worker. Memory goes through the
+ * same AdmissionControl budget as the web app. Every PDF is written to a
+ * ".part" file and renamed once complete, then recorded in a checkpoint file,
+ * so an interrupted run picks up where it stopped when started again. The
+ * page cache is off unless --cache is given: an archive is converted once,
+ * so caching its pages would only fill the disk.
+ *
+ * Run from the exploded WAR after mvn package:
+ * java -cp "target/image-utility/WEB-INF/classes:target/image-utility/WEB-INF/lib/*" util.BatchConverter --help
+ */
+public final class BatchConverter {
+
+    private static final Log LOG = LogFactory.getLog(BatchConverter.class);
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: BatchConverter (--input <dir> | --manifest <file>) --output <dir> [options]",
+            "",
+            "  --input <dir>         every folder below <dir> holding images becomes <output>/<folder>.pdf",
+            "  --manifest <file>     one document per line: <output.pdf> TAB <image or folder> [TAB ...];",
+            "                        relative paths are resolved against the manifest's folder, # starts a comment",
+            "  --output <dir>        where the PDFs go",
+            "  --jobs <n>            documents converted at the same time (default: CPU cores)",
+            "  --profile <name>      screen, ebook, print or original (default: imageutil.profile)",
+            "  --checkpoint <file>   record of finished documents (default: <output>/.batch-checkpoint)",
+            "  --restart             ignore the checkpoint and convert everything again",
+            "  --cache               reuse and store pages in the page cache (default: off)",
+            "  --progress <seconds>  interval between progress lines, 0 for none (default: 10)");
+
+    /** Extensions picked up when a folder is scanned for images. */
+    private static final Set<String> IMAGE_EXTENSIONS = new HashSet<>(
+            Arrays.asList("jpg", "jpeg", "png", "webp", "gif", "bmp"));
+
+    /** How long a document waits for processing memory before checking again. */
+    private static final long ADMISSION_WAIT_MILLIS = 60_000L;
+
+    /** One PDF to build. */
+    private static final class Document {
+        final String name; // output path relative to the output folder, the checkpoint key
+        final File output;
+        final String[] images;
+        final long inputBytes;
+
+        Document(String name, File output, List<File> images) {
+            this.name = name;
+            this.output = output;
+            this.images = new String[images.size()];
+            long bytes = 0;
+            for (int i = 0; i < images.size(); i++) {
+                this.images[i] = images.get(i).getPath();
+                bytes += images.get(i).length();
+            }
+            this.inputBytes = bytes;
+        }
+    }
+
+    private final File outputDir;
+    private final int jobs;
+    private final ConversionOptions.OutputProfile profile;
+    private final File checkpointFile;
+    private final long progressMillis;
+    private final boolean cacheEnabled;
+
+    private final AtomicLong documentsDone = new AtomicLong();
+    private final AtomicLong documentsFailed = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private BufferedWriter checkpoint;
+    private long start;
+
+    private BatchConverter(File outputDir, int jobs, ConversionOptions.OutputProfile profile, File checkpointFile,
+            long progressMillis, boolean cacheEnabled) {
+        this.outputDir = outputDir;
+        this.jobs = jobs;
+        this.profile = profile;
+        this.checkpointFile = checkpointFile;
+        this.progressMillis = progressMillis;
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs a batch with the given command-line arguments.
+     *
+     * @return exit status: 0 if every document was converted, 1 if some
+     *         failed, 2 for bad arguments or input
+     */
+    public static int run(String[] args) {
+        File input = null;
+        File manifest = null;
+        File outputDir = null;
+        File checkpointFile = null;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        ConversionOptions.OutputProfile profile = null;
+        boolean restart = false;
+        boolean cache = false;
+        long progressSeconds = 10;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--input":
+                        input = new File(value(args, ++i));
+                        break;
+                    case "--manifest":
+                        manifest = new File(value(args, ++i));
+                        break;
+                    case "--output":
+                        outputDir = new File(value(args, ++i));
+                        break;
+                    case "--jobs":
+                        jobs = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--profile":
+                        profile = ConversionOptions.OutputProfile.parse(value(args, ++i));
+                        break;
+                    case "--checkpoint":
+                        checkpointFile = new File(value(args, ++i));
+                        break;
+                    case "--restart":
+                        restart = true;
+                        break;
+                    case "--cache":
+                        cache = true;
+                        break;
+                    case "--progress":
+                        progressSeconds = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--help":
+                    case "-h":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if ((input == null) == (manifest == null)) {
+                throw new IllegalArgumentException("Give either --input or --manifest");
+            }
+            if (outputDir == null) {
+                throw new IllegalArgumentException("--output is required");
+            }
+            if (jobs < 1 || progressSeconds < 0) {
+                throw new IllegalArgumentException("--jobs must be at least 1 and --progress not negative");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        BatchConverter batch = new BatchConverter(outputDir, jobs, profile,
+                checkpointFile != null ? checkpointFile : new File(outputDir, ".batch-checkpoint"),
+                progressSeconds * 1000, cache);
+        try {
+            List<Document> documents = manifest != null ? batch.readManifest(manifest) : batch.scanTree(input);
+            return batch.convert(documents, restart);
+        } catch (IOException e) {
+            System.err.println("Batch failed: " + e.getMessage());
+            return 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Batch interrupted");
+            return 1;
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        }
+        return args[i];
+    }
+
+    /** One document per folder below root that directly contains images. */
+    private List<Document> scanTree(File root) throws IOException {
+        if (!root.isDirectory()) {
+            throw new IOException("Not a directory: " + root);
+        }
+        Path rootPath = root.toPath();
+        List<Document> documents = new ArrayList<>();
+        try (Stream<Path> folders = Files.walk(rootPath)) {
+            for (Path folder : (Iterable<Path>) folders.filter(Files::isDirectory)::iterator) {
+                List<File> images = imagesIn(folder.toFile());
+                if (images.isEmpty()) {
+                    continue;
+                }
+                String name = folder.equals(rootPath)
+                        ? rootPath.toAbsolutePath().normalize().getFileName().toString()
+                        : rootPath.relativize(folder).toString();
+                name = name.replace(File.separatorChar, '/') + ".pdf";
+                documents.add(new Document(name, new File(outputDir, name), images));
+            }
+        }
+        return documents;
+    }
+
+    /** Reads "output TAB input [TAB input ...]" lines; an input folder adds its images. */
+    private List<Document> readManifest(File manifest) throws IOException {
+        File base = manifest.getAbsoluteFile().getParentFile();
+        List<Document> documents = new ArrayList<>();
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length < 2) {
+                    throw new IOException(manifest + ":" + lineNumber + ": expected <output.pdf> TAB <image> ...");
+                }
+                List<File> images = new ArrayList<>();
+                for (int i = 1; i < fields.length; i++) {
+                    if (fields[i].trim().isEmpty()) {
+                        continue;
+                    }
+                    File file = resolve(base, fields[i].trim());
+                    if (file.isDirectory()) {
+                        images.addAll(imagesIn(file));
+                    } else {
+                        images.add(file);
+                    }
+                }
+                String name = fields[0].trim();
+                documents.add(new Document(name, resolve(outputDir, name), images));
+            }
+        }
+        return documents;
+    }
+
+    private static File resolve(File base, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(base, path);
+    }
+
+    /** Image files directly in the folder, by name. */
+    private static List<File> imagesIn(File folder) {
+        File[] files = folder.listFiles(file -> {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            return file.isFile() && dot > 0
+                    && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        });
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private int convert(List<Document> documents, boolean restart) throws IOException, InterruptedException {
+        Set<String> finished = restart ? new HashSet<>() : readCheckpoint();
+        List<Document> pending = new ArrayList<>();
+        for (Document document : documents) {
+            if (!finished.contains(document.name) || !document.output.isFile()) {
+                pending.add(document);
+            }
+        }
+        int skipped = documents.size() - pending.size();
+        // Longest first, so no big document is left running alone at the end
+        pending.sort((a, b) -> Long.compare(b.inputBytes, a.inputBytes));
+        System.out.println(documents.size() + " documents, " + skipped + " already done, "
+                + pending.size() + " to convert on " + jobs + " workers");
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        if (checkpointFile.getParentFile() != null) {
+            Files.createDirectories(checkpointFile.getParentFile().toPath());
+        }
+        checkpoint = Files.newBufferedWriter(checkpointFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, restart ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+        start = System.nanoTime();
+        Thread reporter = startReporter(pending.size());
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Document document : pending) {
+                tasks.add(pool.submit(() -> convert(document)));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    // convert() reports its own failures; this is a bug
+                    LOG.error("Unexpected batch failure: " + e.getCause(), e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            if (reporter != null) {
+                reporter.interrupt();
+            }
+            checkpoint.close();
+        }
+        System.out.println("Done: " + progressLine(pending.size()));
+        return documentsFailed.get() == 0 ? 0 : 1;
+    }
+
+    private Set<String> readCheckpoint() throws IOException {
+        Set<String> finished = new HashSet<>();
+        if (checkpointFile.isFile()) {
+            finished.addAll(Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8));
+        }
+        return finished;
+    }
+
+    /** Converts one document; failures are logged and counted, never thrown. */
+    private void convert(Document document) {
+        File part = new File(document.output.getPath() + ".part");
+        try {
+            if (document.images.length == 0) {
+                throw new IOException("no images");
+            }
+            File parent = document.output.getAbsoluteFile().getParentFile();
+            Files.createDirectories(parent.toPath());
+
+            ConversionOptions options = ConversionOptions.defaults();
+            options.setMaxConcurrency(1); // Parallel across documents instead
+            options.setCacheEnabled(cacheEnabled);
+            if (profile != null) {
+                options.setOutputProfile(profile);
+            }
+
+            int pageCount;
+            AdmissionControl.Ticket ticket = AdmissionControl.admitQueued(document.images, options,
+                    ADMISSION_WAIT_MILLIS);
+            try (OutputStream out = Files.newOutputStream(part.toPath())) {
+                pageCount = ImageUtils.imagesToPdf(document.images, out, options);
+            } finally {
+                ticket.close();
+            }
+            moveIntoPlace(part, document.output);
+            recordFinished(document.name);
+
+            pages.addAndGet(pageCount);
+            bytesIn.addAndGet(document.inputBytes);
+            bytesOut.addAndGet(document.output.length());
+            documentsDone.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            documentsFailed.incrementAndGet();
+            part.delete();
+        } catch (Exception e) {
+            LOG.error("Failed to convert " + document.name + ": " + e.getMessage(), e);
+            documentsFailed.incrementAndGet();
+            part.delete();
+        }
+    }
+
+    private static void moveIntoPlace(File part, File output) throws IOException {
+        try {
+            Files.move(part.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Appends to the checkpoint and flushes, so a crash right after still counts it. */
+    private synchronized void recordFinished(String name) throws IOException {
+        checkpoint.write(name);
+        checkpoint.newLine();
+        checkpoint.flush();
+    }
+
+    private Thread startReporter(int total) {
+        if (progressMillis == 0) {
+            return null;
+        }
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(progressMillis);
+                    System.out.println(progressLine(total));
+                }
+            } catch (InterruptedException e) {
+                // Batch finished
+            }
+        }, "imageutil-batch-progress");
+        reporter.setDaemon(true);
+        reporter.start();
+        return reporter;
+    }
+
+    private String progressLine(int total) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+        return String.format(Locale.ROOT,
+                "%d/%d documents, %d failed, %d pages in %.0fs: %.1f pages/s, %.1f MB/s in, %.1f MB/s out",
+                documentsDone.get(), total, documentsFailed.get(), pages.get(), seconds,
+                pages.get() / seconds, bytesIn.get() / seconds / 1e6, bytesOut.get() / seconds / 1e6);
+    }
+}
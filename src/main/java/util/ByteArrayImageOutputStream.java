@@ -0,0 +1,131 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * An ImageOutputStream that writes into a growable in-memory array borrowed
+ * from ImagePool, so an encoded page never touches the disk. Unlike
+ * MemoryCacheImageOutputStream there is no second copy: the bytes can be read
+ * back in place with toInputStream().
+ *
+ * Call release() once the bytes have been consumed; the stream must not be
+ * used afterwards.
+ */
+public final class ByteArrayImageOutputStream extends ImageOutputStreamImpl {
+
+    private static final int INITIAL_CAPACITY = 256 * 1024;
+
+    private byte[] buffer;
+    private int length;
+
+    public ByteArrayImageOutputStream() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ByteArrayImageOutputStream(int initialCapacity) {
+        buffer = ImagePool.borrowBytes(Math.max(initialCapacity, 16));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureWritable(1);
+        buffer[(int) streamPos] = (byte) b;
+        advance(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureWritable(len);
+        System.arraycopy(b, off, buffer, (int) streamPos, len);
+        advance(len);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        return buffer[(int) streamPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        int count = (int) Math.min(len, length - streamPos);
+        System.arraycopy(buffer, (int) streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+
+    /** Number of bytes written. */
+    public int size() {
+        return length;
+    }
+
+    /** Reads the written bytes in place, without copying. */
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buffer, 0, length);
+    }
+
+    /** A copy of the written bytes, e.g. for a cache that outlives this stream. */
+    public byte[] toByteArray() {
+        return java.util.Arrays.copyOf(buffer, length);
+    }
+
+    /** Hands the array back to the pool. */
+    public void release() {
+        ImagePool.release(buffer);
+        buffer = null;
+        length = 0;
+    }
+
+    private void ensureWritable(int count) throws IOException {
+        checkClosed();
+        if (buffer == null) {
+            throw new IOException("Stream has been released");
+        }
+        flushBits();
+        long required = streamPos + count;
+        if (required > Integer.MAX_VALUE - 8) {
+            throw new IOException("Encoded image too large for memory: " + required + " bytes");
+        }
+        if (required > buffer.length) {
+            byte[] grown = ImagePool.borrowBytes((int) Math.max(required, Math.min(2L * buffer.length,
+                    Integer.MAX_VALUE - 8)));
+            System.arraycopy(buffer, 0, grown, 0, length);
+            ImagePool.release(buffer);
+            buffer = grown;
+        }
+    }
+
+    private void advance(int count) {
+        streamPos += count;
+        if (streamPos > length) {
+            length = (int) streamPos;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package util;
+
+import java.io.File;
+
+/**
+ * State of one asynchronous conversion, as tracked by ConversionJobs.
+ * Fields are written by the worker thread and read by status requests.
+ */
+public class ConversionJob implements ProgressListener {
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    private final String id;
+    private final int totalPages;
+    private final File output;
+    private final long createdAt = System.currentTimeMillis();
+
+    private volatile State state = State.QUEUED;
+    private volatile int pagesDone;
+    private volatile String error;
+    private volatile long finishedAt;
+
+    ConversionJob(String id, int totalPages, File output) {
+        this.id = id;
+        this.totalPages = totalPages;
+        this.output = output;
+    }
+
+    @Override
+    public void imageProcessed(int done, int total) {
+        pagesDone = done;
+    }
+
+    void markRunning() {
+        state = State.RUNNING;
+    }
+
+    void markDone() {
+        pagesDone = totalPages;
+        finishedAt = System.currentTimeMillis();
+        state = State.DONE;
+    }
+
+    void markFailed(String message) {
+        error = message;
+        finishedAt = System.currentTimeMillis();
+        state = State.FAILED;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getPagesDone() {
+        return pagesDone;
+    }
+
+    public int getTotalPages() {
+        return totalPages;
+    }
+
+    /** The generated PDF; only complete once the state is DONE. */
+    public File getOutput() {
+        return output;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /** 0 while the job is still queued or running. */
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /** Status as a small JSON object, for the status endpoint. */
+    public String toJson() {
+        State current = state;
+        StringBuilder json = new StringBuilder();
+        json.append("{\"jobId\":\"").append(id).append('"');
+        json.append(",\"state\":\"").append(current).append('"');
+        json.append(",\"pagesDone\":").append(pagesDone);
+        json.append(",\"totalPages\":").append(totalPages);
+        if (current == State.DONE) {
+            json.append(",\"downloadUrl\":\"download?job=").append(id).append('"');
+        }
+        if (current == State.FAILED && error != null) {
+            json.append(",\"error\":\"").append(escapeJson(error)).append('"');
+        }
+        return json.append('}').toString();
+    }
+
+    private static String escapeJson(String value) {
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,162 @@
+package util;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs conversions in the background so the upload request can return at once.
+ *
+ * Jobs go through a fixed pool (imageutil.jobs.threads) with a bounded queue
+ * (imageutil.jobs.queueSize); when both are full, submit throws
+ * RejectedExecutionException and the caller should answer 503. A job writes
+ * its PDF next to the output as .part and moves it into place when complete,
+ * so the output never exists half-written. Finished jobs are forgotten after
+ * imageutil.jobs.retentionMinutes, and their PDFs deleted.
+ */
+public class ConversionJobs {
+
+    private static final Log LOG = LogFactory.getLog(ConversionJobs.class);
+
+    private static final ConcurrentHashMap<String, ConversionJob> JOBS = new ConcurrentHashMap<>();
+
+    private static final long RETENTION_MILLIS =
+            TimeUnit.MINUTES.toMillis(Long.getLong("imageutil.jobs.retentionMinutes", 60));
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    static {
+        Metrics.gauge("imageutil_jobs_in_flight", "Asynchronous jobs queued or running",
+                () -> EXECUTOR.getQueue().size() + EXECUTOR.getActiveCount());
+    }
+
+    private ConversionJobs() {
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        int threads = Math.max(1, Integer.getInteger("imageutil.jobs.threads", 2));
+        int queueSize = Math.max(1, Integer.getInteger("imageutil.jobs.queueSize", 16));
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "conversion-job-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Queues a conversion of the given images into output. The input files are
+     * deleted once the job has finished, successfully or not.
+     *
+     * @throws RejectedExecutionException if the job queue is full
+     */
+    public static ConversionJob submit(String[] imgPaths, File output, ConversionOptions options) {
+        return submit(imgPaths, null, output, options);
+    }
+
+    /**
+     * Same as above for images whose headers the caller has already probed,
+     * e.g. while they were being uploaded; headers[i] belongs to imgPaths[i]
+     * and a null array or entry probes the file.
+     */
+    public static ConversionJob submit(String[] imgPaths, ImageHeader[] headers, File output,
+            ConversionOptions options) {
+        if (headers != null && headers.length != imgPaths.length) {
+            throw new IllegalArgumentException("One header per image expected");
+        }
+        purgeExpired();
+
+        ConversionJob job = new ConversionJob(UUID.randomUUID().toString(), imgPaths.length, output);
+        options.setProgressListener(job);
+        JOBS.put(job.getId(), job);
+
+        try {
+            EXECUTOR.execute(() -> run(job, imgPaths, headers, options));
+        } catch (RejectedExecutionException e) {
+            JOBS.remove(job.getId());
+            throw e;
+        }
+        return job;
+    }
+
+    /** Returns the job with the given ID, or null if unknown or expired. */
+    public static ConversionJob get(String id) {
+        purgeExpired();
+        return id == null ? null : JOBS.get(id);
+    }
+
+    private static void run(ConversionJob job, String[] imgPaths, ImageHeader[] headers,
+            ConversionOptions options) {
+        File output = job.getOutput().getAbsoluteFile();
+        File part = new File(output.getPath() + ".part");
+        try {
+            // Jobs are already queued, so they wait for memory as long as it takes
+            AdmissionControl.Ticket ticket = headers == null || Arrays.asList(headers).contains(null)
+                    ? AdmissionControl.admitQueued(imgPaths, options, 60_000L)
+                    : AdmissionControl.admitQueued(
+                            ImageUtils.estimateProcessingBytes(Arrays.asList(headers), options), 60_000L);
+            try (ImageUtils.Conversion conversion = ImageUtils.startConversion(options, imgPaths.length)) {
+                job.markRunning();
+                for (int i = 0; i < imgPaths.length; i++) {
+                    conversion.add(imgPaths[i], headers == null ? null : headers[i]);
+                }
+                conversion.saveTo(part.getPath());
+                Files.move(part.toPath(), output.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                job.markDone();
+            } finally {
+                ticket.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.markFailed("Interrupted");
+        } catch (Exception e) {
+            LOG.error("Conversion job " + job.getId() + " failed: " + e.getMessage(), e);
+            job.markFailed(e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            // Nothing left over from a failed save
+            part.delete();
+            // Clean up uploaded images
+            for (String imgPath : imgPaths) {
+                try {
+                    new File(imgPath).delete();
+                } catch (Exception e) {
+                    // Ignore cleanup errors
+                }
+            }
+        }
+    }
+
+    private static void purgeExpired() {
+        purgeExpired(System.currentTimeMillis());
+    }
+
+    /** Forgets the jobs that finished more than the retention time before now. */
+    static void purgeExpired(long now) {
+        long cutoff = now - RETENTION_MILLIS;
+        Iterator<ConversionJob> it = JOBS.values().iterator();
+        while (it.hasNext()) {
+            ConversionJob job = it.next();
+            if (job.getFinishedAt() != 0 && job.getFinishedAt() < cutoff) {
+                it.remove();
+                // Nobody can ask for it any more
+                File output = job.getOutput();
+                if (output.exists() && !output.delete()) {
+                    LOG.warn("Could not delete expired job output " + output);
+                }
+            }
+        }
+    }
+}
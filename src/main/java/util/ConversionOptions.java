@@ -0,0 +1,245 @@
+package util;
+
+import java.io.File;
+
+/**
+ * Tunables for a single imagesToPdf call.
+ * Defaults come from system properties so they can be changed per deployment
+ * (e.g. -Dimageutil.maxConcurrency=2 in CATALINA_OPTS).
+ */
+public class ConversionOptions {
+
+    /**
+     * Output presets: the resolution images are kept at on the page and the
+     * JPEG quality they are re-encoded with. ORIGINAL keeps the old behaviour
+     * (images up to 2048px, whatever the page size).
+     */
+    public enum OutputProfile {
+        SCREEN(96, 0.70f),
+        EBOOK(150, 0.75f),
+        PRINT(300, 0.85f),
+        ORIGINAL(0, 0.85f);
+
+        private final int dpi;
+        private final float jpegQuality;
+
+        OutputProfile(int dpi, float jpegQuality) {
+            this.dpi = dpi;
+            this.jpegQuality = jpegQuality;
+        }
+
+        public int getDpi() {
+            return dpi;
+        }
+
+        public float getJpegQuality() {
+            return jpegQuality;
+        }
+
+        /** The profile of that name, ignoring case. */
+        public static OutputProfile parse(String name) {
+            for (OutputProfile profile : values()) {
+                if (profile.name().equalsIgnoreCase(name.trim())) {
+                    return profile;
+                }
+            }
+            throw new IllegalArgumentException("Unknown output profile '" + name
+                    + "', expected screen, ebook, print or original");
+        }
+    }
+
+    private int maxConcurrency;
+    private boolean jpegPassthrough;
+    private boolean losslessJpegRotation;
+    private long documentHeapBytes;
+    private File scratchDir;
+    private boolean cacheEnabled;
+    private boolean deduplicateImages;
+    private ProgressListener progressListener;
+    private int targetDpi;
+    private float jpegQuality;
+    private long maxOutputBytes;
+
+    public ConversionOptions() {
+        this.maxConcurrency = defaultMaxConcurrency();
+        this.jpegPassthrough = booleanProperty("imageutil.jpegPassthrough", true);
+        this.losslessJpegRotation = booleanProperty("imageutil.losslessJpegRotation", true);
+        this.documentHeapBytes = Long.getLong("imageutil.documentHeapBytes", 32L * 1024 * 1024);
+        this.cacheEnabled = booleanProperty("imageutil.cache.enabled", true);
+        this.deduplicateImages = booleanProperty("imageutil.dedupImages", true);
+        String scratch = System.getProperty("imageutil.scratchDir");
+        this.scratchDir = scratch == null || scratch.trim().isEmpty() ? null : new File(scratch.trim());
+        String profile = System.getProperty("imageutil.profile");
+        setOutputProfile(profile == null ? OutputProfile.ORIGINAL : OutputProfile.parse(profile));
+        setTargetDpi(Integer.getInteger("imageutil.targetDpi", targetDpi));
+        String quality = System.getProperty("imageutil.jpegQuality");
+        if (quality != null) {
+            setJpegQuality(Float.parseFloat(quality.trim()));
+        }
+        setMaxOutputBytes(Long.getLong("imageutil.maxOutputBytes", 0L));
+    }
+
+    public static ConversionOptions defaults() {
+        return new ConversionOptions();
+    }
+
+    /**
+     * Maximum number of images of one request that are processed at the same time.
+     * 1 means the old sequential behaviour on the calling thread.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Embed upright baseline JPEGs that are already small enough without
+     * decoding and re-encoding them.
+     */
+    public boolean isJpegPassthrough() {
+        return jpegPassthrough;
+    }
+
+    public void setJpegPassthrough(boolean jpegPassthrough) {
+        this.jpegPassthrough = jpegPassthrough;
+    }
+
+    /**
+     * Let passthrough JPEGs keep their EXIF rotation/mirroring and apply it with
+     * the page's image transform, so they are never decompressed.
+     * Has no effect unless jpegPassthrough is on.
+     */
+    public boolean isLosslessJpegRotation() {
+        return losslessJpegRotation;
+    }
+
+    public void setLosslessJpegRotation(boolean losslessJpegRotation) {
+        this.losslessJpegRotation = losslessJpegRotation;
+    }
+
+    /**
+     * Heap, in bytes, one PDF document may use for its streams before PDFBox
+     * spills them to a scratch file. 0 keeps everything in the scratch file.
+     */
+    public long getDocumentHeapBytes() {
+        return documentHeapBytes;
+    }
+
+    public void setDocumentHeapBytes(long documentHeapBytes) {
+        if (documentHeapBytes < 0) {
+            throw new IllegalArgumentException("documentHeapBytes must not be negative");
+        }
+        this.documentHeapBytes = documentHeapBytes;
+    }
+
+    /** Directory for PDFBox scratch files; null means java.io.tmpdir. */
+    public File getScratchDir() {
+        return scratchDir;
+    }
+
+    public void setScratchDir(File scratchDir) {
+        this.scratchDir = scratchDir;
+    }
+
+    /**
+     * Look up and store re-encoded pages in the shared PageCache, keyed by the
+     * content hash of the upload.
+     */
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * Embed an image only once per PDF when several pages end up with
+     * byte-identical image data, e.g. the same photo uploaded twice; the
+     * pages then share one image object.
+     */
+    public boolean isDeduplicateImages() {
+        return deduplicateImages;
+    }
+
+    public void setDeduplicateImages(boolean deduplicateImages) {
+        this.deduplicateImages = deduplicateImages;
+    }
+
+    /** Notified after each input image has been handled; may be null. */
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /** Sets targetDpi and jpegQuality from the preset. */
+    public void setOutputProfile(OutputProfile profile) {
+        this.targetDpi = profile.getDpi();
+        this.jpegQuality = profile.getJpegQuality();
+    }
+
+    /**
+     * Resolution, in dots per inch of the A4 page, that re-encoded images are
+     * scaled to for the box they fill on the page; never above 2048px and never
+     * upscaled. 0 means no page-based limit, just the 2048px cap.
+     */
+    public int getTargetDpi() {
+        return targetDpi;
+    }
+
+    public void setTargetDpi(int targetDpi) {
+        if (targetDpi < 0) {
+            throw new IllegalArgumentException("targetDpi must not be negative");
+        }
+        this.targetDpi = targetDpi;
+    }
+
+    /** JPEG quality (0-1) used when re-encoding images. */
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public void setJpegQuality(float jpegQuality) {
+        if (!(jpegQuality > 0 && jpegQuality <= 1)) {
+            throw new IllegalArgumentException("jpegQuality must be between 0 and 1");
+        }
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Size, in bytes, the whole PDF should stay under; 0 for no limit. It is
+     * shared out evenly between the pages, so it only applies when the number
+     * of images is known when the conversion starts. Pages over their share
+     * are re-encoded at lower quality, then at lower resolution.
+     */
+    public long getMaxOutputBytes() {
+        return maxOutputBytes;
+    }
+
+    public void setMaxOutputBytes(long maxOutputBytes) {
+        if (maxOutputBytes < 0) {
+            throw new IllegalArgumentException("maxOutputBytes must not be negative");
+        }
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    private static boolean booleanProperty(String name, boolean fallback) {
+        String value = System.getProperty(name);
+        return value == null ? fallback : Boolean.parseBoolean(value.trim());
+    }
+
+    private static int defaultMaxConcurrency() {
+        // Half the cores by default, so one large upload leaves room for others
+        int fallback = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return Math.max(1, Integer.getInteger("imageutil.maxConcurrency", fallback));
+    }
+}
@@ -0,0 +1,436 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Everything the pipeline needs to know about an image before decoding it,
+ * read in a single pass over the file header: format, dimensions, EXIF
+ * orientation, color space, whether a JPEG is baseline or progressive and
+ * where its embedded EXIF thumbnail is.
+ *
+ * The probe reads the first HEAD_BYTES with one NIO read; only JPEGs whose
+ * frame header sits behind large APPn segments (big EXIF thumbnails, ICC
+ * profiles) need a few more positional reads to reach it.
+ */
+public final class ImageHeader {
+
+    private static final Log LOG = LogFactory.getLog(ImageHeader.class);
+
+    public enum Format { JPEG, PNG, WEBP, GIF, BMP, UNKNOWN }
+
+    /** How a JPEG's components are to be interpreted. */
+    public enum ColorSpace { GRAY, RGB, YCBCR, CMYK, YCCK, UNKNOWN }
+
+    /** Bytes read up front; covers the headers of almost every file in one read. */
+    static final int HEAD_BYTES = 64 * 1024;
+
+    private Format format = Format.UNKNOWN;
+    private int width;
+    private int height;
+    private int orientation = 1;
+    private int components;
+    private ColorSpace colorSpace = ColorSpace.UNKNOWN;
+    private boolean progressive;
+    private int jpegFrameType; // SOFn marker, 0 if not a JPEG
+    private int bitsPerComponent;
+    private boolean hasAlpha;
+    private long exifThumbnailOffset; // from the start of the file, 0 if there is none
+    private int exifThumbnailLength;
+
+    private ImageHeader() {
+    }
+
+    /**
+     * Probes the given file. Never throws for malformed content: whatever could
+     * not be read stays at its default (UNKNOWN format, 0 size, orientation 1).
+     */
+    public static ImageHeader probe(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(HEAD_BYTES, Math.max(0, channel.size())));
+            while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+                // Keep reading: a channel may return fewer bytes than asked for
+            }
+            head.flip();
+            return parse(new Source(head, channel));
+        }
+    }
+
+    /**
+     * Probes the first bytes of an image that is still being received, e.g. an
+     * upload. Fields located beyond the given prefix stay at their defaults.
+     */
+    public static ImageHeader probe(byte[] prefix, int length) {
+        return parse(new Source(ByteBuffer.wrap(prefix, 0, length).slice(), null));
+    }
+
+    private static ImageHeader parse(Source in) {
+        ImageHeader header = new ImageHeader();
+        try {
+            if (in.u8(0) == 0xFF && in.u8(1) == 0xD8 && in.u8(2) == 0xFF) {
+                header.format = Format.JPEG;
+                parseJpeg(in, header);
+            } else if (in.u8(0) == 0x89 && in.u8(1) == 'P' && in.u8(2) == 'N' && in.u8(3) == 'G') {
+                header.format = Format.PNG;
+                parsePng(in, header);
+            } else if (in.u8(0) == 'R' && in.u8(1) == 'I' && in.u8(2) == 'F' && in.u8(3) == 'F'
+                    && in.u8(8) == 'W' && in.u8(9) == 'E' && in.u8(10) == 'B' && in.u8(11) == 'P') {
+                header.format = Format.WEBP;
+                parseWebp(in, header);
+            } else if (in.u8(0) == 'G' && in.u8(1) == 'I' && in.u8(2) == 'F' && in.u8(3) == '8') {
+                header.format = Format.GIF;
+                header.width = in.u16le(6);
+                header.height = in.u16le(8);
+            } else if (in.u8(0) == 'B' && in.u8(1) == 'M') {
+                header.format = Format.BMP;
+                header.width = Math.abs(in.s32le(18));
+                header.height = Math.abs(in.s32le(22));
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            // Truncated or beyond the available prefix: keep what we have
+        }
+        return header;
+    }
+
+    private static void parseJpeg(Source in, ImageHeader header) throws IOException {
+        long pos = 2;
+        int adobeTransform = -1;
+        while (true) {
+            if (in.u8(pos) != 0xFF) {
+                return;
+            }
+            int marker = in.u8(pos + 1);
+            while (marker == 0xFF) {
+                pos++; // Fill bytes
+                marker = in.u8(pos + 1);
+            }
+            pos += 2;
+            if (marker == 0xD8 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue; // Standalone markers have no length
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                return; // EOI/SOS before any frame header
+            }
+
+            int length = in.u16(pos); // includes the two length bytes
+            long data = pos + 2;
+
+            if (marker == 0xE1 && length >= 8 && header.orientation == 1
+                    && in.u8(data) == 'E' && in.u8(data + 1) == 'x' && in.u8(data + 2) == 'i' && in.u8(data + 3) == 'f') {
+                byte[] exif = in.bytes(data, length - 2);
+                header.orientation = parseExifOrientation(exif);
+                findExifThumbnail(exif, data, header);
+            } else if (marker == 0xEE && length >= 14
+                    && in.u8(data) == 'A' && in.u8(data + 1) == 'd' && in.u8(data + 2) == 'o'
+                    && in.u8(data + 3) == 'b' && in.u8(data + 4) == 'e') {
+                adobeTransform = in.u8(data + 11);
+            } else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // SOF0..SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+                header.jpegFrameType = marker;
+                header.progressive = marker == 0xC2 || marker == 0xC6 || marker == 0xCA || marker == 0xCE;
+                header.bitsPerComponent = in.u8(data);
+                header.height = in.u16(data + 1);
+                header.width = in.u16(data + 3);
+                header.components = in.u8(data + 5);
+                header.colorSpace = jpegColorSpace(header.components, adobeTransform);
+                return; // EXIF and Adobe segments always come before the frame
+            }
+            pos = data + length - 2;
+        }
+    }
+
+    private static ColorSpace jpegColorSpace(int components, int adobeTransform) {
+        switch (components) {
+            case 1:
+                return ColorSpace.GRAY;
+            case 3:
+                return adobeTransform == 0 ? ColorSpace.RGB : ColorSpace.YCBCR;
+            case 4:
+                return adobeTransform == 2 ? ColorSpace.YCCK : ColorSpace.CMYK;
+            default:
+                return ColorSpace.UNKNOWN;
+        }
+    }
+
+    private static void parsePng(Source in, ImageHeader header) throws IOException {
+        // IHDR is always the first chunk
+        header.width = in.s32(16);
+        header.height = in.s32(20);
+        header.bitsPerComponent = in.u8(24);
+        int colorType = in.u8(25);
+        header.progressive = in.u8(28) == 1; // Adam7 interlacing
+        header.hasAlpha = colorType == 4 || colorType == 6;
+        header.components = colorType == 0 ? 1 : colorType == 4 ? 2 : colorType == 6 ? 4 : 3;
+        header.colorSpace = colorType == 0 || colorType == 4 ? ColorSpace.GRAY : ColorSpace.RGB;
+    }
+
+    private static void parseWebp(Source in, ImageHeader header) throws IOException {
+        header.bitsPerComponent = 8;
+        header.colorSpace = ColorSpace.RGB;
+        int chunk = in.s32(12);
+        if (chunk == 0x56503820) { // "VP8 " - lossy, key frame header after the 3-byte start code
+            header.width = in.u16le(26) & 0x3FFF;
+            header.height = in.u16le(28) & 0x3FFF;
+            header.components = 3;
+        } else if (chunk == 0x5650384C) { // "VP8L" - lossless, 14-bit sizes packed after the signature
+            long bits = in.u8(21) | (in.u8(22) << 8) | (in.u8(23) << 16) | ((long) in.u8(24) << 24);
+            header.width = (int) (bits & 0x3FFF) + 1;
+            header.height = (int) ((bits >> 14) & 0x3FFF) + 1;
+            header.hasAlpha = ((bits >> 28) & 1) != 0;
+            header.components = header.hasAlpha ? 4 : 3;
+        } else if (chunk == 0x56503858) { // "VP8X" - extended, 24-bit canvas size
+            header.hasAlpha = (in.u8(20) & 0x10) != 0;
+            header.width = (in.u8(24) | (in.u8(25) << 8) | (in.u8(26) << 16)) + 1;
+            header.height = (in.u8(27) | (in.u8(28) << 8) | (in.u8(29) << 16)) + 1;
+            header.components = header.hasAlpha ? 4 : 3;
+        }
+    }
+
+    /**
+     * Reads the Orientation tag from an APP1 EXIF segment (starting with "Exif\0\0").
+     * Returns 1 if it is missing or malformed.
+     */
+    static int parseExifOrientation(byte[] exifData) {
+        try {
+            // Skip "Exif\0\0"
+            int offset = 6;
+
+            // Check byte order
+            boolean bigEndian = (exifData[offset] == 'M' && exifData[offset + 1] == 'M');
+            offset += 2;
+
+            // Skip TIFF magic number (0x002A)
+            offset += 2;
+
+            // Get offset to IFD0 (relative to the start of the TIFF header)
+            int ifd0Offset = 6 + readInt(exifData, offset, bigEndian, 4);
+
+            // Read number of directory entries
+            int numEntries = readInt(exifData, ifd0Offset, bigEndian, 2);
+            ifd0Offset += 2;
+
+            // Search for Orientation tag (0x0112)
+            for (int i = 0; i < numEntries; i++) {
+                int entryOffset = ifd0Offset + (i * 12);
+                int tag = readInt(exifData, entryOffset, bigEndian, 2);
+
+                if (tag == 0x0112) { // Orientation tag
+                    int orientation = readInt(exifData, entryOffset + 8, bigEndian, 2);
+                    return orientation >= 1 && orientation <= 8 ? orientation : 1;
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("EXIF parse error: " + e.getMessage(), e);
+        }
+        return 1;
+    }
+
+    /**
+     * Locates the JPEG thumbnail that IFD1 of an APP1 EXIF segment may hold
+     * (JPEGInterchangeFormat/-Length tags); exifStart is the segment data's
+     * position in the file. Leaves the header untouched if there is none.
+     */
+    private static void findExifThumbnail(byte[] exifData, long exifStart, ImageHeader header) {
+        try {
+            boolean bigEndian = exifData[6] == 'M' && exifData[7] == 'M';
+            int ifd0 = 6 + readInt(exifData, 10, bigEndian, 4);
+            int entries = readInt(exifData, ifd0, bigEndian, 2);
+            int next = readInt(exifData, ifd0 + 2 + entries * 12, bigEndian, 4);
+            if (next <= 0) {
+                return;
+            }
+            int ifd1 = 6 + next;
+            entries = readInt(exifData, ifd1, bigEndian, 2);
+            int offset = -1;
+            int length = -1;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd1 + 2 + i * 12;
+                int tag = readInt(exifData, entry, bigEndian, 2);
+                if (tag == 0x0201) {
+                    offset = readInt(exifData, entry + 8, bigEndian, 4);
+                } else if (tag == 0x0202) {
+                    length = readInt(exifData, entry + 8, bigEndian, 4);
+                }
+            }
+            // Offsets count from the TIFF header, right after "Exif\0\0"
+            if (offset > 0 && length > 0 && 6L + offset + length <= exifData.length) {
+                header.exifThumbnailOffset = exifStart + 6 + offset;
+                header.exifThumbnailLength = length;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Malformed or truncated: no thumbnail
+        }
+    }
+
+    private static int readInt(byte[] data, int offset, boolean bigEndian, int length) {
+        if (length == 2) {
+            if (bigEndian) {
+                return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+            } else {
+                return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+            }
+        } else if (length == 4) {
+            if (bigEndian) {
+                return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+                        ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+            } else {
+                return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) |
+                        ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+            }
+        }
+        return 0;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /** Stored width in pixels, before any EXIF orientation; 0 if unknown. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Stored height in pixels, before any EXIF orientation; 0 if unknown. */
+    public int getHeight() {
+        return height;
+    }
+
+    /** EXIF orientation 1-8 (JPEG only); 1 when absent. */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    public int getComponents() {
+        return components;
+    }
+
+    public ColorSpace getColorSpace() {
+        return colorSpace;
+    }
+
+    /** Progressive JPEG or interlaced PNG. */
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /** Baseline (SOF0) or extended sequential Huffman (SOF1) JPEG. */
+    public boolean isSequentialJpeg() {
+        return jpegFrameType == 0xC0 || jpegFrameType == 0xC1;
+    }
+
+    public int getBitsPerComponent() {
+        return bitsPerComponent;
+    }
+
+    public boolean hasAlpha() {
+        return hasAlpha;
+    }
+
+    /** Whether the EXIF data holds a JPEG thumbnail. */
+    public boolean hasExifThumbnail() {
+        return exifThumbnailLength > 0;
+    }
+
+    /** Position of the EXIF thumbnail's JPEG bytes in the file (or probed prefix). */
+    public long getExifThumbnailOffset() {
+        return exifThumbnailOffset;
+    }
+
+    public int getExifThumbnailLength() {
+        return exifThumbnailLength;
+    }
+
+    public boolean hasDimensions() {
+        return width > 0 && height > 0;
+    }
+
+    /** Name ImageIO knows the format by, or null if unknown. */
+    public String getImageIoFormatName() {
+        switch (format) {
+            case JPEG:
+                return "jpeg";
+            case PNG:
+                return "png";
+            case WEBP:
+                return "webp";
+            case GIF:
+                return "gif";
+            case BMP:
+                return "bmp";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Bytes of the file, served from a buffered window. The window starts as the
+     * head buffer; for a file, reads outside it move the window with a single
+     * positional channel read instead of going byte by byte.
+     */
+    private static final class Source {
+        private static final int WINDOW_BYTES = 8 * 1024;
+
+        private final FileChannel channel;
+        private ByteBuffer window;
+        private long windowStart;
+
+        Source(ByteBuffer head, FileChannel channel) {
+            this.window = head;
+            this.channel = channel;
+        }
+
+        int u8(long pos) throws IOException {
+            ensure(pos, 1);
+            return window.get((int) (pos - windowStart)) & 0xFF;
+        }
+
+        int u16(long pos) throws IOException {
+            return (u8(pos) << 8) | u8(pos + 1);
+        }
+
+        int u16le(long pos) throws IOException {
+            return u8(pos) | (u8(pos + 1) << 8);
+        }
+
+        int s32(long pos) throws IOException {
+            return (u16(pos) << 16) | u16(pos + 2);
+        }
+
+        int s32le(long pos) throws IOException {
+            return u16le(pos) | (u16le(pos + 2) << 16);
+        }
+
+        byte[] bytes(long pos, int length) throws IOException {
+            ensure(pos, length);
+            byte[] out = new byte[length];
+            ByteBuffer view = window.duplicate();
+            view.position((int) (pos - windowStart));
+            view.get(out);
+            return out;
+        }
+
+        private void ensure(long pos, int length) throws IOException {
+            if (pos >= windowStart && pos + length <= windowStart + window.limit()) {
+                return;
+            }
+            if (channel == null) {
+                throw new IndexOutOfBoundsException("Beyond probed prefix");
+            }
+            ByteBuffer next = ByteBuffer.allocate(Math.max(length, WINDOW_BYTES));
+            while (next.hasRemaining() && channel.read(next, pos + next.position()) > 0) {
+                // Fill as much as the file has
+            }
+            next.flip();
+            if (next.limit() < length) {
+                throw new java.io.EOFException();
+            }
+            window = next;
+            windowStart = pos;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package util;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+
+/**
+ * Recycles the large objects of the per-page path so the steady state
+ * allocates next to nothing:
+ *
+ * - pixel arrays, bucketed by size class (powers of two and 1.5x powers of
+ *   two, so at most a third is wasted), wrapped in BufferedImages on demand;
+ *   at most imageutil.pool.maxBytes (default 1/8 of max heap) is kept;
+ * - ImageIO readers and writers, reset when handed back and kept per format
+ *   for the next borrower on any thread, at most MAX_IDLE_CODECS of each;
+ *   the rest are disposed. None are tied to a thread, so container threads
+ *   never hold on to them (or, through them, to the webapp's classes).
+ *
+ * Arrays under POOLED_MIN_LENGTH are cheap to allocate and are not pooled.
+ * Only release what nobody references any more: a released image's pixels
+ * are handed to the next borrower.
+ */
+public final class ImagePool {
+
+    private static final int POOLED_MIN_LENGTH = 64 * 1024;
+
+    private static final long MAX_POOLED_BYTES = Long.getLong("imageutil.pool.maxBytes",
+            Runtime.getRuntime().maxMemory() / 8);
+
+    private static final Map<Integer, ConcurrentLinkedDeque<int[]>> INTS = new ConcurrentHashMap<>();
+    private static final Map<Integer, ConcurrentLinkedDeque<byte[]>> BYTES = new ConcurrentHashMap<>();
+    private static final AtomicLong POOLED_BYTES = new AtomicLong();
+
+    /** Idle readers or writers kept per format: one per pipeline thread. */
+    static final int MAX_IDLE_CODECS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // Most recently returned first, so the warmest one is reused
+    private static final Map<String, LinkedBlockingDeque<ImageReader>> READERS = new ConcurrentHashMap<>();
+    private static final Map<String, LinkedBlockingDeque<ImageWriter>> WRITERS = new ConcurrentHashMap<>();
+
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+    private static final ComponentColorModel BGR = new ComponentColorModel(
+            ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+    private static final ComponentColorModel GRAY = new ComponentColorModel(
+            ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+    static {
+        Metrics.gauge("imageutil_buffer_pool_bytes", "Pixel buffers held for reuse", POOLED_BYTES::get);
+    }
+
+    private ImagePool() {
+    }
+
+    /** Smallest size class holding length elements. */
+    static int sizeClass(int length) {
+        if (length <= POOLED_MIN_LENGTH || length > 1 << 30) {
+            return length;
+        }
+        int power = Integer.highestOneBit(length - 1) << 1; // next power of two
+        int threeQuarters = power / 4 * 3;
+        return length <= threeQuarters ? threeQuarters : power;
+    }
+
+    public static int[] borrowInts(int length) {
+        int size = sizeClass(length);
+        if (length > POOLED_MIN_LENGTH) {
+            ConcurrentLinkedDeque<int[]> bucket = INTS.get(size);
+            int[] array = bucket != null ? bucket.pollFirst() : null;
+            if (array != null) {
+                POOLED_BYTES.addAndGet(-4L * size);
+                Metrics.POOL_HITS.inc();
+                return array;
+            }
+            Metrics.POOL_MISSES.inc();
+        }
+        return new int[size];
+    }
+
+    public static byte[] borrowBytes(int length) {
+        int size = sizeClass(length);
+        if (length > POOLED_MIN_LENGTH) {
+            ConcurrentLinkedDeque<byte[]> bucket = BYTES.get(size);
+            byte[] array = bucket != null ? bucket.pollFirst() : null;
+            if (array != null) {
+                POOLED_BYTES.addAndGet(-size);
+                Metrics.POOL_HITS.inc();
+                return array;
+            }
+            Metrics.POOL_MISSES.inc();
+        }
+        return new byte[size];
+    }
+
+    public static void release(int[] array) {
+        if (array != null && isPoolable(array.length) && reserve(4L * array.length)) {
+            INTS.computeIfAbsent(array.length, k -> new ConcurrentLinkedDeque<>()).offerFirst(array);
+        }
+    }
+
+    public static void release(byte[] array) {
+        if (array != null && isPoolable(array.length) && reserve(array.length)) {
+            BYTES.computeIfAbsent(array.length, k -> new ConcurrentLinkedDeque<>()).offerFirst(array);
+        }
+    }
+
+    private static boolean isPoolable(int length) {
+        return length > POOLED_MIN_LENGTH && sizeClass(length) == length;
+    }
+
+    private static boolean reserve(long bytes) {
+        long current;
+        do {
+            current = POOLED_BYTES.get();
+            if (current + bytes > MAX_POOLED_BYTES) {
+                return false;
+            }
+        } while (!POOLED_BYTES.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /** A TYPE_INT_RGB image over a pooled array. Contents are undefined. */
+    public static BufferedImage borrowRgbImage(int width, int height) {
+        int length = width * height;
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(borrowInts(length), length),
+                width, height, width, RGB.getMasks(), null);
+        return new BufferedImage(RGB, raster, false, null);
+    }
+
+    /**
+     * A TYPE_3BYTE_BGR (bands == 3) or TYPE_BYTE_GRAY (bands == 1) image over a
+     * pooled array, e.g. as a decode destination. Contents are undefined.
+     */
+    public static BufferedImage borrowByteImage(int width, int height, int bands) {
+        int length = width * height * bands;
+        DataBufferByte buffer = new DataBufferByte(borrowBytes(length), length);
+        WritableRaster raster = Raster.createInterleavedRaster(buffer, width, height, width * bands, bands,
+                bands == 1 ? new int[] { 0 } : new int[] { 2, 1, 0 }, null);
+        return new BufferedImage(bands == 1 ? GRAY : BGR, raster, false, null);
+    }
+
+    /** Returns the pixels of an image to the pool; the image must not be used afterwards. */
+    public static void release(BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (buffer instanceof DataBufferInt && buffer.getNumBanks() == 1) {
+            release(((DataBufferInt) buffer).getData());
+        } else if (buffer instanceof DataBufferByte && buffer.getNumBanks() == 1) {
+            release(((DataBufferByte) buffer).getData());
+        }
+    }
+
+    /**
+     * An idle reader for the format (an ImageIO format name such as "jpeg"),
+     * or a new one if none is idle; null if ImageIO has none. Hand it back
+     * with returnReader, or discardReader if it failed.
+     */
+    public static ImageReader reader(String formatName) {
+        LinkedBlockingDeque<ImageReader> idle = READERS.get(formatName);
+        ImageReader reader = idle != null ? idle.pollFirst() : null;
+        if (reader == null) {
+            Iterator<ImageReader> found = ImageIO.getImageReadersByFormatName(formatName);
+            reader = found.hasNext() ? found.next() : null;
+        }
+        return reader;
+    }
+
+    /** Detaches the reader from its input and listeners and keeps it for reuse. */
+    public static void returnReader(String formatName, ImageReader reader) {
+        reader.reset();
+        if (!READERS.computeIfAbsent(formatName, k -> new LinkedBlockingDeque<>(MAX_IDLE_CODECS)).offerFirst(reader)) {
+            reader.dispose();
+        }
+    }
+
+    /** Drops a reader that failed mid-read instead of reusing it. */
+    public static void discardReader(ImageReader reader) {
+        reader.dispose();
+    }
+
+    /** An idle writer for the format, a new one if none is idle, or null if ImageIO has none. */
+    public static ImageWriter writer(String formatName) {
+        LinkedBlockingDeque<ImageWriter> idle = WRITERS.get(formatName);
+        ImageWriter writer = idle != null ? idle.pollFirst() : null;
+        if (writer == null) {
+            Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(formatName);
+            writer = found.hasNext() ? found.next() : null;
+        }
+        return writer;
+    }
+
+    public static void returnWriter(String formatName, ImageWriter writer) {
+        writer.reset();
+        if (!WRITERS.computeIfAbsent(formatName, k -> new LinkedBlockingDeque<>(MAX_IDLE_CODECS)).offerFirst(writer)) {
+            writer.dispose();
+        }
+    }
+
+    /** Drops a writer that failed mid-write instead of reusing it. */
+    public static void discardWriter(ImageWriter writer) {
+        writer.dispose();
+    }
+}
@@ -1,218 +1,1604 @@
 package util;
 
 import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.*;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.util.Matrix;
 
 public class ImageUtils {
 
+    private static final Log LOG = LogFactory.getLog(ImageUtils.class);
+
+    /** Longest side, in pixels, of an image embedded in the PDF. */
+    private static final int MAX_IMAGE_DIMENSION = 2048;
+
+    /** A4 page, in points, portrait; landscape images get it rotated. */
+    private static final float PAGE_WIDTH = 595;
+    private static final float PAGE_HEIGHT = 842;
+
+    /** Space left around the image on each side, in points. */
+    private static final float PAGE_MARGIN = 20;
+
+    /** Lowest JPEG quality a page is re-encoded at to meet the output size budget. */
+    private static final float MIN_BUDGET_QUALITY = 0.40f;
+
+    /** Bytes of a page besides its image stream (page, content stream, xref entries). */
+    private static final long PAGE_OVERHEAD_BYTES = 1024;
+
+    /** Bytes of the PDF besides its pages (header, catalog, trailer). */
+    private static final long DOCUMENT_OVERHEAD_BYTES = 2048;
+
+    /** A page's share of the size budget never goes below this, however many images. */
+    private static final long MIN_PAGE_BUDGET_BYTES = 8 * 1024;
+
+    /**
+     * Subsampled rasters larger than this many pixels are decoded in horizontal
+     * bands and area-averaged down to the target size band by band, so the
+     * full raster never sits on the heap (imageutil.decode.bandedPixels). The
+     * default stays just above a 12 MP phone photo, which decodes faster in one go.
+     */
+    private static final long BANDED_DECODE_PIXELS = Long.getLong("imageutil.decode.bandedPixels", 12_500_000L);
+
+    /**
+     * PDF pages that would render to more pixels than this at the requested dpi
+     * are rendered at a lower dpi instead (imageutil.render.maxPixels).
+     */
+    private static final long MAX_RENDER_PIXELS = Long.getLong("imageutil.render.maxPixels", 40_000_000L);
+
+    /**
+     * Identifies the re-encode path in PageCache keys, next to the size and
+     * quality of each page. Change it whenever the output of the re-encode path
+     * changes, so stale pages are not reused.
+     */
+    private static final String CACHE_VERSION = "v3";
+
     public static String imageToPdf(String imgPath, String output) throws Exception {
         // Use the multiple images method for single image (backward compatibility)
         return imagesToPdf(new String[] { imgPath }, output);
     }
 
     public static String imagesToPdf(String[] imgPaths, String output) throws Exception {
+        return imagesToPdf(imgPaths, output, ConversionOptions.defaults());
+    }
+
+    /**
+     * Converts the given images to a single PDF, one page per image, and saves it
+     * to the given file path.
+     */
+    public static String imagesToPdf(String[] imgPaths, String output, ConversionOptions options)
+            throws Exception {
+        try (Conversion conversion = startConversion(imgPaths, options)) {
+            return conversion.saveTo(output);
+        }
+    }
+
+    /**
+     * Same as imagesToPdf, but writes the PDF straight to the given stream (e.g. an
+     * HTTP response) instead of a file. Nothing is written until every page has
+     * been built, so on failure the stream is untouched and the caller can still
+     * report an error. The stream is closed when done.
+     *
+     * @return number of pages written
+     */
+    public static int imagesToPdf(String[] imgPaths, java.io.OutputStream output, ConversionOptions options)
+            throws Exception {
+        try (Conversion conversion = startConversion(imgPaths, options)) {
+            return conversion.writeTo(output);
+        }
+    }
+
+    /**
+     * Starts a conversion whose images are not all known yet, e.g. because they
+     * are still being uploaded: each image passed to add() starts processing
+     * right away. The caller must close it.
+     */
+    public static Conversion startConversion(ConversionOptions options) {
+        return new Conversion(options, 0);
+    }
+
+    /**
+     * Same as above when the number of images is known up front, which the
+     * options' output size budget needs to give each page its share.
+     */
+    public static Conversion startConversion(ConversionOptions options, int expectedImages) {
+        return new Conversion(options, Math.max(0, expectedImages));
+    }
+
+    private static Conversion startConversion(String[] imgPaths, ConversionOptions options) throws Exception {
         if (imgPaths == null || imgPaths.length == 0) {
             throw new IllegalArgumentException("At least one image path is required");
         }
 
-        PDDocument doc = new PDDocument();
+        java.util.List<String> paths = new java.util.ArrayList<>();
+        for (String imgPath : imgPaths) {
+            if (imgPath != null && !imgPath.trim().isEmpty()) {
+                paths.add(imgPath); // Skip empty paths
+            }
+        }
 
+        Conversion conversion = new Conversion(options, paths.size());
         try {
-            // Process each image and add it as a page
-            for (String imgPath : imgPaths) {
-                if (imgPath == null || imgPath.trim().isEmpty()) {
-                    continue; // Skip empty paths
+            for (String imgPath : paths) {
+                conversion.add(imgPath);
+            }
+            return conversion;
+        } catch (Exception e) {
+            conversion.close();
+            throw e;
+        }
+    }
+
+    /** Receives the finished document; it is closed with the conversion afterwards. */
+    private interface DocumentSink {
+        void accept(PDDocument doc) throws java.io.IOException;
+    }
+
+    /** Counts the bytes written through it, for the output metrics. */
+    private static final class CountingOutputStream extends java.io.FilterOutputStream {
+        long count;
+
+        CountingOutputStream(java.io.OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws java.io.IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws java.io.IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * A PDF being built one image at a time, one page per image.
+     *
+     * The CPU-heavy per-image work (decode, orient, JPEG encode) runs on a shared
+     * worker pool, at most {@code options.getMaxConcurrency()} images at a time for
+     * this conversion; add() blocks while that window is full. Pages are attached
+     * to the document on the calling thread, in the order the images were added,
+     * because PDDocument is not thread-safe. With a window of 1 everything runs
+     * on the calling thread, unless that is a virtual thread.
+     *
+     * The document may keep up to {@code options.getDocumentHeapBytes()} of stream
+     * data on the heap, taken from the global MemoryBudget.DOCUMENT_HEAP; anything
+     * beyond that, or everything if the global budget is used up, goes to a
+     * scratch file so large batches cost disk I/O rather than heap.
+     *
+     * Meant for a single thread: add the images, save once, then close.
+     *
+     * A PdfEdit appends through a Conversion on the document it loaded; the
+     * document then stays open on close() and is saved by the edit.
+     */
+    public static final class Conversion implements AutoCloseable {
+        private final ConversionOptions options;
+        private final int expected; // images announced up front, 0 if unknown
+        private final int window;
+        private final long pageBudget; // bytes per page, 0 for no limit
+        private final long heapBytes;
+        private final boolean reserved;
+        private final PDDocument doc;
+        private final boolean ownsDocument;
+        private final java.util.ArrayDeque<String> inFlightPaths = new java.util.ArrayDeque<>();
+        private final java.util.ArrayDeque<java.util.concurrent.Future<PreparedPage>> inFlight =
+                new java.util.ArrayDeque<>();
+        // Images embedded so far, by content hash, for pages to share
+        private final java.util.Map<String, PDImageXObject> images = new java.util.HashMap<>();
+        private final long start = System.nanoTime();
+        private int added;
+        private int done;
+        private boolean saved;
+        private boolean closed;
+
+        private Conversion(ConversionOptions options, int expected) {
+            this(options, expected, null);
+        }
+
+        /** existing: a loaded document to add the pages to, null for a new one. */
+        private Conversion(ConversionOptions options, int expected, PDDocument existing) {
+            this.options = options;
+            this.expected = expected;
+            int concurrency = options.getMaxConcurrency();
+            this.window = Math.max(1, expected > 0 ? Math.min(concurrency, expected) : concurrency);
+            this.pageBudget = pageBudget(options.getMaxOutputBytes(), expected);
+
+            Metrics.CONVERSIONS_IN_FLIGHT.inc();
+            if (existing != null) {
+                // Its memory setting was chosen when it was loaded
+                heapBytes = 0;
+                reserved = false;
+                ownsDocument = false;
+                doc = existing;
+                return;
+            }
+
+            heapBytes = options.getDocumentHeapBytes();
+            reserved = heapBytes > 0 && MemoryBudget.DOCUMENT_HEAP.tryReserve(heapBytes);
+
+            MemoryUsageSetting memory;
+            if (reserved) {
+                memory = MemoryUsageSetting.setupMixed(heapBytes);
+            } else {
+                LOG.debug("Document heap budget exhausted, buffering PDF in scratch file only");
+                memory = MemoryUsageSetting.setupTempFileOnly();
+            }
+            if (options.getScratchDir() != null) {
+                memory.setTempDir(options.getScratchDir());
+            }
+
+            ownsDocument = true;
+            doc = new PDDocument(memory);
+        }
+
+        /**
+         * Queues one image. An image that cannot be converted is logged and
+         * skipped, as in imagesToPdf.
+         */
+        public void add(String imgPath) throws Exception {
+            add(imgPath, null);
+        }
+
+        /**
+         * Same as above for an image whose header the caller has already
+         * probed, e.g. while it was being uploaded, so it is not read again;
+         * null probes the file.
+         */
+        public void add(String imgPath, ImageHeader header) throws Exception {
+            if (closed || saved) {
+                throw new IllegalStateException("Conversion already finished");
+            }
+            if (imgPath == null || imgPath.trim().isEmpty()) {
+                return;
+            }
+            added++;
+
+            if (window == 1 && !VirtualThreads.isVirtual(Thread.currentThread())) {
+                // Sequential mode: everything on the calling thread. A virtual
+                // thread hands the CPU work to the pipeline pool instead, so it
+                // never pins a carrier thread
+                try {
+                    addPreparedPage(doc, preparePage(imgPath, header, options, pageBudget), images);
+                } catch (Exception e) {
+                    // If one image fails, continue with others
+                    logImageFailure(imgPath, e);
                 }
+                reportProgress(options, ++done, total());
+                return;
+            }
 
+            inFlightPaths.add(imgPath);
+            inFlight.add(PipelineExecutorHolder.INSTANCE.submit(() -> preparePage(imgPath, header, options, pageBudget)));
+
+            // Keep the window full, then attach whatever is ready so finished
+            // pages do not wait in memory for the images behind them
+            while (inFlight.size() > window) {
+                attachOldest();
+            }
+            while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                attachOldest();
+            }
+        }
+
+        /**
+         * Waits for the images in flight and adds their pages, so the
+         * conversion holds no decoded images until the next add(), e.g. while
+         * its caller waits for memory.
+         */
+        public void finishPending() throws Exception {
+            if (closed || saved) {
+                throw new IllegalStateException("Conversion already finished");
+            }
+            attachAll();
+        }
+
+        /** Number of images added so far. */
+        public int getImageCount() {
+            return added;
+        }
+
+        /** Waits for the remaining images and saves the PDF to the given path. */
+        public String saveTo(String output) throws Exception {
+            save(d -> {
+                d.save(output);
+                Metrics.BYTES_OUT.add(new File(output).length());
+            });
+            return output;
+        }
+
+        /**
+         * Waits for the remaining images and writes the PDF to the stream, which
+         * is closed when done. Nothing is written if no page could be built.
+         *
+         * @return number of pages written
+         */
+        public int writeTo(java.io.OutputStream output) throws Exception {
+            int[] pages = new int[1];
+            save(d -> {
+                pages[0] = d.getNumberOfPages();
+                CountingOutputStream counting = new CountingOutputStream(output);
                 try {
-                    // Read image with subsampling to prevent OOM on large files
-                    File imageFile = new File(imgPath);
-                    BufferedImage bufferedImage = readSubsampledImage(imageFile, 2048);
-
-                    // Get actual image dimensions (as uploaded, without EXIF correction)
-                    int imgWidth = bufferedImage.getWidth();
-                    int imgHeight = bufferedImage.getHeight();
-
-                    // Get EXIF orientation
-                    int orientation = getExifOrientation(imageFile);
-                    System.out.println("DEBUG: Image " + imgPath);
-                    System.out.println("DEBUG: Dimensions " + imgWidth + "x" + imgHeight);
-                    System.out.println("DEBUG: Detected EXIF Orientation: " + orientation);
-
-                    // FALLBACK: If no EXIF orientation (=1) and image is landscape with phone
-                    // camera aspect ratio
-                    // Auto-rotate to portrait since phone photos are typically taken in portrait
-                    if (orientation == 1 && imgWidth > imgHeight) {
-                        float aspectRatio = (float) imgWidth / imgHeight;
-                        // Phone cameras typically use 4:3 (1.33) or 16:9 (1.78) ratios
-                        // 4080x3060 = 1.33 (4:3)
-                        if (aspectRatio >= 1.3f && aspectRatio <= 1.4f) {
-                            System.out.println("DEBUG: Auto-rotating landscape phone photo (4:3 ratio)");
-                            orientation = 6; // Rotate 90° CW
+                    d.save(counting);
+                } finally {
+                    Metrics.BYTES_OUT.add(counting.count);
+                }
+            });
+            return pages[0];
+        }
+
+        private void save(DocumentSink sink) throws Exception {
+            if (closed || saved) {
+                throw new IllegalStateException("Conversion already finished");
+            }
+            if (added == 0) {
+                throw new IllegalArgumentException("At least one image path is required");
+            }
+            attachAll();
+
+            // Check if we have at least one valid page
+            if (doc.getNumberOfPages() == 0) {
+                throw new Exception("No valid images could be processed");
+            }
+
+            long saveStart = System.nanoTime();
+            sink.accept(doc);
+            Metrics.SAVE.observeSince(saveStart);
+            Metrics.PAGES_PER_CONVERSION.observe(doc.getNumberOfPages());
+            saved = true;
+        }
+
+        /**
+         * Records that the pages were saved by the PdfEdit whose document they
+         * went into, so close() counts the conversion as finished.
+         */
+        private void markSaved() {
+            saved = true;
+        }
+
+        /** Waits for the images still in flight and adds their pages. */
+        private void attachAll() throws Exception {
+            while (!inFlight.isEmpty()) {
+                attachOldest();
+            }
+        }
+
+        private void attachOldest() throws Exception {
+            String imgPath = inFlightPaths.poll();
+            java.util.concurrent.Future<PreparedPage> future = inFlight.poll();
+            try {
+                addPreparedPage(doc, future.get(), images);
+            } catch (java.util.concurrent.ExecutionException e) {
+                // If one image fails, continue with others
+                logImageFailure(imgPath, e.getCause() != null ? e.getCause() : e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Exception("Interrupted while converting images", e);
+            } catch (Exception e) {
+                logImageFailure(imgPath, e);
+            }
+            reportProgress(options, ++done, total());
+        }
+
+        private int total() {
+            return Math.max(expected, added);
+        }
+
+        /** Discards unfinished work and releases the document and its memory. */
+        @Override
+        public void close() throws java.io.IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                // Only non-empty if we are bailing out early; release whatever is left
+                for (java.util.concurrent.Future<PreparedPage> future : inFlight) {
+                    if (!future.cancel(true) && future.isDone()) {
+                        try {
+                            future.get().dispose();
+                        } catch (Exception ignored) {
+                            // Failed or cancelled, nothing to release
                         }
                     }
+                }
+                inFlight.clear();
+                inFlightPaths.clear();
+                if (ownsDocument) {
+                    doc.close();
+                }
+            } finally {
+                Metrics.CONVERSIONS_IN_FLIGHT.dec();
+                if (saved) {
+                    Metrics.CONVERSION_SECONDS.observeSince(start);
+                } else {
+                    Metrics.CONVERSIONS_FAILED.inc();
+                }
+                if (reserved) {
+                    MemoryBudget.DOCUMENT_HEAP.release(heapBytes);
+                }
+            }
+        }
+    }
 
-                    // Determine if image is portrait or landscape based on raw dimensions
-                    boolean isPortrait = imgHeight > imgWidth;
-
-                    // Create page with appropriate dimensions matching the RAW image
-                    PDPage page;
-                    if (isPortrait) {
-                        // Portrait: Standard A4 (595 x 842 points)
-                        page = new PDPage(new PDRectangle(595, 842));
-                    } else {
-                        // Landscape: A4 rotated (842 x 595 points)
-                        page = new PDPage(new PDRectangle(842, 595));
-                    }
+    /**
+     * Each page's share of the output size budget, or 0 if there is no budget
+     * or the number of pages is not known.
+     */
+    private static long pageBudget(long maxOutputBytes, int expected) {
+        if (maxOutputBytes <= 0) {
+            return 0;
+        }
+        if (expected == 0) {
+            LOG.warn("Output size budget ignored: the number of images is not known up front");
+            return 0;
+        }
+        return Math.max(MIN_PAGE_BUDGET_BYTES,
+                (maxOutputBytes - DOCUMENT_OVERHEAD_BYTES) / expected - PAGE_OVERHEAD_BYTES);
+    }
 
-                    doc.addPage(page);
-
-                    // Compress, optimize, AND rotate the image logic
-                    // This rotates the PIXELS of the scaled down image, so it is memory safe
-                    BufferedImage optimizedImage = compressAndOrientImage(bufferedImage, orientation);
-
-                    // Update page orientation based on the FINAL processing image
-                    // If the rotation changed the aspect ratio, we might need to swap the page
-                    // dimensions
-                    // But actually, we already decided page based on RAW dimensions.
-                    // If RAW was Landscape (4000x3000) and EXIF was 6 (Rotate 90):
-                    // isPortrait (Raw) = false. Page = Landscape.
-                    // optimizedImage = Rotated 90 -> Portrait (Height > Width).
-                    // So we are putting a Portrait Image on a Landscape Page.
-                    // This is WRONG. We want a Portrait Page.
-
-                    // CORRECTION: We should decide page orientation AFTER processing the image.
-                    boolean finalIsPortrait = optimizedImage.getHeight() > optimizedImage.getWidth();
-                    if (finalIsPortrait) {
-                        page.setMediaBox(new PDRectangle(595, 842)); // Set to Portrait
-                        page.setRotation(0);
-                    } else {
-                        page.setMediaBox(new PDRectangle(842, 595)); // Set to Landscape
-                        page.setRotation(0);
-                    }
+    /**
+     * Opens a PDF for changes that leave its existing pages as they are:
+     * appending images and reordering or removing pages. See PdfEdit. The
+     * caller must close it.
+     */
+    public static PdfEdit editPdf(File pdf, ConversionOptions options) throws java.io.IOException {
+        return new PdfEdit(pdf, options);
+    }
 
-                    // Convert optimized image to JPEG for compression, then create PDF image
-                    File tempJpeg = null;
-                    PDImageXObject img = null;
-                    try {
-                        tempJpeg = File.createTempFile("pdf_temp_", ".jpg");
+    /**
+     * Changes to an existing PDF, saved as an incremental update: the original
+     * bytes are copied unchanged and only new and changed objects are written
+     * after them. Appending images costs what converting just those images
+     * costs, and reordering or removing pages rewrites only the page tree;
+     * the images already embedded are never decoded or re-encoded.
+     *
+     * Appended images go through the same pipeline as in Conversion; the
+     * options' output size budget does not apply to them. Removed pages are
+     * only dropped from the page tree, so their images still take up space in
+     * the file.
+     *
+     * Meant for a single thread, and for one edit of a file at a time: append,
+     * set the order, save once, then close.
+     */
+    public static final class PdfEdit implements AutoCloseable {
+        private final File pdf;
+        private final ConversionOptions options;
+        private final PDDocument doc;
+        private final int originalPages;
+        private Conversion appended;
+        private String pageOrder;
+        private boolean saved;
+        private boolean closed;
+
+        private PdfEdit(File pdf, ConversionOptions options) throws java.io.IOException {
+            this.pdf = pdf;
+            this.options = options;
+            // Existing streams stay in the file; new ones are buffered on disk
+            MemoryUsageSetting memory = MemoryUsageSetting.setupTempFileOnly();
+            if (options.getScratchDir() != null) {
+                memory.setTempDir(options.getScratchDir());
+            }
+            doc = PDDocument.load(pdf, memory);
+            if (doc.isEncrypted()) {
+                doc.close();
+                throw new java.io.IOException("Encrypted PDFs cannot be edited");
+            }
+            originalPages = doc.getNumberOfPages();
+        }
+
+        /** Number of pages the PDF had when it was opened. */
+        public int getPageCount() {
+            return originalPages;
+        }
+
+        /** Number of images appended so far. */
+        public int getAppendedCount() {
+            return appended == null ? 0 : appended.getImageCount();
+        }
+
+        /**
+         * Queues one image to be added as a page at the end. It starts
+         * processing right away; an image that cannot be converted is logged
+         * and skipped, as in imagesToPdf.
+         */
+        public void append(String imgPath) throws Exception {
+            append(imgPath, null);
+        }
+
+        /** Same as above for an image whose header the caller has already probed. */
+        public void append(String imgPath, ImageHeader header) throws Exception {
+            if (closed || saved) {
+                throw new IllegalStateException("Edit already finished");
+            }
+            if (appended == null) {
+                appended = new Conversion(options, 0, doc);
+            }
+            appended.add(imgPath, header);
+        }
+
+        /**
+         * Sets the pages of the saved PDF and their order, e.g. "1-3,7,4-6":
+         * pages not listed are removed. Page numbers count the existing pages
+         * first, then the appended images that could be converted, in the
+         * order they were appended. null keeps every page in order.
+         */
+        public void setPageOrder(String pageOrder) {
+            this.pageOrder = pageOrder == null || pageOrder.trim().isEmpty() ? null : pageOrder.trim();
+        }
+
+        /**
+         * Waits for the appended images, applies the page order and saves the
+         * changes to the PDF in place. The file is replaced atomically, so a
+         * reader never sees a half-written PDF.
+         *
+         * @return number of pages in the saved PDF
+         */
+        public int save() throws Exception {
+            if (closed || saved) {
+                throw new IllegalStateException("Edit already finished");
+            }
+            if (appended != null) {
+                appended.attachAll();
+                if (doc.getNumberOfPages() == originalPages && pageOrder == null) {
+                    throw new Exception("No valid images could be processed");
+                }
+            }
+
+            int pageCount = doc.getNumberOfPages();
+            int[] order = pageOrder == null ? null : parsePageOrder(pageOrder, pageCount);
+            if (pageCount == originalPages && (order == null || isIdentity(order, pageCount))) {
+                LOG.debug("Nothing to change in " + pdf.getName());
+                markSaved();
+                return pageCount;
+            }
+
+            long saveStart = System.nanoTime();
+            rebuildPageTree(doc, order);
+            long before = pdf.length();
+            File part = File.createTempFile(pdf.getName() + ".", ".part", pdf.getAbsoluteFile().getParentFile());
+            try {
+                try (java.io.OutputStream out = new java.io.BufferedOutputStream(new java.io.FileOutputStream(part))) {
+                    doc.saveIncremental(out);
+                }
+                pageCount = doc.getNumberOfPages();
+                markSaved();
+                // Release the original before replacing it
+                close();
+                java.nio.file.Files.move(part.toPath(), pdf.toPath(),
+                        java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                        java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                part.delete();
+            }
+            Metrics.SAVE.observeSince(saveStart);
+            Metrics.BYTES_OUT.add(pdf.length() - before);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Saved " + pdf.getName() + ": " + originalPages + " -> " + pageCount + " pages, "
+                        + (pdf.length() - before) + " bytes appended");
+            }
+            return pageCount;
+        }
 
-                        // Write as JPEG with compression
-                        java.util.Iterator<javax.imageio.ImageWriter> writers = javax.imageio.ImageIO
-                                .getImageWritersByFormatName("jpeg");
+        private void markSaved() {
+            saved = true;
+            if (appended != null) {
+                appended.markSaved();
+            }
+        }
 
-                        if (!writers.hasNext()) {
-                            throw new Exception("No JPEG writer available");
+        /** Discards unsaved changes and releases the document. */
+        @Override
+        public void close() throws java.io.IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (appended != null) {
+                    appended.close();
+                }
+            } finally {
+                doc.close();
+            }
+        }
+    }
+
+    /** Whether the order keeps all pageCount pages where they are. */
+    private static boolean isIdentity(int[] order, int pageCount) {
+        if (order.length != pageCount) {
+            return false;
+        }
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] != i + 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the page tree with a single node holding the pages in the
+     * given order (1-based page numbers; null keeps them all in order), and
+     * marks what changed for an incremental save. Pages keep the attributes
+     * they inherited from intermediate nodes.
+     */
+    private static void rebuildPageTree(PDDocument doc, int[] order) {
+        java.util.List<PDPage> pages = new java.util.ArrayList<>();
+        for (PDPage page : doc.getPages()) {
+            pages.add(page);
+        }
+        COSDictionary root = doc.getPages().getCOSObject();
+        COSArray kids = new COSArray();
+        int count = order == null ? pages.size() : order.length;
+        for (int i = 0; i < count; i++) {
+            COSDictionary page = pages.get(order == null ? i : order[i] - 1).getCOSObject();
+            if (page.getCOSDictionary(COSName.PARENT) != root) {
+                for (COSName key : new COSName[] { COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX,
+                        COSName.ROTATE }) {
+                    if (!page.containsKey(key)) {
+                        COSBase inherited = PDPageTree.getInheritableAttribute(page, key);
+                        if (inherited != null) {
+                            page.setItem(key, inherited);
                         }
+                    }
+                }
+                page.setItem(COSName.PARENT, root);
+                page.setNeedToBeUpdated(true);
+            }
+            kids.add(page);
+        }
+        root.setItem(COSName.KIDS, kids);
+        root.setInt(COSName.COUNT, kids.size());
+        root.setNeedToBeUpdated(true);
+        doc.getDocumentCatalog().getCOSObject().setNeedToBeUpdated(true);
+    }
 
-                        javax.imageio.ImageWriter jpegWriter = writers.next();
-                        javax.imageio.stream.ImageOutputStream ios = javax.imageio.ImageIO
-                                .createImageOutputStream(tempJpeg);
-                        jpegWriter.setOutput(ios);
-
-                        // Set JPEG compression quality (0.85 = 85% quality, good balance)
-                        javax.imageio.ImageWriteParam jpegParams = jpegWriter.getDefaultWriteParam();
-                        jpegParams.setCompressionMode(javax.imageio.ImageWriteParam.MODE_EXPLICIT);
-                        jpegParams.setCompressionQuality(0.85f);
-
-                        jpegWriter.write(null, new javax.imageio.IIOImage(optimizedImage, null, null), jpegParams);
-                        jpegWriter.dispose();
-                        ios.close();
-
-                        // Create PDF image directly from the compressed file
-                        // This preserves the JPEG compression and is much more memory efficient
-                        img = PDImageXObject.createFromFile(tempJpeg.getAbsolutePath(), doc);
-
-                    } catch (Exception compressionError) {
-                        System.err.println("JPEG compression failed, using optimized image directly: "
-                                + compressionError.getMessage());
-                        compressionError.printStackTrace();
-                        // Fallback: use optimized image logic via LosslessFactory (heavier but safe
-                        // fallback)
-                        img = LosslessFactory.createFromImage(doc, optimizedImage);
-                    } finally {
-                        if (tempJpeg != null && tempJpeg.exists()) {
-                            try {
-                                tempJpeg.delete();
-                            } catch (Exception e) {
-                                // Ignore cleanup errors
-                            }
+    /** Receives the pages of a PdfRendering as images, in page order. */
+    public interface RenderedPageSink {
+        /**
+         * @param pageNumber 1-based page number
+         * @param image      the encoded image; only valid during the call
+         */
+        void accept(int pageNumber, ByteArrayImageOutputStream image) throws java.io.IOException;
+    }
+
+    /**
+     * Opens a PDF to render pages of it to images. Fails on an unreadable PDF or
+     * a page range outside the document, before anything is rendered. The
+     * caller must close it.
+     */
+    public static PdfRendering startRendering(File pdf, RenderOptions options) throws java.io.IOException {
+        return new PdfRendering(pdf, options);
+    }
+
+    /**
+     * Renders the selected pages of a PDF to JPEG, PNG or WebP.
+     *
+     * Pages are rendered on the shared worker pool, at most
+     * {@code options.getMaxConcurrency()} at a time. PDDocument is not
+     * thread-safe, so each page is rendered on a copy of the document checked
+     * out of a pool of at most that many, loaded as they are first needed,
+     * starting with the one opened to count the pages. Finished pages
+     * are handed to the sink on the calling thread, in page order, as soon as
+     * they and the pages before them are ready.
+     */
+    public static final class PdfRendering implements AutoCloseable {
+        private final File pdf;
+        private final RenderOptions options;
+        private final java.util.Queue<PDDocument> documents = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        private final java.util.concurrent.BlockingQueue<PDDocument> idle =
+                new java.util.concurrent.LinkedBlockingQueue<>();
+        private final java.util.concurrent.atomic.AtomicInteger loaded =
+                new java.util.concurrent.atomic.AtomicInteger(1); // the constructor's copy
+        private final int pageCount;
+        private final int[] pages;
+        private final float[] dpi; // per selected page, after the pixel cap
+        private final long[] pixels;
+        private volatile boolean closed;
+
+        private PdfRendering(File pdf, RenderOptions options) throws java.io.IOException {
+            this.pdf = pdf;
+            this.options = options;
+            PDDocument doc = loadForRendering(pdf);
+            documents.add(doc);
+            idle.add(doc);
+            try {
+                pageCount = doc.getNumberOfPages();
+                pages = parsePageRange(options.getPages(), pageCount);
+                dpi = new float[pages.length];
+                pixels = new long[pages.length];
+                for (int i = 0; i < pages.length; i++) {
+                    PDRectangle box = doc.getPage(pages[i] - 1).getCropBox();
+                    double points = (double) box.getWidth() * box.getHeight();
+                    double scale = (double) options.getDpi() / 72;
+                    // Scale down pages that would exceed the pixel cap, keeping their aspect ratio
+                    scale = Math.min(scale, Math.sqrt(MAX_RENDER_PIXELS / Math.max(1, points)));
+                    dpi[i] = (float) (scale * 72);
+                    pixels[i] = (long) (points * scale * scale);
+                }
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /** Number of pages in the PDF. */
+        public int getPageCount() {
+            return pageCount;
+        }
+
+        /** The selected pages, 1-based, in the order they will be rendered. */
+        public int[] getPages() {
+            return pages.clone();
+        }
+
+        /**
+         * Peak heap the rendering needs, for AdmissionControl: the largest
+         * selected pages, as many as render at once, each as the rendered
+         * raster plus PDFBox's working copy.
+         */
+        public long estimateProcessingBytes() {
+            long[] sorted = pixels.clone();
+            java.util.Arrays.sort(sorted);
+            long total = 0;
+            for (int i = 0; i < Math.min(window(), sorted.length); i++) {
+                total += sorted[sorted.length - 1 - i] * 4 * 2;
+            }
+            return total;
+        }
+
+        /**
+         * Renders the selected pages and hands each to the sink. A page that
+         * cannot be rendered is logged and skipped; an exception from the sink
+         * stops the rendering.
+         *
+         * @return number of pages handed to the sink
+         */
+        public int renderTo(RenderedPageSink sink) throws Exception {
+            if (closed) {
+                throw new IllegalStateException("Rendering already closed");
+            }
+            int rendered = 0;
+            if (window() == 1 && !VirtualThreads.isVirtual(Thread.currentThread())) {
+                for (int i = 0; i < pages.length; i++) {
+                    ByteArrayImageOutputStream image;
+                    try {
+                        image = renderPage(i);
+                    } catch (Exception e) {
+                        logPageFailure(pages[i], e);
+                        continue;
+                    }
+                    rendered += deliver(sink, pages[i], image);
+                }
+                return rendered;
+            }
+
+            java.util.ArrayDeque<Integer> inFlightPages = new java.util.ArrayDeque<>();
+            java.util.ArrayDeque<java.util.concurrent.Future<ByteArrayImageOutputStream>> inFlight =
+                    new java.util.ArrayDeque<>();
+            try {
+                for (int i = 0; i < pages.length; i++) {
+                    int index = i;
+                    inFlightPages.add(pages[i]);
+                    inFlight.add(PipelineExecutorHolder.INSTANCE.submit(() -> renderPage(index)));
+                    while (inFlight.size() > window()) {
+                        rendered += deliverOldest(sink, inFlightPages, inFlight);
+                    }
+                    while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                        rendered += deliverOldest(sink, inFlightPages, inFlight);
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    rendered += deliverOldest(sink, inFlightPages, inFlight);
+                }
+            } finally {
+                // Only non-empty if the sink failed, e.g. the client went away
+                for (java.util.concurrent.Future<ByteArrayImageOutputStream> future : inFlight) {
+                    if (!future.cancel(true) && future.isDone()) {
+                        try {
+                            future.get().release();
+                        } catch (Exception ignored) {
+                            // Failed or cancelled, nothing to release
                         }
                     }
+                }
+            }
+            return rendered;
+        }
 
-                    PDPageContentStream cs = new PDPageContentStream(doc, page);
+        private int window() {
+            return Math.max(1, Math.min(options.getMaxConcurrency(), pages.length));
+        }
 
-                    // Calculate image dimensions to fit page while maintaining aspect ratio
-                    float pageWidth = page.getMediaBox().getWidth() - 40; // 20px margin on each side
-                    float pageHeight = page.getMediaBox().getHeight() - 40; // 20px margin on each side
+        /** Copies of the document loaded so far; never more than window(). */
+        int loadedDocuments() {
+            return documents.size();
+        }
 
-                    float finalImgWidth = img.getWidth();
-                    float finalImgHeight = img.getHeight();
+        private int deliverOldest(RenderedPageSink sink, java.util.ArrayDeque<Integer> inFlightPages,
+                java.util.ArrayDeque<java.util.concurrent.Future<ByteArrayImageOutputStream>> inFlight)
+                throws Exception {
+            int pageNumber = inFlightPages.poll();
+            ByteArrayImageOutputStream image;
+            try {
+                image = inFlight.poll().get();
+            } catch (java.util.concurrent.ExecutionException e) {
+                logPageFailure(pageNumber, e.getCause() != null ? e.getCause() : e);
+                return 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Exception("Interrupted while rendering pages", e);
+            }
+            return deliver(sink, pageNumber, image);
+        }
 
-                    // Calculate scaling to fit within page bounds
-                    float scaleX = pageWidth / finalImgWidth;
-                    float scaleY = pageHeight / finalImgHeight;
-                    float scale = Math.min(scaleX, scaleY); // Use smaller scale to fit both dimensions
+        private int deliver(RenderedPageSink sink, int pageNumber, ByteArrayImageOutputStream image)
+                throws java.io.IOException {
+            try {
+                sink.accept(pageNumber, image);
+                return 1;
+            } finally {
+                image.release();
+            }
+        }
 
-                    float scaledWidth = finalImgWidth * scale;
-                    float scaledHeight = finalImgHeight * scale;
+        /** Renders and encodes one page on a copy of the document from the pool. */
+        private ByteArrayImageOutputStream renderPage(int index) throws Exception {
+            PDDocument doc = checkOut();
+            BufferedImage image;
+            long start = System.nanoTime();
+            try {
+                image = new PDFRenderer(doc).renderImageWithDPI(pages[index] - 1, dpi[index], ImageType.RGB);
+            } finally {
+                idle.add(doc);
+            }
+            Metrics.RENDER.observeSince(start);
+            try {
+                start = System.nanoTime();
+                ByteArrayImageOutputStream encoded = encodeImage(image, options.getFormat(), options.getJpegQuality());
+                Metrics.ENCODE.observeSince(start);
+                Metrics.PAGES_RENDERED.inc();
+                return encoded;
+            } finally {
+                image.flush();
+            }
+        }
 
-                    // Center the image on the page
-                    float x = (pageWidth - scaledWidth) / 2 + 20;
-                    float y = (pageHeight - scaledHeight) / 2 + 20;
+        /**
+         * An idle copy of the document; a new one while fewer than window()
+         * are loaded, otherwise waits for another page to give one back.
+         */
+        private PDDocument checkOut() throws java.io.IOException, InterruptedException {
+            PDDocument doc = idle.poll();
+            if (doc != null) {
+                return doc;
+            }
+            if (loaded.incrementAndGet() > window()) {
+                loaded.decrementAndGet();
+                return idle.take();
+            }
+            try {
+                doc = loadForRendering(pdf);
+            } catch (java.io.IOException | RuntimeException e) {
+                loaded.decrementAndGet();
+                throw e;
+            }
+            documents.add(doc);
+            if (closed) {
+                // close() may have missed it
+                documents.remove(doc);
+                doc.close();
+                throw new IllegalStateException("Rendering already closed");
+            }
+            return doc;
+        }
 
-                    cs.drawImage(img, x, y, scaledWidth, scaledHeight);
-                    cs.close();
-                } catch (Exception e) {
-                    // If one image fails, continue with others
-                    // Remove the page we just added if image loading failed
-                    if (doc.getNumberOfPages() > 0) {
-                        doc.removePage(doc.getNumberOfPages() - 1);
+        private void logPageFailure(int pageNumber, Throwable e) {
+            LOG.warn("Failed to render page " + pageNumber + " of " + pdf.getName() + " - " + e.getMessage(), e);
+        }
+
+        /** Closes every copy of the document. */
+        @Override
+        public void close() throws java.io.IOException {
+            closed = true;
+            java.io.IOException failure = null;
+            for (PDDocument doc : documents) {
+                try {
+                    doc.close();
+                } catch (java.io.IOException e) {
+                    failure = e;
+                }
+            }
+            documents.clear();
+            idle.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static PDDocument loadForRendering(File pdf) throws java.io.IOException {
+        // Content streams are read from the file as needed; nothing is written
+        return PDDocument.load(pdf, MemoryUsageSetting.setupTempFileOnly());
+    }
+
+    /**
+     * Pages selected by a range such as "1-5,8,10-" (1-based; an open range
+     * runs to the last page), sorted and without duplicates. null selects all.
+     */
+    static int[] parsePageRange(String spec, int pageCount) {
+        java.util.TreeSet<Integer> selected = new java.util.TreeSet<>();
+        if (spec == null) {
+            for (int page = 1; page <= pageCount; page++) {
+                selected.add(page);
+            }
+        } else {
+            selected.addAll(pageNumbers(spec, pageCount));
+        }
+        return toArray(selected);
+    }
+
+    /**
+     * Pages in the order a spec such as "3,1-2,5-" lists them; each page at
+     * most once.
+     */
+    static int[] parsePageOrder(String spec, int pageCount) {
+        java.util.List<Integer> pages = pageNumbers(spec, pageCount);
+        if (new java.util.HashSet<>(pages).size() != pages.size()) {
+            throw new IllegalArgumentException("Page order '" + spec + "' lists a page more than once");
+        }
+        return toArray(pages);
+    }
+
+    private static java.util.List<Integer> pageNumbers(String spec, int pageCount) {
+        java.util.List<Integer> pages = new java.util.ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            int dash = part.indexOf('-');
+            int first;
+            int last;
+            try {
+                if (dash < 0) {
+                    first = Integer.parseInt(part);
+                    last = first;
+                } else {
+                    first = Integer.parseInt(part.substring(0, dash).trim());
+                    String end = part.substring(dash + 1).trim();
+                    last = end.isEmpty() ? pageCount : Integer.parseInt(end);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad page range '" + spec + "'");
+            }
+            if (first < 1 || last < first || last > pageCount) {
+                throw new IllegalArgumentException("Page range '" + spec + "' is outside pages 1-" + pageCount);
+            }
+            for (int page = first; page <= last; page++) {
+                pages.add(page);
+            }
+        }
+        return pages;
+    }
+
+    private static int[] toArray(java.util.Collection<Integer> values) {
+        int[] array = new int[values.size()];
+        int i = 0;
+        for (int value : values) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+    private static void reportProgress(ConversionOptions options, int done, int total) {
+        ProgressListener listener = options.getProgressListener();
+        if (listener != null) {
+            try {
+                listener.imageProcessed(done, total);
+            } catch (RuntimeException e) {
+                LOG.warn("Progress listener failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static void logImageFailure(String imgPath, Throwable e) {
+        Metrics.IMAGES_FAILED.inc();
+        LOG.warn("Failed to add image: " + imgPath + " - " + e.getMessage(), e);
+    }
+
+    /**
+     * Does all the per-image work that does not touch the PDDocument: decode,
+     * orientation, scaling and JPEG compression, and hashing the result when
+     * images are deduplicated. Safe to call from any thread.
+     * header is the image's probed header, or null to probe it here.
+     * pageBudget is the most bytes the encoded image should take, 0 for no limit.
+     */
+    private static PreparedPage preparePage(String imgPath, ImageHeader header, ConversionOptions options,
+            long pageBudget) throws Exception {
+        PreparedPage prepared = prepareImage(imgPath, header, options, pageBudget);
+        if (options.isDeduplicateImages()) {
+            try {
+                prepared.contentKey = contentKey(prepared);
+            } catch (Exception e) {
+                prepared.dispose();
+                throw e;
+            }
+        }
+        return prepared;
+    }
+
+    /**
+     * Identifies the image stream a prepared page will embed: SHA-256 of the
+     * JPEG bytes plus their size and color space. null for the lossless
+     * fallback, which is never shared.
+     */
+    private static String contentKey(PreparedPage prepared) throws java.io.IOException {
+        String hash;
+        String format;
+        if (prepared.originalJpeg != null) {
+            try (java.io.InputStream in = new java.io.FileInputStream(prepared.originalJpeg)) {
+                hash = PageCache.sha256(in);
+            }
+            format = prepared.header.getWidth() + "x" + prepared.header.getHeight()
+                    + (prepared.header.getComponents() == 1 ? "-gray" : "-rgb");
+        } else if (prepared.jpegBytes != null || prepared.encodedJpeg != null) {
+            try (java.io.InputStream in = prepared.encodedJpeg != null
+                    ? prepared.encodedJpeg.toInputStream()
+                    : new java.io.ByteArrayInputStream(prepared.jpegBytes)) {
+                hash = PageCache.sha256(in);
+            }
+            format = prepared.jpegWidth + "x" + prepared.jpegHeight + "-rgb";
+        } else {
+            return null;
+        }
+        return hash + "-" + format;
+    }
+
+    /** The image work of preparePage. */
+    private static PreparedPage prepareImage(String imgPath, ImageHeader knownHeader, ConversionOptions options,
+            long pageBudget) throws Exception {
+        File imageFile = new File(imgPath);
+        Metrics.BYTES_IN.add(imageFile.length());
+
+        // One read of the file header gives format, size and EXIF orientation
+        ImageHeader header = knownHeader != null ? knownHeader : ImageHeader.probe(imageFile);
+
+        // Pixels the image needs for the box it fills on the page
+        int maxSize = header.hasDimensions()
+                ? targetMaxSize(header.getWidth(), header.getHeight(), options.getTargetDpi())
+                : MAX_IMAGE_DIMENSION;
+        float quality = options.getJpegQuality();
+
+        // Fast path: a JPEG that needs no transform is embedded as-is
+        if (options.isJpegPassthrough() && (pageBudget == 0 || imageFile.length() <= pageBudget)) {
+            PreparedPage passthrough = preparePassthroughPage(imageFile, header, maxSize,
+                    options.isLosslessJpegRotation());
+            if (passthrough != null) {
+                return passthrough;
+            }
+        }
+
+        // Same upload processed before: reuse the encoded page
+        String cacheKey = null;
+        if (options.isCacheEnabled()) {
+            cacheKey = PageCache.key(imageFile, cacheParameters(maxSize, quality, pageBudget));
+            PageCache.Entry cached = PageCache.shared().get(cacheKey);
+            if (cached != null) {
+                Metrics.CACHE_HITS.inc();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Page cache hit for " + imageFile.getName());
+                }
+                PreparedPage prepared = new PreparedPage(cached.height > cached.width);
+                prepared.jpegBytes = cached.jpeg;
+                prepared.jpegWidth = cached.width;
+                prepared.jpegHeight = cached.height;
+                return prepared;
+            }
+            Metrics.CACHE_MISSES.inc();
+        }
+
+        // Read image with subsampling to prevent OOM on large files
+        long stageStart = System.nanoTime();
+        BufferedImage bufferedImage = readSubsampledImage(imageFile, header, maxSize);
+        Metrics.DECODE.observeSince(stageStart);
+
+        // Get actual image dimensions (as uploaded, without EXIF correction)
+        int imgWidth = bufferedImage.getWidth();
+        int imgHeight = bufferedImage.getHeight();
+
+        // Get EXIF orientation
+        int orientation = header.getOrientation();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Image " + imgPath);
+            LOG.debug("Dimensions " + imgWidth + "x" + imgHeight);
+            LOG.debug("Detected EXIF Orientation: " + orientation);
+        }
+
+        orientation = applyOrientationFallback(orientation, imgWidth, imgHeight);
+
+        // Compress, optimize, AND rotate the image logic
+        // This rotates the PIXELS of the scaled down image, so it is memory safe
+        stageStart = System.nanoTime();
+        BufferedImage optimizedImage = compressAndOrientImage(bufferedImage, orientation, maxSize);
+        Metrics.ORIENT.observeSince(stageStart);
+        ImagePool.release(bufferedImage);
+
+        // Decide page orientation AFTER processing the image: a landscape RAW image
+        // with EXIF 6 ends up portrait and needs a portrait page.
+        PreparedPage prepared = new PreparedPage(optimizedImage.getHeight() > optimizedImage.getWidth());
+
+        // Convert optimized image to JPEG for compression, in memory
+        try {
+            stageStart = System.nanoTime();
+            prepared.encodedJpeg = encodeJpeg(optimizedImage, quality);
+            while (pageBudget > 0 && prepared.encodedJpeg.size() > pageBudget) {
+                // Over its share of the size budget: lower the quality first,
+                // then the resolution, until it fits
+                if (quality > MIN_BUDGET_QUALITY) {
+                    quality = Math.max(MIN_BUDGET_QUALITY, quality - 0.15f);
+                } else {
+                    BufferedImage smaller = shrinkToBudget(optimizedImage, prepared.encodedJpeg.size(), pageBudget);
+                    if (smaller == null) {
+                        break; // As small as it gets; keep it
                     }
-                    System.err.println("Failed to add image: " + imgPath + " - " + e.getMessage());
-                    e.printStackTrace(); // Print stack trace for debugging
+                    ImagePool.release(optimizedImage);
+                    optimizedImage = smaller;
                 }
+                prepared.encodedJpeg.release();
+                prepared.encodedJpeg = null;
+                prepared.encodedJpeg = encodeJpeg(optimizedImage, quality);
+            }
+            Metrics.ENCODE.observeSince(stageStart);
+            if (LOG.isDebugEnabled() && pageBudget > 0) {
+                LOG.debug("Encoded " + optimizedImage.getWidth() + "x" + optimizedImage.getHeight() + " at quality "
+                        + quality + ": " + prepared.encodedJpeg.size() + " of " + pageBudget + " bytes");
             }
+            prepared.jpegWidth = optimizedImage.getWidth();
+            prepared.jpegHeight = optimizedImage.getHeight();
 
-            // Check if we have at least one valid page
-            if (doc.getNumberOfPages() == 0) {
-                throw new Exception("No valid images could be processed");
+            if (cacheKey != null) {
+                PageCache.shared().put(cacheKey, prepared.encodedJpeg.toByteArray(),
+                        optimizedImage.getWidth(), optimizedImage.getHeight());
             }
+            ImagePool.release(optimizedImage);
+        } catch (Exception compressionError) {
+            LOG.warn("JPEG compression failed, using optimized image directly: "
+                    + compressionError.getMessage(), compressionError);
+            // Fallback: embed the optimized image via LosslessFactory (heavier but safe)
+            prepared.fallbackImage = optimizedImage;
+        }
+
+        return prepared;
+    }
 
-            doc.save(output);
+    /**
+     * Scales the image down so its JPEG should come to about budget bytes, given
+     * that it currently takes size bytes; null if it is already tiny.
+     */
+    private static BufferedImage shrinkToBudget(BufferedImage image, long size, long budget) {
+        // JPEG size grows roughly with the pixel count; aim a little under
+        double factor = Math.sqrt((double) budget / size) * 0.95;
+        int width = (int) (image.getWidth() * factor);
+        int height = (int) (image.getHeight() * factor);
+        if (width < 16 || height < 16) {
+            return null;
+        }
+        return Resampler.resample(image, 1, width, height, Resampler.DEFAULT_FILTER);
+    }
+
+    /**
+     * Longest side, in pixels, an image of this size needs on the page: the box
+     * it is fitted into on an A4 page of its orientation, at dpi dots per inch.
+     * Never more than MAX_IMAGE_DIMENSION or the image itself; dpi 0 means
+     * MAX_IMAGE_DIMENSION.
+     */
+    static int targetMaxSize(int width, int height, int dpi) {
+        if (dpi <= 0) {
+            return MAX_IMAGE_DIMENSION;
+        }
+        // The page turns with the image, so its long side goes along the page's long side
+        double longSide = Math.max(width, height);
+        double shortSide = Math.max(1, Math.min(width, height));
+        double boxLong = PAGE_HEIGHT - 2 * PAGE_MARGIN;
+        double boxShort = PAGE_WIDTH - 2 * PAGE_MARGIN;
+        double points = Math.min(boxLong, boxShort * longSide / shortSide);
+        int pixels = (int) Math.ceil(points * dpi / 72);
+        return Math.max(1, Math.min(pixels, Math.min(MAX_IMAGE_DIMENSION, (int) longSide)));
+    }
+
+    /** PageCache parameters of a page encoded with these settings. */
+    private static String cacheParameters(int maxSize, float quality, long pageBudget) {
+        return "d" + maxSize + "-q" + Math.round(quality * 100)
+                + (pageBudget > 0 ? "-b" + pageBudget : "") + "-" + CACHE_VERSION;
+    }
+
+    /**
+     * Encodes the image as a JPEG into a pooled in-memory buffer; the caller
+     * releases it once the bytes are embedded.
+     */
+    static ByteArrayImageOutputStream encodeJpeg(BufferedImage image) throws Exception {
+        return encodeJpeg(image, ConversionOptions.OutputProfile.ORIGINAL.getJpegQuality());
+    }
+
+    /** Same as above at the given quality (0-1). */
+    static ByteArrayImageOutputStream encodeJpeg(BufferedImage image, float quality) throws Exception {
+        // Roughly 1.5 bits per pixel at 0.85 quality for photos; the buffer grows if needed
+        ByteArrayImageOutputStream out = new ByteArrayImageOutputStream(
+                (int) Math.min((long) image.getWidth() * image.getHeight() / 4 + 4096, 64L << 20));
+        try {
+            writeJpeg(image, out, quality);
+            return out;
+        } catch (Exception | Error e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes the image in the given format into a pooled in-memory buffer;
+     * quality applies to JPEG and lossy WebP. The caller releases the buffer.
+     */
+    static ByteArrayImageOutputStream encodeImage(BufferedImage image, RenderOptions.Format format, float quality)
+            throws Exception {
+        if (format == RenderOptions.Format.JPEG) {
+            return encodeJpeg(image, quality);
+        }
+        String formatName = format.getImageIoName();
+        javax.imageio.ImageWriter writer = ImagePool.writer(formatName);
+        if (writer == null) {
+            throw new Exception("No " + formatName + " writer available");
+        }
+        ByteArrayImageOutputStream out = new ByteArrayImageOutputStream(
+                (int) Math.min((long) image.getWidth() * image.getHeight() + 4096, 64L << 20));
+        boolean succeeded = false;
+        try {
+            writer.setOutput(out);
+            javax.imageio.ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format == RenderOptions.Format.WEBP) {
+                param.setCompressionMode(javax.imageio.ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionType("Lossy");
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new javax.imageio.IIOImage(image, null, null), param);
+            succeeded = true;
+            return out;
         } finally {
-            doc.close();
+            if (succeeded) {
+                ImagePool.returnWriter(formatName, writer);
+            } else {
+                ImagePool.discardWriter(writer);
+                out.release();
+            }
         }
+    }
 
-        return output;
+    /**
+     * Writes the image as a JPEG with the given compression quality (0-1).
+     */
+    static void writeJpeg(BufferedImage image, javax.imageio.stream.ImageOutputStream ios, float quality)
+            throws Exception {
+        javax.imageio.ImageWriter jpegWriter = ImagePool.writer("jpeg");
+        if (jpegWriter == null) {
+            throw new Exception("No JPEG writer available");
+        }
+
+        boolean succeeded = false;
+        try {
+            jpegWriter.setOutput(ios);
+
+            // Set JPEG compression quality
+            javax.imageio.ImageWriteParam jpegParams = jpegWriter.getDefaultWriteParam();
+            jpegParams.setCompressionMode(javax.imageio.ImageWriteParam.MODE_EXPLICIT);
+            jpegParams.setCompressionQuality(quality);
+
+            jpegWriter.write(null, new javax.imageio.IIOImage(image, null, null), jpegParams);
+            succeeded = true;
+        } finally {
+            if (succeeded) {
+                ImagePool.returnWriter("jpeg", jpegWriter);
+            } else {
+                ImagePool.discardWriter(jpegWriter);
+            }
+        }
+    }
+
+    /**
+     * FALLBACK: If no EXIF orientation (=1) and image is landscape with phone
+     * camera aspect ratio, auto-rotate to portrait since phone photos are
+     * typically taken in portrait.
+     */
+    private static int applyOrientationFallback(int orientation, int imgWidth, int imgHeight) {
+        if (orientation == 1 && imgWidth > imgHeight) {
+            float aspectRatio = (float) imgWidth / imgHeight;
+            // Phone cameras typically use 4:3 (1.33) or 16:9 (1.78) ratios
+            // 4080x3060 = 1.33 (4:3)
+            if (aspectRatio >= 1.3f && aspectRatio <= 1.4f) {
+                LOG.debug("Auto-rotating landscape phone photo (4:3 ratio)");
+                return 6; // Rotate 90° CW
+            }
+        }
+        return orientation;
+    }
+
+    /**
+     * Checks whether the file is a JPEG that can go into the PDF untouched: baseline
+     * (or extended sequential) 8-bit, grayscale or YCbCr and no larger than
+     * maxSize. Decided from the probed header alone.
+     * With losslessRotation, EXIF-rotated or mirrored JPEGs qualify too: the
+     * orientation is applied by the page's transform matrix instead of the pixels.
+     * Returns null when the image has to go through the regular pipeline.
+     */
+    private static PreparedPage preparePassthroughPage(File imageFile, ImageHeader header, int maxSize,
+            boolean losslessRotation) {
+        if (!isPassthroughJpeg(header, maxSize)) {
+            return null;
+        }
+        int width = header.getWidth();
+        int height = header.getHeight();
+
+        int orientation = applyOrientationFallback(header.getOrientation(), width, height);
+        if (orientation != 1 && !losslessRotation) {
+            return null;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Embedding original JPEG " + imageFile.getName() + " ("
+                    + width + "x" + height + ", orientation " + orientation + ")");
+        }
+        boolean swapsAxes = orientation >= 5;
+        PreparedPage prepared = new PreparedPage(swapsAxes ? width > height : height > width);
+        prepared.originalJpeg = imageFile;
+        prepared.header = header;
+        prepared.orientation = orientation;
+        return prepared;
+    }
+
+    /**
+     * Baseline or extended sequential Huffman, 8 bits, gray or YCbCr, within
+     * maxSize. RGB (Adobe transform 0) and CMYK JPEGs are left out
+     * because not every PDF viewer honours their Adobe marker.
+     */
+    private static boolean isPassthroughJpeg(ImageHeader header, int maxSize) {
+        return header.getFormat() == ImageHeader.Format.JPEG && header.isSequentialJpeg()
+                && header.getBitsPerComponent() == 8
+                && (header.getColorSpace() == ImageHeader.ColorSpace.GRAY
+                        || header.getColorSpace() == ImageHeader.ColorSpace.YCBCR)
+                && header.hasDimensions()
+                && header.getWidth() <= maxSize && header.getHeight() <= maxSize;
+    }
+
+    /**
+     * Adds one page holding the prepared image, fitted and centered on an A4 page
+     * that matches the image orientation. An image already in images under the
+     * page's content key is reused instead of embedded again; a new one is
+     * added there. Must be called on the thread that owns the document.
+     */
+    private static void addPreparedPage(PDDocument doc, PreparedPage prepared,
+            java.util.Map<String, PDImageXObject> images) throws Exception {
+        long start = System.nanoTime();
+        try {
+            PDImageXObject img = prepared.contentKey == null ? null : images.get(prepared.contentKey);
+            if (img != null) {
+                Metrics.IMAGES_DEDUPLICATED.inc();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Reusing identical image " + prepared.contentKey.substring(0, 12));
+                }
+            } else if (prepared.originalJpeg != null) {
+                // Wrap the original bytes in a DCTDecode stream; the PDF viewer decodes them
+                ImageHeader header = prepared.header;
+                try (java.io.InputStream in = new java.io.BufferedInputStream(
+                        new java.io.FileInputStream(prepared.originalJpeg))) {
+                    img = new PDImageXObject(doc, in, COSName.DCT_DECODE, header.getWidth(), header.getHeight(), 8,
+                            header.getComponents() == 1 ? PDDeviceGray.INSTANCE : PDDeviceRGB.INSTANCE);
+                }
+            } else if (prepared.jpegBytes != null || prepared.encodedJpeg != null) {
+                // Our own RGB JPEG of known size: store the bytes as a DCTDecode stream
+                // without re-reading the header
+                java.io.InputStream in = prepared.encodedJpeg != null
+                        ? prepared.encodedJpeg.toInputStream()
+                        : new java.io.ByteArrayInputStream(prepared.jpegBytes);
+                img = new PDImageXObject(doc, in, COSName.DCT_DECODE, prepared.jpegWidth, prepared.jpegHeight, 8,
+                        PDDeviceRGB.INSTANCE);
+            } else {
+                img = LosslessFactory.createFromImage(doc, prepared.fallbackImage);
+            }
+
+            PDPage page;
+            if (prepared.portrait) {
+                // Portrait: Standard A4 (595 x 842 points)
+                page = new PDPage(new PDRectangle(PAGE_WIDTH, PAGE_HEIGHT));
+            } else {
+                // Landscape: A4 rotated (842 x 595 points)
+                page = new PDPage(new PDRectangle(PAGE_HEIGHT, PAGE_WIDTH));
+            }
+
+            // Calculate image dimensions to fit page while maintaining aspect ratio
+            float pageWidth = page.getMediaBox().getWidth() - 2 * PAGE_MARGIN;
+            float pageHeight = page.getMediaBox().getHeight() - 2 * PAGE_MARGIN;
+
+            // Size of the image as displayed, after any orientation left to the PDF
+            boolean swapsAxes = prepared.orientation >= 5;
+            float finalImgWidth = swapsAxes ? img.getHeight() : img.getWidth();
+            float finalImgHeight = swapsAxes ? img.getWidth() : img.getHeight();
+
+            // Calculate scaling to fit within page bounds
+            float scaleX = pageWidth / finalImgWidth;
+            float scaleY = pageHeight / finalImgHeight;
+            float scale = Math.min(scaleX, scaleY); // Use smaller scale to fit both dimensions
+
+            float scaledWidth = finalImgWidth * scale;
+            float scaledHeight = finalImgHeight * scale;
+
+            // Center the image on the page
+            float x = (pageWidth - scaledWidth) / 2 + PAGE_MARGIN;
+            float y = (pageHeight - scaledHeight) / 2 + PAGE_MARGIN;
+
+            try (PDPageContentStream cs = new PDPageContentStream(doc, page)) {
+                if (prepared.orientation == 1) {
+                    cs.drawImage(img, x, y, scaledWidth, scaledHeight);
+                } else {
+                    cs.drawImage(img, orientationMatrix(prepared.orientation, x, y, scaledWidth, scaledHeight));
+                }
+            }
+
+            // Only add the page once it is complete, so a failure never leaves
+            // a blank page behind
+            doc.addPage(page);
+            if (prepared.contentKey != null) {
+                images.putIfAbsent(prepared.contentKey, img);
+            }
+            Metrics.EMBED.observeSince(start);
+            pageCounter(prepared).inc();
+        } finally {
+            prepared.dispose();
+        }
+    }
+
+    private static Metrics.Counter pageCounter(PreparedPage prepared) {
+        if (prepared.originalJpeg != null) {
+            return Metrics.PAGES_PASSTHROUGH;
+        } else if (prepared.jpegBytes != null) {
+            return Metrics.PAGES_CACHED;
+        } else if (prepared.encodedJpeg != null) {
+            return Metrics.PAGES_ENCODED;
+        }
+        return Metrics.PAGES_LOSSLESS;
     }
 
     /**
-     * Compresses and optimizes a BufferedImage for PDF inclusion
-     * Reduces image quality slightly to significantly reduce file size
+     * Builds the image placement matrix for an EXIF orientation: maps the image's
+     * unit square onto the target box (x, y, width, height) so the stored pixels
+     * show up rotated/mirrored the way the EXIF tag asks for.
      */
+    private static Matrix orientationMatrix(int orientation, float x, float y, float width, float height) {
+        // Unit square transform (a b c d e f) for each orientation, in PDF's y-up space
+        float a, b, c, d, e, f;
+        switch (orientation) {
+            case 2: // Mirror horizontal
+                a = -1; b = 0; c = 0; d = 1; e = 1; f = 0;
+                break;
+            case 3: // 180
+                a = -1; b = 0; c = 0; d = -1; e = 1; f = 1;
+                break;
+            case 4: // Mirror vertical
+                a = 1; b = 0; c = 0; d = -1; e = 0; f = 1;
+                break;
+            case 5: // Transpose
+                a = 0; b = -1; c = -1; d = 0; e = 1; f = 1;
+                break;
+            case 6: // 90 CW
+                a = 0; b = -1; c = 1; d = 0; e = 0; f = 1;
+                break;
+            case 7: // Transverse
+                a = 0; b = 1; c = 1; d = 0; e = 0; f = 0;
+                break;
+            case 8: // 270 CW (90 CCW)
+                a = 0; b = 1; c = -1; d = 0; e = 1; f = 0;
+                break;
+            default: // Normal
+                a = 1; b = 0; c = 0; d = 1; e = 0; f = 0;
+        }
+        return new Matrix(width * a, height * b, width * c, height * d, x + width * e, y + height * f);
+    }
+
+    /**
+     * Result of preparePage: the original JPEG to embed as-is, a compressed JPEG
+     * (encoded in memory, or bytes from the page cache) or, if JPEG encoding failed, the
+     * raw image to embed losslessly.
+     * orientation is the EXIF orientation still to be applied when drawing; only
+     * the original JPEG case leaves it to the PDF, the others are already upright.
+     */
+    private static final class PreparedPage {
+        final boolean portrait;
+        int orientation = 1;
+        File originalJpeg; // not owned, never deleted here
+        ImageHeader header;
+        ByteArrayImageOutputStream encodedJpeg;
+        byte[] jpegBytes;
+        String contentKey; // null when not deduplicated
+        int jpegWidth;
+        int jpegHeight;
+        BufferedImage fallbackImage;
+
+        PreparedPage(boolean portrait) {
+            this.portrait = portrait;
+        }
+
+        void dispose() {
+            if (encodedJpeg != null) {
+                encodedJpeg.release();
+                encodedJpeg = null;
+            }
+            jpegBytes = null;
+            ImagePool.release(fallbackImage);
+            fallbackImage = null;
+            originalJpeg = null;
+        }
+    }
+
+    /**
+     * Shared pool for per-image work, sized to the machine. Requests share it;
+     * the per-conversion window in Conversion keeps one upload from
+     * occupying every worker.
+     */
+    private static final class PipelineExecutorHolder {
+        static final java.util.concurrent.ThreadPoolExecutor INSTANCE = createPipelineExecutor();
+
+        private static java.util.concurrent.ThreadPoolExecutor createPipelineExecutor() {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            java.util.concurrent.atomic.AtomicInteger counter = new java.util.concurrent.atomic.AtomicInteger();
+            return new java.util.concurrent.ThreadPoolExecutor(threads, threads, 0L,
+                    java.util.concurrent.TimeUnit.MILLISECONDS, new java.util.concurrent.LinkedBlockingQueue<>(),
+                    r -> {
+                        Thread t = new Thread(r, "image-pipeline-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+    }
+
+    /** The shared per-image pool; Resampler lends its idle threads to large images. */
+    static java.util.concurrent.ThreadPoolExecutor pipelineExecutor() {
+        return PipelineExecutorHolder.INSTANCE;
+    }
+
     /**
      * Compresses, scales, and rotates the image for PDF inclusion.
      * 1. Scale down if too large (memory optimization).
      * 2. Rotate pixels based on EXIF orientation (correct display).
      * 3. Convert to RGB (remove alpha).
+     * All three happen in a single Resampler pass.
      */
-    private static BufferedImage compressAndOrientImage(BufferedImage original, int orientation) {
+    static BufferedImage compressAndOrientImage(BufferedImage original, int orientation) {
+        return compressAndOrientImage(original, orientation, MAX_IMAGE_DIMENSION);
+    }
+
+    /** Same as above, scaling to at most maxDimension pixels on the longest side. */
+    static BufferedImage compressAndOrientImage(BufferedImage original, int orientation, int maxDimension) {
         int width = original.getWidth();
         int height = original.getHeight();
 
         // 1. Calculate Scaling (Subsampling might have already done most of the work)
         // We still check just in case subsampling was conservative
-        int maxDimension = 2048;
         int targetWidth = width;
         int targetHeight = height;
 
@@ -222,203 +1608,281 @@ public class ImageUtils {
             targetHeight = (int) (height * scale);
         }
 
-        // 2. Determine Output Dimensions (Swapped if 90/270 rotation)
-        boolean isRotated90 = (orientation == 5 || orientation == 6 || orientation == 7 || orientation == 8);
-        int outputWidth = isRotated90 ? targetHeight : targetWidth;
-        int outputHeight = isRotated90 ? targetWidth : targetHeight;
-
-        BufferedImage optimized = new BufferedImage(outputWidth, outputHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = optimized.createGraphics();
-
-        try {
-            g.setRenderingHint(java.awt.RenderingHints.KEY_INTERPOLATION,
-                    java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g.setRenderingHint(java.awt.RenderingHints.KEY_RENDERING,
-                    java.awt.RenderingHints.VALUE_RENDER_QUALITY);
-            g.setRenderingHint(java.awt.RenderingHints.KEY_ANTIALIASING,
-                    java.awt.RenderingHints.VALUE_ANTIALIAS_ON);
-
-            // Apply Rotation and Scaling via Transform
-            AffineTransform t = new AffineTransform();
-
-            // Rotation Logic
-            switch (orientation) {
-                case 1: // Normal
-                    System.out.println("DEBUG: Use Normal Orientation");
-                    break;
-                case 3: // 180
-                    System.out.println("DEBUG: Rotating 180");
-                    t.translate(outputWidth, outputHeight);
-                    t.rotate(Math.PI);
-                    break;
-                case 6: // 90 CW
-                    System.out.println("DEBUG: Rotating 90 CW");
-                    t.translate(outputWidth, 0);
-                    t.rotate(Math.PI / 2);
-                    break;
-                case 8: // 270 CW (90 CCW)
-                    System.out.println("DEBUG: Rotating 270 CW");
-                    t.translate(0, outputHeight);
-                    t.rotate(-Math.PI / 2);
-                    break;
-                default:
-                    System.out.println("DEBUG: Other Orientation " + orientation);
-            }
-
-            // Scale to target
-            double scaleX = (double) targetWidth / width;
-            double scaleY = (double) targetHeight / height;
-            t.scale(scaleX, scaleY);
-
-            g.drawImage(original, t, null);
-        } finally {
-            g.dispose();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Resampling " + width + "x" + height + " -> " + targetWidth + "x" + targetHeight
+                    + ", orientation " + orientation);
         }
-
-        return optimized;
+        return Resampler.resample(original, orientation, targetWidth, targetHeight, Resampler.DEFAULT_FILTER);
     }
 
     /**
      * Reads an image with subsampling to memory usage.
      * Reads every Nth pixel to ensure the loaded image is approx targetMaxSize.
      */
-    private static BufferedImage readSubsampledImage(File imageFile, int targetMaxSize) throws Exception {
+    static BufferedImage readSubsampledImage(File imageFile, int targetMaxSize) throws Exception {
+        return readSubsampledImage(imageFile, ImageHeader.probe(imageFile), targetMaxSize);
+    }
+
+    /**
+     * Same as above, reusing an already probed header: the reader is picked by the
+     * probed format and the subsampling comes from the probed size, so the file
+     * header is not parsed a second time.
+     */
+    static BufferedImage readSubsampledImage(File imageFile, ImageHeader header, int targetMaxSize)
+            throws Exception {
         try (ImageInputStream iis = ImageIO.createImageInputStream(imageFile)) {
-            java.util.Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
-            if (!readers.hasNext()) {
-                throw new IllegalArgumentException("No image reader found for: " + imageFile.getName());
+            if (iis == null) {
+                throw new IllegalArgumentException("Cannot open image: " + imageFile.getName());
+            }
+            // Known formats use a pooled reader; others get a fresh one
+            String formatName = header.getImageIoFormatName();
+            ImageReader reader = formatName != null ? ImagePool.reader(formatName) : null;
+            boolean pooled = reader != null;
+            if (!pooled) {
+                java.util.Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+                if (!readers.hasNext()) {
+                    throw new IllegalArgumentException("No image reader found for: " + imageFile.getName());
+                }
+                reader = readers.next();
             }
-            ImageReader reader = readers.next();
+            boolean succeeded = false;
             try {
                 reader.setInput(iis);
-                int width = reader.getWidth(0);
-                int height = reader.getHeight(0);
-
-                int subsampling = 1;
-                if (width > targetMaxSize || height > targetMaxSize) {
-                    int wSub = width / targetMaxSize;
-                    int hSub = height / targetMaxSize;
-
-                    // Use the larger factor to ensure we stay under limit
-                    subsampling = Math.max(wSub, hSub);
-                    if (subsampling < 1)
-                        subsampling = 1;
+                int width = header.hasDimensions() ? header.getWidth() : reader.getWidth(0);
+                int height = header.hasDimensions() ? header.getHeight() : reader.getHeight(0);
+
+                int subsampling = subsamplingFactor(width, height, targetMaxSize);
+                // Only worth it when the raster is scaled down afterwards anyway
+                if (subsampledPixels(width, height, subsampling) > BANDED_DECODE_PIXELS
+                        && Math.max(width, height) > targetMaxSize) {
+                    BufferedImage image = readInBands(reader, width, height, subsampling, targetMaxSize);
+                    succeeded = true;
+                    return image;
                 }
 
                 javax.imageio.ImageReadParam param = reader.getDefaultReadParam();
                 if (subsampling > 1) {
                     param.setSourceSubsampling(subsampling, subsampling, 0, 0);
                 }
+                param.setDestination(pooledDestination(reader, (width + subsampling - 1) / subsampling,
+                        (height + subsampling - 1) / subsampling));
 
-                return reader.read(0, param);
+                BufferedImage image = reader.read(0, param);
+                succeeded = true;
+                return image;
             } finally {
-                reader.dispose();
+                if (!pooled) {
+                    reader.dispose();
+                } else if (succeeded) {
+                    ImagePool.returnReader(formatName, reader);
+                } else {
+                    ImagePool.discardReader(reader);
+                }
             }
         }
     }
 
     /**
-     * Gets EXIF orientation by reading raw JPEG bytes directly.
-     * This bypasses ImageIO's unreliable metadata reader.
-     * Returns orientation value (1-8) or 1 if not found/error
+     * A pooled image to decode into, when the reader's natural output is plain
+     * 8-bit BGR or gray (the usual JPEG case); otherwise null and the reader
+     * allocates its own.
      */
-    private static int getExifOrientation(File imageFile) {
-        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(imageFile, "r")) {
-            // Check JPEG signature
-            if (raf.readUnsignedByte() != 0xFF || raf.readUnsignedByte() != 0xD8) {
-                return 1; // Not a JPEG
-            }
-
-            // Read JPEG markers to find APP1 (EXIF)
-            while (true) {
-                int marker = raf.readUnsignedByte();
-                if (marker != 0xFF)
-                    break;
-
-                int markerType = raf.readUnsignedByte();
-                if (markerType == 0xD8 || markerType == 0xD9)
-                    continue; // SOI/EOI have no length
+    private static BufferedImage pooledDestination(ImageReader reader, int width, int height) throws Exception {
+        java.util.Iterator<javax.imageio.ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (!types.hasNext()) {
+            return null;
+        }
+        switch (types.next().getBufferedImageType()) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return ImagePool.borrowByteImage(width, height, 3);
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return ImagePool.borrowByteImage(width, height, 1);
+            default:
+                return null;
+        }
+    }
 
-                int length = raf.readUnsignedShort() - 2;
+    /**
+     * Decodes the image band by band with setSourceRegion and area-averages each
+     * band into a TYPE_INT_RGB image no larger than targetMaxSize as it arrives.
+     * Heap use is the output image plus one band of at most half of
+     * BANDED_DECODE_PIXELS (twice: as decoded and as RGB), whatever the input
+     * size. Readers skip to each band by decoding the rows above it, so this is
+     * slower than a single read and only used past BANDED_DECODE_PIXELS.
+     * Transparent pixels are composited over black, as drawing onto the RGB
+     * output does on the normal path.
+     */
+    private static BufferedImage readInBands(ImageReader reader, int width, int height, int subsampling,
+            int targetMaxSize) throws Exception {
+        // Size of the subsampled grid, and of the output scaled from it
+        int gridWidth = (width + subsampling - 1) / subsampling;
+        int gridHeight = (height + subsampling - 1) / subsampling;
+        double scale = Math.min(1.0, (double) targetMaxSize / Math.max(gridWidth, gridHeight));
+        int outWidth = Math.max(1, (int) (gridWidth * scale));
+        int outHeight = Math.max(1, (int) (gridHeight * scale));
+
+        // Grid columns [colStart[x], colStart[x + 1]) and rows [rowStart[y], rowStart[y + 1])
+        // are averaged into output pixel (x, y)
+        int[] colStart = new int[outWidth + 1];
+        for (int x = 0; x <= outWidth; x++) {
+            colStart[x] = (int) ((long) x * gridWidth / outWidth);
+        }
+        int[] rowStart = new int[outHeight + 1];
+        for (int y = 0; y <= outHeight; y++) {
+            rowStart[y] = (int) ((long) y * gridHeight / outHeight);
+        }
 
-                if (markerType == 0xE1) { // APP1 - EXIF marker
-                    byte[] exifData = new byte[length];
-                    raf.readFully(exifData);
+        int bandRows = (int) Math.max(1, Math.min(gridHeight, BANDED_DECODE_PIXELS / 2 / gridWidth));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Banded decode " + width + "x" + height + " -> " + outWidth + "x" + outHeight
+                    + " in bands of " + bandRows + " rows");
+        }
 
-                    // Check for EXIF header
-                    if (length < 6 || exifData[0] != 'E' || exifData[1] != 'x' ||
-                            exifData[2] != 'i' || exifData[3] != 'f') {
-                        continue;
+        BufferedImage output = ImagePool.borrowRgbImage(outWidth, outHeight);
+        int[] outPixels = ((java.awt.image.DataBufferInt) output.getRaster().getDataBuffer()).getData();
+        BufferedImage rgbBand = ImagePool.borrowRgbImage(gridWidth, bandRows);
+        int[] bandPixels = ((java.awt.image.DataBufferInt) rgbBand.getRaster().getDataBuffer()).getData();
+        long[] sumR = new long[outWidth];
+        long[] sumG = new long[outWidth];
+        long[] sumB = new long[outWidth];
+
+        javax.imageio.ImageReadParam param = reader.getDefaultReadParam();
+        int outY = 0;
+        for (int gridY = 0; gridY < gridHeight; gridY += bandRows) {
+            int rows = Math.min(bandRows, gridHeight - gridY);
+            int sourceY = gridY * subsampling;
+            param.setSourceRegion(new java.awt.Rectangle(0, sourceY, width,
+                    Math.min(height - sourceY, rows * subsampling)));
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            BufferedImage band = reader.read(0, param);
+
+            // Normalise to RGB over black, the same way the normal path draws
+            Graphics2D g = rgbBand.createGraphics();
+            try {
+                g.setColor(java.awt.Color.BLACK);
+                g.fillRect(0, 0, gridWidth, bandRows);
+                g.drawImage(band, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+            band.flush();
+
+            for (int r = 0; r < rows; r++) {
+                int rowOffset = r * gridWidth;
+                for (int x = 0; x < outWidth; x++) {
+                    long red = 0, green = 0, blue = 0;
+                    for (int i = rowOffset + colStart[x]; i < rowOffset + colStart[x + 1]; i++) {
+                        int rgb = bandPixels[i];
+                        red += (rgb >> 16) & 0xFF;
+                        green += (rgb >> 8) & 0xFF;
+                        blue += rgb & 0xFF;
                     }
-
-                    return parseExifOrientation(exifData);
+                    sumR[x] += red;
+                    sumG[x] += green;
+                    sumB[x] += blue;
                 }
 
-                // Skip this marker's data
-                raf.skipBytes(length);
-
-                // Stop at Start of Scan
-                if (markerType == 0xDA)
-                    break;
+                // Output row complete once its last grid row has been added
+                if (gridY + r + 1 == rowStart[outY + 1]) {
+                    int rowCount = rowStart[outY + 1] - rowStart[outY];
+                    for (int x = 0; x < outWidth; x++) {
+                        long count = (long) rowCount * (colStart[x + 1] - colStart[x]);
+                        outPixels[outY * outWidth + x] = (int) ((sumR[x] / count) << 16
+                                | (sumG[x] / count) << 8 | (sumB[x] / count));
+                    }
+                    java.util.Arrays.fill(sumR, 0);
+                    java.util.Arrays.fill(sumG, 0);
+                    java.util.Arrays.fill(sumB, 0);
+                    outY++;
+                }
             }
-        } catch (Exception e) {
-            System.err.println("EXIF read error: " + e.getMessage());
         }
-        return 1; // Default orientation
+        ImagePool.release(rgbBand);
+        return output;
     }
 
-    private static int parseExifOrientation(byte[] exifData) {
-        try {
-            // Skip "Exif\0\0"
-            int offset = 6;
-
-            // Check byte order
-            boolean bigEndian = (exifData[offset] == 'M' && exifData[offset + 1] == 'M');
-            offset += 2;
-
-            // Skip TIFF magic number (0x002A)
-            offset += 2;
-
-            // Get offset to IFD0
-            int ifd0Offset = offset + readInt(exifData, offset, bigEndian, 4);
-
-            // Read number of directory entries
-            int numEntries = readInt(exifData, ifd0Offset, bigEndian, 2);
-            ifd0Offset += 2;
+    private static long subsampledPixels(long width, long height, int subsampling) {
+        return ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling);
+    }
 
-            // Search for Orientation tag (0x0112)
-            for (int i = 0; i < numEntries; i++) {
-                int entryOffset = ifd0Offset + (i * 12);
-                int tag = readInt(exifData, entryOffset, bigEndian, 2);
+    /** Read every Nth pixel so the decoded image is approx targetMaxSize. */
+    private static int subsamplingFactor(int width, int height, int targetMaxSize) {
+        int subsampling = 1;
+        if (width > targetMaxSize || height > targetMaxSize) {
+            int wSub = width / targetMaxSize;
+            int hSub = height / targetMaxSize;
+
+            // Use the larger factor to ensure we stay under limit
+            subsampling = Math.max(wSub, hSub);
+            if (subsampling < 1)
+                subsampling = 1;
+        }
+        return subsampling;
+    }
 
-                if (tag == 0x0112) { // Orientation tag
-                    int orientation = readInt(exifData, entryOffset + 8, bigEndian, 2);
-                    System.out.println("DEBUG: Found EXIF Orientation tag: " + orientation);
-                    return orientation;
-                }
+    /**
+     * Estimates the peak heap, in bytes, that converting these images will need,
+     * from the image headers only: the decoded (subsampled) raster plus the
+     * scaled output raster of each image, summed over the images that can be in
+     * flight at the same time. Unreadable images count as 0; they fail later.
+     */
+    public static long estimateProcessingBytes(String[] imgPaths, ConversionOptions options) {
+        java.util.List<ImageHeader> headers = new java.util.ArrayList<>();
+        for (String imgPath : imgPaths) {
+            if (imgPath == null || imgPath.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                headers.add(ImageHeader.probe(new File(imgPath)));
+            } catch (Exception e) {
+                // Unreadable: no estimate
             }
-        } catch (Exception e) {
-            System.err.println("EXIF parse error: " + e.getMessage());
         }
-        return 1;
+        return estimateProcessingBytes(headers, options);
     }
 
-    private static int readInt(byte[] data, int offset, boolean bigEndian, int length) {
-        if (length == 2) {
-            if (bigEndian) {
-                return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
-            } else {
-                return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    /** Same as above, for images whose headers have already been probed. */
+    public static long estimateProcessingBytes(java.util.List<ImageHeader> headers, ConversionOptions options) {
+        java.util.List<Long> perImage = new java.util.ArrayList<>();
+        for (ImageHeader header : headers) {
+            if (!header.hasDimensions()) {
+                continue;
             }
-        } else if (length == 4) {
-            if (bigEndian) {
-                return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
-                        ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
-            } else {
-                return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) |
-                        ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+            long width = header.getWidth();
+            long height = header.getHeight();
+            int maxSize = targetMaxSize((int) width, (int) height, options.getTargetDpi());
+            int subsampling = subsamplingFactor((int) width, (int) height, maxSize);
+
+            long decoded = subsampledPixels(width, height, subsampling);
+            if (decoded > BANDED_DECODE_PIXELS && Math.max(width, height) > maxSize) {
+                decoded = BANDED_DECODE_PIXELS; // Two half-size bands, see readInBands
             }
+            double scale = Math.min(1.0, (double) maxSize / Math.max(width, height));
+            long output = (long) (width * scale) * (long) (height * scale);
+            perImage.add((decoded + output) * 4); // 4 bytes per pixel, worst case
+        }
+
+        // Only the largest "window" images can be decoded at the same time
+        perImage.sort(java.util.Collections.reverseOrder());
+        int window = Math.max(1, options.getMaxConcurrency());
+        long total = 0;
+        for (int i = 0; i < perImage.size() && i < window; i++) {
+            total += perImage.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Gets EXIF orientation by reading raw JPEG bytes directly.
+     * This bypasses ImageIO's unreliable metadata reader.
+     * Returns orientation value (1-8) or 1 if not found/error
+     */
+    static int getExifOrientation(File imageFile) {
+        try {
+            return ImageHeader.probe(imageFile).getOrientation();
+        } catch (Exception e) {
+            LOG.warn("EXIF read error: " + e.getMessage(), e);
+            return 1; // Default orientation
         }
-        return 0;
     }
 }
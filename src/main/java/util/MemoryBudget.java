@@ -0,0 +1,107 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A byte budget shared by concurrent requests. Callers reserve an estimate
+ * before doing memory-hungry work and release it when done; when the budget
+ * is used up they fall back to a cheaper strategy instead of risking an OOM.
+ */
+public class MemoryBudget {
+
+    /** Heap that all open PDF documents together may keep in memory before spilling to disk. */
+    public static final MemoryBudget DOCUMENT_HEAP = new MemoryBudget(
+            Long.getLong("imageutil.globalDocumentHeapBytes", Runtime.getRuntime().maxMemory() / 4));
+
+    /**
+     * Pixel memory that running conversions may take together; requests reserve
+     * their estimate here before decoding (see AdmissionControl).
+     */
+    public static final MemoryBudget PROCESSING = new MemoryBudget(
+            Long.getLong("imageutil.admission.budgetBytes", Runtime.getRuntime().maxMemory() / 2));
+
+    private final long capacity;
+    private long used;
+
+    // A lock rather than synchronized/wait, so a virtual thread waiting for
+    // memory does not pin its carrier thread (see VirtualThreads)
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    public MemoryBudget(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reserves the given number of bytes if they are available right now.
+     * @return true if reserved; the caller must then call release with the same amount
+     */
+    public boolean tryReserve(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must not be negative");
+        }
+        lock.lock();
+        try {
+            if (used + bytes > capacity) {
+                return false;
+            }
+            used += bytes;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves the given number of bytes, waiting up to timeoutMillis for other
+     * callers to release enough.
+     * @return true if reserved; false if the time ran out
+     */
+    public boolean reserve(long bytes, long timeoutMillis) throws InterruptedException {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must not be negative");
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lockInterruptibly();
+        try {
+            while (used + bytes > capacity) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            used += bytes;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long bytes) {
+        lock.lock();
+        try {
+            used = Math.max(0, used - bytes);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getUsed() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters and latency histograms for the conversion pipeline,
+ * exported in the Prometheus text format by MetricsServlet. Updates are
+ * lock-free (LongAdder), so recording on every image costs next to nothing.
+ */
+public final class Metrics {
+
+    /** Counts events; only ever goes up. */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /** A value that goes up and down, e.g. work in progress. */
+    public static final class Gauge {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void dec() {
+            value.decrement();
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /** Cumulative histogram over fixed bucket bounds. */
+    public static final class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double... bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (value <= bounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+
+        /** Records the time elapsed since startNanos (from System.nanoTime), in seconds. */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    private static final double[] SECONDS_BUCKETS = {
+            0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    private static final List<Family> FAMILIES = new ArrayList<>();
+
+    // Per-stage latency; stage is one of decode, orient, encode, embed, save, render
+    private static final Family STAGE_SECONDS = family("imageutil_stage_duration_seconds",
+            "Time spent per image (per document for save, per PDF page for render) in each pipeline stage",
+            "histogram");
+    public static final Histogram DECODE = stage("decode");
+    public static final Histogram ORIENT = stage("orient");
+    public static final Histogram ENCODE = stage("encode");
+    public static final Histogram EMBED = stage("embed");
+    public static final Histogram SAVE = stage("save");
+    public static final Histogram RENDER = stage("render");
+
+    public static final Histogram CONVERSION_SECONDS = histogram("imageutil_conversion_duration_seconds",
+            "Time to build and save one PDF", SECONDS_BUCKETS);
+    public static final Histogram PAGES_PER_CONVERSION = histogram("imageutil_conversion_pages",
+            "Pages in each generated PDF", 1, 2, 5, 10, 20, 50, 100, 200, 500);
+    public static final Counter CONVERSIONS_FAILED = counter("imageutil_conversions_failed_total",
+            "Conversions that produced no PDF");
+    public static final Counter IMAGES_FAILED = counter("imageutil_images_failed_total",
+            "Images skipped because they could not be converted");
+
+    public static final Counter BYTES_IN = counter("imageutil_input_bytes_total",
+            "Bytes of image input read");
+    public static final Counter BYTES_OUT = counter("imageutil_output_bytes_total",
+            "Bytes of PDF output written");
+
+    // How each page was produced; passthrough and cache are the fast paths
+    private static final Family PAGES = family("imageutil_pages_total",
+            "Pages added, by how the image was prepared", "counter");
+    public static final Counter PAGES_PASSTHROUGH = counter(PAGES, "path", "passthrough");
+    public static final Counter PAGES_CACHED = counter(PAGES, "path", "cache");
+    public static final Counter PAGES_ENCODED = counter(PAGES, "path", "encoded");
+    public static final Counter PAGES_LOSSLESS = counter(PAGES, "path", "lossless");
+
+    public static final Counter IMAGES_DEDUPLICATED = counter("imageutil_images_deduplicated_total",
+            "Pages that reuse an identical image already embedded in the same PDF");
+
+    private static final Family CACHE_LOOKUPS = family("imageutil_page_cache_lookups_total",
+            "Page cache lookups, by result", "counter");
+    public static final Counter CACHE_HITS = counter(CACHE_LOOKUPS, "result", "hit");
+    public static final Counter CACHE_MISSES = counter(CACHE_LOOKUPS, "result", "miss");
+
+    private static final Family POOL_REQUESTS = family("imageutil_buffer_pool_requests_total",
+            "Pixel buffer requests, by whether a pooled buffer was reused", "counter");
+    public static final Counter POOL_HITS = counter(POOL_REQUESTS, "result", "hit");
+    public static final Counter POOL_MISSES = counter(POOL_REQUESTS, "result", "miss");
+
+    public static final Counter PAGES_RENDERED = counter("imageutil_pages_rendered_total",
+            "PDF pages rendered to images");
+
+    public static final Counter UPLOADS_REJECTED = counter("imageutil_uploads_rejected_total",
+            "Uploaded files refused after sniffing their first bytes");
+
+    public static final Gauge CONVERSIONS_IN_FLIGHT = gauge("imageutil_conversions_in_flight",
+            "Conversions currently building a PDF, synchronous or job");
+
+    public static final Counter ADMISSIONS_REJECTED = counter("imageutil_admission_rejected_total",
+            "Admission attempts that timed out waiting for the memory budget");
+    public static final Counter ADMISSION_RETRIES = counter("imageutil_admission_retries_total",
+            "Waits by queued work (jobs, batch runs) that ended without room and were retried");
+
+    static {
+        gauge("imageutil_processing_budget_used_bytes", "Pixel memory reserved by running conversions",
+                MemoryBudget.PROCESSING::getUsed);
+        gauge("imageutil_document_heap_used_bytes", "Document heap reserved by open PDFs",
+                MemoryBudget.DOCUMENT_HEAP::getUsed);
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a gauge whose value is read from the supplier at scrape time,
+     * e.g. a queue length. Used by classes that own the underlying state.
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        Family family = family(name, help, "gauge");
+        family.series.add(new Series("", value));
+    }
+
+    /** Writes all metrics in the Prometheus text exposition format (version 0.0.4). */
+    public static void writePrometheus(Writer out) throws IOException {
+        List<Family> snapshot;
+        synchronized (FAMILIES) {
+            snapshot = new ArrayList<>(FAMILIES);
+        }
+        for (Family family : snapshot) {
+            out.write("# HELP " + family.name + " " + family.help + "\n");
+            out.write("# TYPE " + family.name + " " + family.type + "\n");
+            for (Series series : family.series) {
+                series.write(family.name, out);
+            }
+        }
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = new Family(name, help, type);
+        synchronized (FAMILIES) {
+            FAMILIES.add(family);
+        }
+        return family;
+    }
+
+    private static Gauge gauge(String name, String help) {
+        Gauge gauge = new Gauge();
+        gauge(name, help, gauge::get);
+        return gauge;
+    }
+
+    private static Counter counter(String name, String help) {
+        return counter(family(name, help, "counter"), null, null);
+    }
+
+    private static Counter counter(Family family, String label, String value) {
+        Counter counter = new Counter();
+        family.series.add(new Series(labels(label, value), counter::get));
+        return counter;
+    }
+
+    private static Histogram histogram(String name, String help, double... bounds) {
+        Histogram histogram = new Histogram(bounds);
+        family(name, help, "histogram").series.add(new Series("", histogram));
+        return histogram;
+    }
+
+    private static Histogram stage(String stage) {
+        Histogram histogram = new Histogram(SECONDS_BUCKETS);
+        STAGE_SECONDS.series.add(new Series(labels("stage", stage), histogram));
+        return histogram;
+    }
+
+    private static String labels(String label, String value) {
+        return label == null ? "" : label + "=\"" + value + "\"";
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Series> series = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /** One labelled time series: either a plain value or a histogram. */
+    private static final class Series {
+        final String labels;
+        final LongSupplier value;
+        final Histogram histogram;
+
+        Series(String labels, LongSupplier value) {
+            this.labels = labels;
+            this.value = value;
+            this.histogram = null;
+        }
+
+        Series(String labels, Histogram histogram) {
+            this.labels = labels;
+            this.value = null;
+            this.histogram = histogram;
+        }
+
+        void write(String name, Writer out) throws IOException {
+            if (histogram == null) {
+                out.write(name + braces(labels) + " " + value.getAsLong() + "\n");
+                return;
+            }
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < histogram.bounds.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                out.write(name + "_bucket{" + prefix + "le=\"" + format(histogram.bounds[i]) + "\"} "
+                        + cumulative + "\n");
+            }
+            // Updates race with the scrape; keep +Inf consistent with the buckets
+            long count = Math.max(histogram.count.sum(), cumulative);
+            out.write(name + "_bucket{" + prefix + "le=\"+Inf\"} " + count + "\n");
+            out.write(name + "_sum" + braces(labels) + " " + histogram.sum.sum() + "\n");
+            out.write(name + "_count" + braces(labels) + " " + count + "\n");
+        }
+
+        private static String braces(String labels) {
+            return labels.isEmpty() ? "" : "{" + labels + "}";
+        }
+
+        private static String format(double bound) {
+            return bound == Math.rint(bound) ? Long.toString((long) bound) : Double.toString(bound);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Reads a multipart/form-data body (RFC 7578) one part at a time, straight
+ * from the request stream. Unlike the container's getParts() nothing is
+ * buffered up front: each part's content is read as it arrives, so the caller
+ * can inspect the first bytes of a file, reject it, or start working on it
+ * while the rest of the request is still being uploaded.
+ *
+ * Parts must be consumed in order; calling next() skips whatever is left of
+ * the current one. Not thread-safe.
+ */
+public final class MultipartStream {
+
+    /** Thrown when the body, or a part the caller is reading, exceeds its size limit. */
+    public static final class SizeLimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public SizeLimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    private final InputStream in;
+    private final long maxBytes;
+    private final byte[] delimiter; // CRLF "--" boundary
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int head; // unread data is buffer[head, tail)
+    private int tail;
+    private long bytesRead;
+    private boolean partEnded;
+    private boolean finished;
+    private Part current;
+
+    /**
+     * @param maxBytes largest body accepted, -1 for no limit; reading past it
+     *                 throws SizeLimitExceededException
+     */
+    public MultipartStream(InputStream in, String boundary, long maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        // The first boundary may open the body without a preceding line break;
+        // pretend there was one so every boundary looks the same
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        tail = 2;
+    }
+
+    /** The boundary of a multipart/form-data Content-Type, or null for any other type. */
+    public static String boundary(String contentType) {
+        if (contentType == null
+                || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            return null;
+        }
+        String boundary = parameter(contentType, "boundary");
+        return boundary == null || boundary.isEmpty() || boundary.length() > 70 ? null : boundary;
+    }
+
+    /** Advances to the next part, or returns null after the closing boundary. */
+    public Part next() throws IOException {
+        // Skip the preamble, or what the caller left of the previous part
+        while (readBody(null, 0, BUFFER_SIZE) != -1) {
+            // discard
+        }
+        if (finished) {
+            return null;
+        }
+
+        // After a boundary comes "--" (end of body) or CRLF and the part headers
+        int first = readByte();
+        int second = readByte();
+        if (first == '-' && second == '-') {
+            finished = true;
+            current = null;
+            return null;
+        }
+        if (first != '\r' || second != '\n') {
+            throw new IOException("Malformed multipart body: bad boundary line");
+        }
+
+        String name = null;
+        String fileName = null;
+        String contentType = null;
+        int headerBytes = 0;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new SizeLimitExceededException("Multipart part headers too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String headerName = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            if (headerName.equals("content-disposition")) {
+                name = parameter(value, "name");
+                fileName = parameter(value, "filename");
+            } else if (headerName.equals("content-type")) {
+                contentType = value;
+            }
+        }
+
+        partEnded = false;
+        current = new Part(name, fileName, contentType);
+        return current;
+    }
+
+    /** One part of the body; its content is only valid until next() is called. */
+    public final class Part {
+        private final String name;
+        private final String submittedFileName;
+        private final String contentType;
+        private final InputStream content = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (current != Part.this) {
+                    return -1;
+                }
+                return len == 0 ? 0 : readBody(b, off, len);
+            }
+        };
+
+        private Part(String name, String submittedFileName, String contentType) {
+            this.name = name;
+            this.submittedFileName = submittedFileName;
+            this.contentType = contentType;
+        }
+
+        /** The form field name. */
+        public String getName() {
+            return name;
+        }
+
+        /** File name as sent by the client (may contain a path), or null for a plain field. */
+        public String getSubmittedFileName() {
+            return submittedFileName;
+        }
+
+        /** Content-Type as declared by the client, not verified; may be null. */
+        public String getContentType() {
+            return contentType;
+        }
+
+        public boolean isFile() {
+            return submittedFileName != null;
+        }
+
+        /** The part's content, read from the request as it arrives. */
+        public InputStream getInputStream() {
+            return content;
+        }
+
+        /** Reads a plain field's value as UTF-8, refusing values over maxBytes. */
+        public String getString(int maxBytes) throws IOException {
+            ByteArrayOutputStream value = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1024];
+            int n;
+            while ((n = content.read(chunk)) != -1) {
+                if (value.size() + n > maxBytes) {
+                    throw new SizeLimitExceededException("Form field '" + name + "' too large");
+                }
+                value.write(chunk, 0, n);
+            }
+            return new String(value.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads content of the current part up to the next delimiter. Passing a
+     * null array discards instead of copying. Returns -1 (and consumes the
+     * delimiter) at the end of the part.
+     */
+    private int readBody(byte[] b, int off, int len) throws IOException {
+        if (partEnded || finished) {
+            return -1;
+        }
+        while (true) {
+            int found = indexOfDelimiter();
+            int available;
+            if (found == head) {
+                head += delimiter.length;
+                partEnded = true;
+                return -1;
+            } else if (found >= 0) {
+                available = found - head;
+            } else {
+                // Anything but the last delimiter.length - 1 bytes cannot be the start of one
+                available = tail - head - (delimiter.length - 1);
+            }
+            if (available > 0) {
+                int n = Math.min(len, available);
+                if (b != null) {
+                    System.arraycopy(buffer, head, b, off, n);
+                }
+                head += n;
+                return n;
+            }
+            if (!fill()) {
+                throw new EOFException("Unexpected end of multipart body");
+            }
+        }
+    }
+
+    private int indexOfDelimiter() {
+        int last = tail - delimiter.length;
+        outer:
+        for (int i = head; i <= last; i++) {
+            if (buffer[i] != '\r') {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int readByte() throws IOException {
+        if (head == tail && !fill()) {
+            throw new EOFException("Unexpected end of multipart body");
+        }
+        return buffer[head++] & 0xFF;
+    }
+
+    /** Reads a header line, without its CRLF; header bytes are taken as UTF-8. */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            int c = readByte();
+            if (c == '\r') {
+                int lf = readByte();
+                if (lf == '\n') {
+                    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+                }
+                line.write(c);
+                c = lf;
+            }
+            line.write(c);
+            if (line.size() > MAX_HEADER_BYTES) {
+                throw new SizeLimitExceededException("Multipart header line too long");
+            }
+        }
+    }
+
+    /** Moves unread data to the front and reads more; false at end of stream. */
+    private boolean fill() throws IOException {
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        int n = in.read(buffer, tail, buffer.length - tail);
+        if (n == -1) {
+            return false;
+        }
+        bytesRead += n;
+        if (maxBytes >= 0 && bytesRead > maxBytes) {
+            throw new SizeLimitExceededException("Request larger than " + maxBytes + " bytes");
+        }
+        tail += n;
+        return true;
+    }
+
+    /**
+     * Value of a header parameter such as name="image" (quotes optional), or
+     * null if absent. Backslashes are kept as they are: browsers send Windows
+     * paths in filename unescaped.
+     */
+    private static String parameter(String header, String parameter) {
+        int i = header.indexOf(';');
+        while (i >= 0 && i < header.length()) {
+            int start = i + 1;
+            int equals = header.indexOf('=', start);
+            if (equals < 0) {
+                return null;
+            }
+            String key = header.substring(start, equals).trim();
+            int pos = equals + 1;
+            while (pos < header.length() && header.charAt(pos) == ' ') {
+                pos++;
+            }
+            StringBuilder value = new StringBuilder();
+            if (pos < header.length() && header.charAt(pos) == '"') {
+                pos++;
+                while (pos < header.length() && header.charAt(pos) != '"') {
+                    value.append(header.charAt(pos++));
+                }
+                pos = header.indexOf(';', pos);
+            } else {
+                int end = header.indexOf(';', pos);
+                value.append(header, pos, end < 0 ? header.length() : end);
+                pos = end;
+            }
+            if (key.equalsIgnoreCase(parameter)) {
+                return value.toString().trim();
+            }
+            i = pos;
+        }
+        return null;
+    }
+}
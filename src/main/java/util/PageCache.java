@@ -0,0 +1,256 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Content-addressed cache of processed pages (the final JPEG bytes embedded in
+ * the PDF), so re-uploading the same photo skips decode, orientation and
+ * re-encode.
+ *
+ * Keys are the SHA-256 of the uploaded file plus a tag describing the
+ * processing parameters. Two LRU tiers: a small in-memory map and a larger
+ * directory on disk, each bounded by total bytes. The disk tier holds pages
+ * derived from users' photos and keeps them across restarts, so the shared
+ * cache only has one when imageutil.cache.dir names a directory for it.
+ */
+public class PageCache {
+
+    private static final Log LOG = LogFactory.getLog(PageCache.class);
+
+    /** A cached page: encoded JPEG plus its pixel size. */
+    public static final class Entry {
+        public final byte[] jpeg;
+        public final int width;
+        public final int height;
+
+        Entry(byte[] jpeg, int width, int height) {
+            this.jpeg = jpeg;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /** A page on disk with the size it was recorded at, whatever happens to the file later. */
+    private static final class DiskEntry {
+        final File file;
+        final long size;
+
+        DiskEntry(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private static volatile PageCache shared;
+
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final File dir;
+
+    // Both maps are in access order, eldest first; guarded by "this"
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<>(256, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+
+    public PageCache(long maxMemoryBytes, long maxDiskBytes, File dir) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = dir == null ? 0 : maxDiskBytes;
+        this.dir = dir;
+        if (this.maxDiskBytes > 0) {
+            loadDiskIndex();
+        }
+    }
+
+    /**
+     * The process-wide cache, configured from system properties
+     * (imageutil.cache.memoryBytes, imageutil.cache.diskBytes, imageutil.cache.dir).
+     * Memory only unless imageutil.cache.dir is set.
+     */
+    public static PageCache shared() {
+        PageCache cache = shared;
+        if (cache == null) {
+            synchronized (PageCache.class) {
+                cache = shared;
+                if (cache == null) {
+                    String dirName = System.getProperty("imageutil.cache.dir", "").trim();
+                    cache = new PageCache(
+                            Long.getLong("imageutil.cache.memoryBytes", 64L * 1024 * 1024),
+                            Long.getLong("imageutil.cache.diskBytes", 512L * 1024 * 1024),
+                            dirName.isEmpty() ? null : new File(dirName));
+                    shared = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Builds the cache key for a file: hex SHA-256 of its content followed by the
+     * parameter tag, so the same upload processed differently gets its own entry.
+     */
+    public static String key(File file, String parameters) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return sha256(in) + '-' + parameters;
+        }
+    }
+
+    /** Hex SHA-256 of everything left in the stream; the stream is not closed. */
+    static String sha256(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /** Returns the cached page or null. A disk hit is promoted to memory. */
+    public Entry get(String key) {
+        DiskEntry onDisk;
+        synchronized (this) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                return entry;
+            }
+            onDisk = disk.get(key);
+        }
+        if (onDisk == null) {
+            return null;
+        }
+        File file = onDisk.file;
+
+        try {
+            byte[] jpeg = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis()); // Keeps LRU order across restarts
+            Entry entry = new Entry(jpeg, parseWidth(file.getName()), parseHeight(file.getName()));
+            synchronized (this) {
+                putInMemory(key, entry);
+            }
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            // Evicted or corrupted under us: treat as a miss. The file may be
+            // gone or truncated by now, so take off the size it was added with
+            synchronized (this) {
+                DiskEntry removed = disk.remove(key);
+                if (removed != null) {
+                    diskBytes -= removed.size;
+                }
+            }
+            return null;
+        }
+    }
+
+    public void put(String key, byte[] jpeg, int width, int height) {
+        Entry entry = new Entry(jpeg, width, height);
+        synchronized (this) {
+            putInMemory(key, entry);
+            if (maxDiskBytes <= 0 || jpeg.length > maxDiskBytes || disk.containsKey(key)) {
+                return;
+            }
+        }
+
+        File target = new File(dir, key + "_" + width + "x" + height + ".jpg");
+        try {
+            // Write under a temp name first so readers never see a partial file
+            File temp = File.createTempFile("page_", ".tmp", dir);
+            Files.write(temp.toPath(), jpeg);
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Page cache write failed: " + e.getMessage(), e);
+            return;
+        }
+
+        synchronized (this) {
+            DiskEntry previous = disk.put(key, new DiskEntry(target, jpeg.length));
+            if (previous != null) {
+                diskBytes -= previous.size;
+            }
+            diskBytes += jpeg.length;
+            Iterator<Map.Entry<String, DiskEntry>> it = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && it.hasNext()) {
+                DiskEntry eldest = it.next().getValue();
+                diskBytes -= eldest.size;
+                eldest.file.delete();
+                it.remove();
+            }
+        }
+    }
+
+    // Caller holds the lock
+    private void putInMemory(String key, Entry entry) {
+        if (entry.jpeg.length > maxMemoryBytes) {
+            return;
+        }
+        Entry previous = memory.put(key, entry);
+        if (previous != null) {
+            memoryBytes -= previous.jpeg.length;
+        }
+        memoryBytes += entry.jpeg.length;
+
+        Iterator<Entry> it = memory.values().iterator();
+        while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+            memoryBytes -= it.next().jpeg.length;
+            it.remove();
+        }
+    }
+
+    /** Picks up pages written by earlier runs, oldest first so they are evicted first. */
+    private void loadDiskIndex() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.warn("Page cache directory not usable: " + dir);
+            return;
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".jpg"));
+        if (files == null) {
+            return;
+        }
+        java.util.Arrays.sort(files, java.util.Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String name = file.getName();
+            int sep = name.lastIndexOf('_');
+            if (sep <= 0) {
+                continue;
+            }
+            long size = file.length();
+            DiskEntry previous = disk.put(name.substring(0, sep), new DiskEntry(file, size));
+            if (previous != null) {
+                diskBytes -= previous.size;
+            }
+            diskBytes += size;
+        }
+    }
+
+    // File names are <key>_<width>x<height>.jpg
+    private static int parseWidth(String name) {
+        String size = name.substring(name.lastIndexOf('_') + 1, name.length() - 4);
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    private static int parseHeight(String name) {
+        String size = name.substring(name.lastIndexOf('_') + 1, name.length() - 4);
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+}
@@ -0,0 +1,10 @@
+package util;
+
+/**
+ * Receives progress of an imagesToPdf call. Called on the thread that builds
+ * the document, once per input image (whether it became a page or was skipped).
+ */
+public interface ProgressListener {
+
+    void imageProcessed(int done, int total);
+}
@@ -0,0 +1,136 @@
+package util;
+
+import java.util.Locale;
+
+/**
+ * Tunables for rendering PDF pages to images (ImageUtils.startRendering).
+ * Defaults come from system properties, like ConversionOptions.
+ */
+public class RenderOptions {
+
+    /** Image formats pages can be rendered to. */
+    public enum Format {
+        JPEG("jpeg", "jpg", "image/jpeg"),
+        PNG("png", "png", "image/png"),
+        WEBP("webp", "webp", "image/webp");
+
+        private final String imageIoName;
+        private final String extension;
+        private final String contentType;
+
+        Format(String imageIoName, String extension, String contentType) {
+            this.imageIoName = imageIoName;
+            this.extension = extension;
+            this.contentType = contentType;
+        }
+
+        /** Format name for ImageIO / ImagePool. */
+        public String getImageIoName() {
+            return imageIoName;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /** The format of that name (jpeg, jpg, png or webp), ignoring case. */
+        public static Format parse(String name) {
+            String value = name.trim().toLowerCase(Locale.ROOT);
+            for (Format format : values()) {
+                if (format.imageIoName.equals(value) || format.extension.equals(value)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown image format '" + name + "', expected jpeg, png or webp");
+        }
+    }
+
+    /** Highest resolution accepted; A4 at 600 dpi is already 35 MP. */
+    public static final int MAX_DPI = 600;
+
+    private int dpi;
+    private Format format;
+    private float jpegQuality;
+    private String pages;
+    private int maxConcurrency;
+
+    public RenderOptions() {
+        setDpi(Integer.getInteger("imageutil.render.dpi", 96));
+        String format = System.getProperty("imageutil.render.format");
+        this.format = format == null ? Format.JPEG : Format.parse(format);
+        this.jpegQuality = 0.85f;
+        this.pages = null;
+        int fallback = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.maxConcurrency = Math.max(1, Integer.getInteger("imageutil.maxConcurrency", fallback));
+    }
+
+    public static RenderOptions defaults() {
+        return new RenderOptions();
+    }
+
+    /**
+     * Resolution pages are rendered at, in dots per inch (72 = one pixel per
+     * point). Very large pages are rendered at less, see imageutil.render.maxPixels.
+     */
+    public int getDpi() {
+        return dpi;
+    }
+
+    public void setDpi(int dpi) {
+        if (dpi < 1 || dpi > MAX_DPI) {
+            throw new IllegalArgumentException("dpi must be between 1 and " + MAX_DPI);
+        }
+        this.dpi = dpi;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /** Quality (0-1) for JPEG and lossy WebP output; PNG ignores it. */
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public void setJpegQuality(float jpegQuality) {
+        if (!(jpegQuality > 0 && jpegQuality <= 1)) {
+            throw new IllegalArgumentException("jpegQuality must be between 0 and 1");
+        }
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Pages to render, 1-based, e.g. "1-5,8,10-" (an open range runs to the
+     * last page); null for every page.
+     */
+    public String getPages() {
+        return pages;
+    }
+
+    public void setPages(String pages) {
+        this.pages = pages == null || pages.trim().isEmpty() ? null : pages.trim();
+    }
+
+    /**
+     * Pages rendered at the same time, each on its own copy of the document.
+     * 1 renders on the calling thread.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+}
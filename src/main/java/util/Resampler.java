@@ -0,0 +1,571 @@
+package util;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Scales, orients and flattens an image to TYPE_INT_RGB in one pass, using
+ * separable convolution on int[] rasters (horizontal pass into an 8-bit
+ * intermediate, then vertical pass written straight to the oriented position).
+ *
+ * Common decoder outputs (3BYTE_BGR, BYTE_GRAY, 4BYTE_ABGR, INT_RGB, INT_ARGB)
+ * are read straight from their data buffers; anything else goes through
+ * Java2D one strip at a time. Transparent pixels end up over black, the same
+ * as drawing onto an RGB image. Large images are split by rows
+ * (imageutil.resample.parallel, default true): the calling thread works
+ * through the chunks and idle threads of the image pipeline pool join in, so
+ * resampling never runs on more threads than that pool has. The output and
+ * the intermediate buffer come from ImagePool.
+ */
+public final class Resampler {
+
+    private static final Log LOG = LogFactory.getLog(Resampler.class);
+
+    /** Convolution kernels, each scaled to the downscale ratio. */
+    public enum Filter {
+        /** Box filter widened to the ratio, i.e. area averaging. Fastest. */
+        BOX(0.5) {
+            @Override
+            double weight(double x) {
+                return x >= -0.5 && x < 0.5 ? 1.0 : 0.0;
+            }
+        },
+        /** Triangle filter. */
+        BILINEAR(1.0) {
+            @Override
+            double weight(double x) {
+                x = Math.abs(x);
+                return x < 1.0 ? 1.0 - x : 0.0;
+            }
+        },
+        /** Windowed sinc with three lobes. Sharpest. */
+        LANCZOS3(3.0) {
+            @Override
+            double weight(double x) {
+                if (x == 0.0) {
+                    return 1.0;
+                }
+                if (x <= -3.0 || x >= 3.0) {
+                    return 0.0;
+                }
+                double px = Math.PI * x;
+                return 3.0 * Math.sin(px) * Math.sin(px / 3.0) / (px * px);
+            }
+        };
+
+        final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        abstract double weight(double x);
+    }
+
+    /**
+     * Filter used by default (imageutil.resample.filter, default BOX). Decoding
+     * already subsamples by whole factors, so what is left is a ratio below 2,
+     * where area averaging is close to Lanczos and several times cheaper.
+     */
+    public static final Filter DEFAULT_FILTER = parseFilter(System.getProperty("imageutil.resample.filter"));
+
+    private static final boolean PARALLEL = !"false".equalsIgnoreCase(
+            System.getProperty("imageutil.resample.parallel"));
+
+    /** Below this many source pixels the work is not worth splitting. */
+    private static final long PARALLEL_MIN_PIXELS = 1_000_000L;
+
+    /** Rows per task when splitting, and per Java2D strip in the fallback reader. */
+    private static final int CHUNK_ROWS = 64;
+
+    /** Fixed-point weights: 14 fractional bits keeps every sum well inside an int. */
+    private static final int PRECISION_BITS = 14;
+
+    private Resampler() {
+    }
+
+    private static Filter parseFilter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Filter.BOX;
+        }
+        try {
+            return Filter.valueOf(value.trim().toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown imageutil.resample.filter '" + value + "', using BOX");
+            return Filter.BOX;
+        }
+    }
+
+    /**
+     * Scales the image to targetWidth x targetHeight (before orientation) and
+     * applies the EXIF orientation (1-8; anything else is treated as 1). The
+     * result is targetHeight x targetWidth for orientations 5-8.
+     */
+    public static BufferedImage resample(BufferedImage source, int orientation, int targetWidth, int targetHeight,
+            Filter filter) {
+        int srcWidth = source.getWidth();
+        int srcHeight = source.getHeight();
+        int transform = orientation >= 1 && orientation <= 8 ? orientation : 1;
+        boolean swapsAxes = transform >= 5;
+        BufferedImage output = ImagePool.borrowRgbImage(swapsAxes ? targetHeight : targetWidth,
+                swapsAxes ? targetWidth : targetHeight);
+        int[] out = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+
+        RowReader reader = RowReader.forImage(source);
+        ThreadPoolExecutor helpers = PARALLEL && reader.isThreadSafe()
+                && (long) srcWidth * srcHeight >= PARALLEL_MIN_PIXELS ? ImageUtils.pipelineExecutor() : null;
+
+        // Horizontal pass: source rows -> intermediate (targetWidth x srcHeight, 3 bytes a pixel)
+        Kernel horizontal = new Kernel(srcWidth, targetWidth, srcWidth == targetWidth ? null : filter);
+        int rowBytes = 3 * targetWidth;
+        byte[] intermediate = ImagePool.borrowBytes(rowBytes * srcHeight);
+        try {
+            forEachChunk(srcHeight, helpers, (from, to) -> {
+                int[] row = new int[3 * srcWidth];
+                for (int y = from; y < to; y++) {
+                    reader.readFiltered(y, row, horizontal, intermediate, y * rowBytes);
+                }
+            });
+
+            // Vertical pass: intermediate rows -> output, oriented on store
+            Kernel vertical = new Kernel(srcHeight, targetHeight, srcHeight == targetHeight ? null : filter);
+            int outWidth = output.getWidth();
+            int outHeight = output.getHeight();
+            forEachChunk(targetHeight, helpers, (from, to) -> {
+                int[] rows = new int[Math.min(CHUNK_ROWS, to - from) * targetWidth];
+                int[] acc = new int[rowBytes];
+                for (int first = from; first < to; first += CHUNK_ROWS) {
+                    int last = Math.min(to, first + CHUNK_ROWS);
+                    for (int y = first; y < last; y++) {
+                        vertical.applyAt(y, intermediate, targetWidth, rows, (y - first) * targetWidth, acc);
+                    }
+                    store(rows, first, last, out, outWidth, outHeight, targetWidth, targetHeight, transform);
+                }
+            });
+        } finally {
+            ImagePool.release(intermediate);
+        }
+        return output;
+    }
+
+    /**
+     * Writes rows [from, to) of the image before orientation to their oriented
+     * position. Orientations 5-8 turn rows into columns, so those are written
+     * column by column across the chunk to keep the stores sequential.
+     */
+    private static void store(int[] rows, int from, int to, int[] out, int outWidth, int outHeight, int width,
+            int height, int orientation) {
+        if (orientation <= 4) {
+            for (int y = from; y < to; y++) {
+                int src = (y - from) * width;
+                int dst = (orientation <= 2 ? y : height - 1 - y) * outWidth;
+                if (orientation == 1 || orientation == 4) {
+                    System.arraycopy(rows, src, out, dst, width);
+                } else {
+                    // 2: mirror horizontal, 3: 180
+                    for (int x = 0; x < width; x++) {
+                        out[dst + width - 1 - x] = rows[src + x];
+                    }
+                }
+            }
+            return;
+        }
+        // 5: transpose, 6: 90 CW, 7: transverse, 8: 270 CW
+        boolean flipRows = orientation == 7 || orientation == 8;
+        boolean flipColumns = orientation == 6 || orientation == 7;
+        for (int x = 0; x < width; x++) {
+            int dst = (flipRows ? outHeight - 1 - x : x) * outWidth;
+            for (int y = from; y < to; y++) {
+                out[dst + (flipColumns ? outWidth - 1 - y : y)] = rows[(y - from) * width + x];
+            }
+        }
+    }
+
+    private interface RangeTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs the task over rows in chunks of CHUNK_ROWS. The calling thread takes
+     * chunks itself; threads of helpers that are idle right now take some too,
+     * and helpers that only start once every chunk is taken do nothing. So the
+     * call never waits on a busy pool, and with no idle thread (many images in
+     * flight) it is simply sequential. null helpers: all on the calling thread.
+     */
+    private static void forEachChunk(int rows, ThreadPoolExecutor helpers, RangeTask task) {
+        int chunks = (rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        int idle = helpers == null || chunks < 2 || !helpers.getQueue().isEmpty() ? 0
+                : Math.min(chunks - 1, helpers.getMaximumPoolSize() - helpers.getActiveCount());
+        if (idle <= 0) {
+            task.run(0, rows);
+            return;
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(chunks);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            int c;
+            while ((c = next.getAndIncrement()) < chunks) {
+                try {
+                    if (failure.get() == null) {
+                        task.run(c * CHUNK_ROWS, Math.min(rows, (c + 1) * CHUNK_ROWS));
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    finished.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < idle; i++) {
+            try {
+                helpers.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+
+        // The buffers are shared with the helpers, so wait for them even if interrupted
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t != null) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Precomputed fixed-point weights mapping inSize samples to outSize samples:
+     * output i takes inputs [start[i], start[i] + count[i]) weighted by
+     * weights[i * maxTaps ...]. A null filter gives the identity (one tap each).
+     */
+    private static final class Kernel {
+        final int[] start;
+        final int[] count;
+        final int[] weights;
+        final int maxTaps;
+
+        Kernel(int inSize, int outSize, Filter filter) {
+            if (filter == null) {
+                maxTaps = 1;
+                start = new int[outSize];
+                count = new int[outSize];
+                weights = new int[outSize];
+                for (int i = 0; i < outSize; i++) {
+                    start[i] = i;
+                    count[i] = 1;
+                    weights[i] = 1 << PRECISION_BITS;
+                }
+                return;
+            }
+            double scale = (double) inSize / outSize;
+            double filterScale = Math.max(1.0, scale);
+            double support = filter.support * filterScale;
+            maxTaps = (int) Math.ceil(support) * 2 + 2;
+            start = new int[outSize];
+            count = new int[outSize];
+            weights = new int[outSize * maxTaps];
+
+            double[] w = new double[maxTaps];
+            for (int i = 0; i < outSize; i++) {
+                double center = (i + 0.5) * scale;
+                int min = Math.max(0, (int) Math.floor(center - support));
+                int max = Math.min(inSize, (int) Math.ceil(center + support));
+                int taps = Math.min(max - min, maxTaps);
+                double total = 0;
+                for (int k = 0; k < taps; k++) {
+                    w[k] = filter.weight((min + k - center + 0.5) / filterScale);
+                    total += w[k];
+                }
+                // Drop zero taps at both ends; the box filter has one or two of them
+                while (taps > 1 && w[taps - 1] == 0) {
+                    taps--;
+                }
+                int lead = 0;
+                while (lead < taps - 1 && w[lead] == 0) {
+                    lead++;
+                }
+                if (lead > 0) {
+                    System.arraycopy(w, lead, w, 0, taps - lead);
+                    min += lead;
+                    taps -= lead;
+                }
+                if (total == 0) {
+                    // Degenerate window (tiny box): take the nearest sample
+                    int nearest = Math.min(inSize - 1, (int) center);
+                    min = nearest;
+                    taps = 1;
+                    w[0] = 1;
+                    total = 1;
+                }
+                start[i] = min;
+                count[i] = taps;
+                for (int k = 0; k < taps; k++) {
+                    weights[i * maxTaps + k] = (int) Math.round(w[k] / total * (1 << PRECISION_BITS));
+                }
+            }
+        }
+
+        /** Filters one row of r, g, b ints into 3-byte pixels at out[outOffset]. */
+        void apply(int[] in, byte[] out, int outOffset) {
+            for (int i = 0, o = outOffset; i < start.length; i++, o += 3) {
+                int r = 0, g = 0, b = 0;
+                int p = 3 * start[i];
+                int wi = i * maxTaps;
+                for (int k = 0; k < count[i]; k++, p += 3) {
+                    int weight = weights[wi + k];
+                    r += in[p] * weight;
+                    g += in[p + 1] * weight;
+                    b += in[p + 2] * weight;
+                }
+                out[o] = (byte) clamp(r);
+                out[o + 1] = (byte) clamp(g);
+                out[o + 2] = (byte) clamp(b);
+            }
+        }
+
+        /** Same as above, reading 8-bit r, g, b samples at the given band offsets. */
+        void apply(byte[] in, int inOffset, int pixelStride, int[] bandOffsets, byte[] out, int outOffset) {
+            int or = inOffset + bandOffsets[0], og = inOffset + bandOffsets[1], ob = inOffset + bandOffsets[2];
+            for (int i = 0, o = outOffset; i < start.length; i++, o += 3) {
+                int r = 0, g = 0, b = 0;
+                int p = pixelStride * start[i];
+                int wi = i * maxTaps;
+                for (int k = 0; k < count[i]; k++, p += pixelStride) {
+                    int weight = weights[wi + k];
+                    r += (in[or + p] & 0xFF) * weight;
+                    g += (in[og + p] & 0xFF) * weight;
+                    b += (in[ob + p] & 0xFF) * weight;
+                }
+                out[o] = (byte) clamp(r);
+                out[o + 1] = (byte) clamp(g);
+                out[o + 2] = (byte) clamp(b);
+            }
+        }
+
+        /**
+         * Computes output row y as packed RGB from rows of 3-byte pixels, walking
+         * each input row sequentially; acc must hold 3 * width ints.
+         */
+        void applyAt(int y, byte[] in, int width, int[] out, int outOffset, int[] acc) {
+            int rowBytes = 3 * width;
+            java.util.Arrays.fill(acc, 0, rowBytes, 0);
+            int wi = y * maxTaps;
+            for (int k = 0; k < count[y]; k++) {
+                int weight = weights[wi + k];
+                int p = (start[y] + k) * rowBytes;
+                for (int a = 0; a < rowBytes; a++) {
+                    acc[a] += (in[p + a] & 0xFF) * weight;
+                }
+            }
+            for (int x = 0, a = 0; x < width; x++, a += 3) {
+                out[outOffset + x] = clamp(acc[a]) << 16 | clamp(acc[a + 1]) << 8 | clamp(acc[a + 2]);
+            }
+        }
+
+        private static int clamp(int value) {
+            int v = (value + (1 << (PRECISION_BITS - 1))) >> PRECISION_BITS;
+            return v < 0 ? 0 : (v > 255 ? 255 : v);
+        }
+    }
+
+    /** Reads one source row as r, g, b ints per pixel (alpha composited over black). */
+    private abstract static class RowReader {
+
+        abstract void read(int y, int[] row);
+
+        /** Reads row y and filters it into out; readers may skip the int row. */
+        void readFiltered(int y, int[] row, Kernel kernel, byte[] out, int outOffset) {
+            read(y, row);
+            kernel.apply(row, out, outOffset);
+        }
+
+        boolean isThreadSafe() {
+            return true;
+        }
+
+        static RowReader forImage(BufferedImage image) {
+            Raster raster = image.getRaster();
+            // Child rasters (getSubimage) have translated coordinates; keep those on Java2D
+            if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+                return new Java2DRowReader(image);
+            }
+            switch (image.getType()) {
+                case BufferedImage.TYPE_3BYTE_BGR:
+                case BufferedImage.TYPE_BYTE_GRAY:
+                case BufferedImage.TYPE_4BYTE_ABGR:
+                    return new ByteRowReader(image);
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB:
+                    return new IntRowReader(image);
+                default:
+                    return new Java2DRowReader(image);
+            }
+        }
+    }
+
+    private static final class ByteRowReader extends RowReader {
+        private final byte[] data;
+        private final int scanline;
+        private final int pixelStride;
+        private final int[] offsets;
+        private final int type;
+
+        ByteRowReader(BufferedImage image) {
+            Raster raster = image.getRaster();
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            scanline = model.getScanlineStride();
+            pixelStride = model.getPixelStride();
+            offsets = model.getBandOffsets();
+            type = image.getType();
+        }
+
+        @Override
+        void readFiltered(int y, int[] row, Kernel kernel, byte[] out, int outOffset) {
+            if (type == BufferedImage.TYPE_3BYTE_BGR) {
+                // Straight from the decoded bytes, the common JPEG case
+                kernel.apply(data, y * scanline, pixelStride, offsets, out, outOffset);
+            } else {
+                super.readFiltered(y, row, kernel, out, outOffset);
+            }
+        }
+
+        @Override
+        void read(int y, int[] row) {
+            int p = y * scanline;
+            int n = row.length;
+            if (type == BufferedImage.TYPE_BYTE_GRAY) {
+                int o = offsets[0];
+                for (int x = 0; x < n; x += 3, p += pixelStride) {
+                    int v = data[p + o] & 0xFF;
+                    row[x] = v;
+                    row[x + 1] = v;
+                    row[x + 2] = v;
+                }
+            } else if (type == BufferedImage.TYPE_3BYTE_BGR) {
+                int or = offsets[0], og = offsets[1], ob = offsets[2];
+                for (int x = 0; x < n; x += 3, p += pixelStride) {
+                    row[x] = data[p + or] & 0xFF;
+                    row[x + 1] = data[p + og] & 0xFF;
+                    row[x + 2] = data[p + ob] & 0xFF;
+                }
+            } else {
+                int or = offsets[0], og = offsets[1], ob = offsets[2], oa = offsets[3];
+                for (int x = 0; x < n; x += 3, p += pixelStride) {
+                    int a = data[p + oa] & 0xFF;
+                    row[x] = overBlack(data[p + or] & 0xFF, a);
+                    row[x + 1] = overBlack(data[p + og] & 0xFF, a);
+                    row[x + 2] = overBlack(data[p + ob] & 0xFF, a);
+                }
+            }
+        }
+    }
+
+    private static final class IntRowReader extends RowReader {
+        private final int[] data;
+        private final int scanline;
+        private final boolean alpha;
+
+        IntRowReader(BufferedImage image) {
+            Raster raster = image.getRaster();
+            data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            alpha = image.getType() == BufferedImage.TYPE_INT_ARGB;
+        }
+
+        @Override
+        void read(int y, int[] row) {
+            int p = y * scanline;
+            for (int x = 0; x < row.length; x += 3, p++) {
+                int argb = data[p];
+                int a = alpha ? argb >>> 24 : 255;
+                row[x] = overBlack((argb >> 16) & 0xFF, a);
+                row[x + 1] = overBlack((argb >> 8) & 0xFF, a);
+                row[x + 2] = overBlack(argb & 0xFF, a);
+            }
+        }
+    }
+
+    /**
+     * Any other image type (indexed, 16-bit, custom colour spaces): Java2D
+     * draws strips of it onto black RGB, which is what the old redraw did.
+     */
+    private static final class Java2DRowReader extends RowReader {
+        private final BufferedImage image;
+        private final BufferedImage strip;
+        private final int[] stripData;
+        private int stripStart = -1;
+
+        Java2DRowReader(BufferedImage image) {
+            this.image = image;
+            this.strip = new BufferedImage(image.getWidth(), Math.min(CHUNK_ROWS, image.getHeight()),
+                    BufferedImage.TYPE_INT_RGB);
+            this.stripData = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+        }
+
+        @Override
+        boolean isThreadSafe() {
+            return false;
+        }
+
+        @Override
+        void read(int y, int[] row) {
+            int rows = strip.getHeight();
+            if (stripStart < 0 || y < stripStart || y >= stripStart + rows) {
+                stripStart = y - y % rows;
+                int end = Math.min(image.getHeight(), stripStart + rows);
+                Graphics2D g = strip.createGraphics();
+                try {
+                    g.setColor(java.awt.Color.BLACK);
+                    g.fillRect(0, 0, strip.getWidth(), rows);
+                    g.drawImage(image, 0, 0, image.getWidth(), end - stripStart,
+                            0, stripStart, image.getWidth(), end, null);
+                } finally {
+                    g.dispose();
+                }
+            }
+            int p = (y - stripStart) * strip.getWidth();
+            for (int x = 0; x < row.length; x += 3, p++) {
+                int rgb = stripData[p];
+                row[x] = (rgb >> 16) & 0xFF;
+                row[x + 1] = (rgb >> 8) & 0xFF;
+                row[x + 2] = rgb & 0xFF;
+            }
+        }
+    }
+
+    private static int overBlack(int component, int alpha) {
+        return alpha == 255 ? component : (component * alpha + 127) / 255;
+    }
+}
@@ -0,0 +1,226 @@
+package util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Small upright JPEG previews of images, made as cheaply as possible:
+ * 1. the JPEG thumbnail most cameras embed in the EXIF data, if it is big
+ *    enough and has the image's aspect ratio; only a few KB are read, and a
+ *    thumbnail that needs no rotation or scaling is returned untouched. The
+ *    usual 160x120 one is good enough for the default size, so a preview
+ *    from it may be smaller than asked for; it is never scaled up;
+ * 2. otherwise the image decoded with source subsampling down to about the
+ *    preview size, so the decoded raster stays a few hundred pixels across
+ *    whatever the image size. These are kept in the shared PageCache, keyed
+ *    by content hash.
+ */
+public final class Thumbnails {
+
+    private static final Log LOG = LogFactory.getLog(Thumbnails.class);
+
+    /** Longest side used when the caller does not ask for a size. */
+    public static final int DEFAULT_SIZE = 256;
+
+    /** Largest preview handed out; bigger ones are what /render and the PDF are for. */
+    public static final int MAX_SIZE = 1024;
+
+    private static final float QUALITY = 0.80f;
+
+    /**
+     * An EXIF thumbnail whose aspect ratio is more than this fraction off the
+     * image's is letterboxed or left over from before a crop, so the preview
+     * is decoded from the image instead.
+     */
+    private static final double ASPECT_TOLERANCE = 0.05;
+
+    /** Long side of the EXIF thumbnail cameras write by the DCF standard (160x120). */
+    private static final int EXIF_THUMBNAIL_SIZE = 160;
+
+    /** Identifies the preview parameters in PageCache keys; bump when the output changes. */
+    private static final String CACHE_VERSION = "thumb-v1";
+
+    /** A preview as JPEG bytes. */
+    public static final class Thumbnail {
+        private final byte[] jpeg;
+        private final int width;
+        private final int height;
+
+        Thumbnail(byte[] jpeg, int width, int height) {
+            this.jpeg = jpeg;
+            this.width = width;
+            this.height = height;
+        }
+
+        public byte[] getJpeg() {
+            return jpeg;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    private Thumbnails() {
+    }
+
+    /**
+     * A preview no larger than maxSize on its longest side, from the EXIF
+     * thumbnail if usable, else from the cache or a subsampled decode.
+     */
+    public static Thumbnail create(File image, int maxSize) throws Exception {
+        checkSize(maxSize);
+        ImageHeader header = ImageHeader.probe(image);
+        if (header.getFormat() == ImageHeader.Format.UNKNOWN) {
+            throw new IllegalArgumentException("Not a supported image: " + image.getName());
+        }
+
+        if (header.hasExifThumbnail()) {
+            byte[] exif = new byte[header.getExifThumbnailLength()];
+            try (FileChannel channel = FileChannel.open(image.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.wrap(exif);
+                while (buffer.hasRemaining()
+                        && channel.read(buffer, header.getExifThumbnailOffset() + buffer.position()) > 0) {
+                    // Keep reading
+                }
+            }
+            Thumbnail thumbnail = fromExifThumbnail(exif, header, maxSize);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+
+        String cacheKey = PageCache.key(image, "s" + maxSize + "-q" + Math.round(QUALITY * 100) + "-" + CACHE_VERSION);
+        PageCache.Entry cached = PageCache.shared().get(cacheKey);
+        if (cached != null) {
+            Metrics.CACHE_HITS.inc();
+            return new Thumbnail(cached.jpeg, cached.width, cached.height);
+        }
+        Metrics.CACHE_MISSES.inc();
+
+        long start = System.nanoTime();
+        BufferedImage decoded = ImageUtils.readSubsampledImage(image, header, maxSize);
+        Metrics.DECODE.observeSince(start);
+        Thumbnail thumbnail = encode(decoded, header.getOrientation(), maxSize);
+        PageCache.shared().put(cacheKey, thumbnail.jpeg, thumbnail.width, thumbnail.height);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Preview of " + image.getName() + " decoded, " + thumbnail.width + "x" + thumbnail.height);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * A preview from the EXIF thumbnail inside the first length bytes of an
+     * image, e.g. the start of an upload, probed as header; null if there is
+     * none, it lies beyond the prefix, or it is not good enough.
+     */
+    public static Thumbnail fromPrefix(byte[] prefix, int length, ImageHeader header, int maxSize)
+            throws Exception {
+        checkSize(maxSize);
+        long offset = header.getExifThumbnailOffset();
+        if (!header.hasExifThumbnail() || offset + header.getExifThumbnailLength() > length) {
+            return null;
+        }
+        byte[] exif = java.util.Arrays.copyOfRange(prefix, (int) offset, (int) offset + header.getExifThumbnailLength());
+        return fromExifThumbnail(exif, header, maxSize);
+    }
+
+    private static void checkSize(int maxSize) {
+        if (maxSize < 1 || maxSize > MAX_SIZE) {
+            throw new IllegalArgumentException("Preview size must be between 1 and " + MAX_SIZE);
+        }
+    }
+
+    /**
+     * Uses the embedded thumbnail if it is a JPEG with the image's aspect ratio
+     * and at least 160 pixels (or maxSize, or the whole image, if less) across;
+     * null otherwise.
+     */
+    private static Thumbnail fromExifThumbnail(byte[] exif, ImageHeader header, int maxSize) throws Exception {
+        ImageHeader thumbnailHeader = ImageHeader.probe(exif, exif.length);
+        if (thumbnailHeader.getFormat() != ImageHeader.Format.JPEG || !thumbnailHeader.hasDimensions()) {
+            return null;
+        }
+        int width = thumbnailHeader.getWidth();
+        int height = thumbnailHeader.getHeight();
+        if (header.hasDimensions()) {
+            double aspect = (double) header.getWidth() / header.getHeight();
+            if (Math.abs((double) width / height - aspect) > aspect * ASPECT_TOLERANCE) {
+                return null;
+            }
+            int needed = Math.min(Math.min(maxSize, EXIF_THUMBNAIL_SIZE),
+                    Math.max(header.getWidth(), header.getHeight()));
+            if (Math.max(width, height) < needed) {
+                return null; // Too small for the size asked for
+            }
+        }
+
+        int orientation = header.getOrientation();
+        if (orientation == 1 && Math.max(width, height) <= maxSize) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Preview from EXIF thumbnail as is, " + width + "x" + height);
+            }
+            return new Thumbnail(exif, width, height);
+        }
+
+        // Rotate and/or scale it; a thumbnail decodes in well under a millisecond
+        BufferedImage decoded;
+        ImageReader reader = ImagePool.reader("jpeg");
+        if (reader == null) {
+            // No pooled JPEG reader: let ImageIO find one, or decode the full image
+            try {
+                decoded = javax.imageio.ImageIO.read(new ByteArrayInputStream(exif));
+            } catch (IOException e) {
+                return null;
+            }
+            if (decoded == null) {
+                return null;
+            }
+        } else {
+            try (ImageInputStream in = javax.imageio.ImageIO.createImageInputStream(new ByteArrayInputStream(exif))) {
+                reader.setInput(in);
+                decoded = reader.read(0);
+            } catch (IOException e) {
+                ImagePool.discardReader(reader);
+                return null;
+            }
+            ImagePool.returnReader("jpeg", reader);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Preview from EXIF thumbnail, " + width + "x" + height + " orientation " + orientation);
+        }
+        return encode(decoded, orientation, maxSize);
+    }
+
+    /** Scales to maxSize, applies the EXIF orientation and encodes as JPEG. */
+    private static Thumbnail encode(BufferedImage image, int orientation, int maxSize) throws Exception {
+        double scale = Math.min(1.0, (double) maxSize / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage upright = Resampler.resample(image, orientation, width, height, Resampler.DEFAULT_FILTER);
+        ImagePool.release(image);
+        try {
+            ByteArrayImageOutputStream out = ImageUtils.encodeJpeg(upright, QUALITY);
+            try {
+                return new Thumbnail(out.toByteArray(), upright.getWidth(), upright.getHeight());
+            } finally {
+                out.release();
+            }
+        } finally {
+            ImagePool.release(upright);
+        }
+    }
+}
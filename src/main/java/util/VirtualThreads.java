@@ -0,0 +1,98 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Optional virtual threads (Java 21+) for blocking, I/O-bound work: reading
+ * an upload from a slow client, writing the PDF. Switched on with
+ * imageutil.virtualThreads=true; the java21 Maven profile makes that the
+ * default. On an older JVM the switch is ignored with a warning and
+ * everything stays on platform threads as before.
+ *
+ * CPU-bound stages (decode, resample, encode) never run here: they stay on
+ * ImageUtils' pipeline pool, which is bounded by the number of cores.
+ *
+ * The Java 21 API is called reflectively so the sources still build for 11.
+ */
+public final class VirtualThreads {
+
+    private static final Log LOG = LogFactory.getLog(VirtualThreads.class);
+
+    private static final Method IS_VIRTUAL = lookupIsVirtual();
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    private VirtualThreads() {
+    }
+
+    /** True if blocking work is being moved to virtual threads. */
+    public static boolean isEnabled() {
+        return EXECUTOR != null;
+    }
+
+    /**
+     * Starts one virtual thread per task, or null when virtual threads are
+     * disabled or unavailable. Never shut down; it lives as long as the app.
+     */
+    public static ExecutorService executor() {
+        return EXECUTOR;
+    }
+
+    /** Whether the thread is virtual; always false before Java 21. */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static Method lookupIsVirtual() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /** Default baked in by the build (imageutil-build.properties, filtered by Maven). */
+    private static String buildDefault() {
+        java.util.Properties build = new java.util.Properties();
+        try (java.io.InputStream in = VirtualThreads.class.getResourceAsStream("/imageutil-build.properties")) {
+            if (in != null) {
+                build.load(in);
+            }
+        } catch (java.io.IOException e) {
+            // Not packaged (e.g. compiled by hand): off
+        }
+        return build.getProperty("virtualThreads", "false");
+    }
+
+    private static ExecutorService createExecutor() {
+        String value = System.getProperty("imageutil.virtualThreads", buildDefault());
+        if (!Boolean.parseBoolean(value.trim())) {
+            return null;
+        }
+        try {
+            // Thread.ofVirtual().name("imageutil-virtual-", 1).factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "imageutil-virtual-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            ExecutorService executor = (ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+            LOG.info("Running request handling on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("imageutil.virtualThreads needs Java 21 or newer (running "
+                    + System.getProperty("java.version") + "), using platform threads");
+            return null;
+        }
+    }
+}
@@ -53,6 +53,12 @@
             <div id="fileInfo" class="text-xs text-blue-600 mt-2 hidden"></div>
         </div>
 
+        <label class="flex items-center gap-2 text-sm text-gray-600 cursor-pointer">
+            <input type="checkbox" name="delivery" value="stream"
+                   class="w-4 h-4 rounded border-gray-300 text-blue-600 focus:ring-blue-500">
+            Download the PDF directly (skip the result page)
+        </label>
+
         <div class="pt-2">
             <button type="submit" class="w-full bg-gradient-to-r from-blue-600 to-purple-600 text-white font-semibold py-3.5 rounded-xl shadow-lg hover:shadow-xl transform hover:-translate-y-0.5 transition-all duration-200 flex items-center justify-center gap-2">
                 <svg class="w-5 h-5" fill="none" stroke="currentColor" viewBox="0 0 24 24">
@@ -0,0 +1,172 @@
+package controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DownloadServletTest {
+
+    @TempDir
+    File root;
+
+    private final DownloadServlet servlet = new DownloadServlet();
+    private byte[] content;
+    private long lastModified;
+
+    @BeforeEach
+    void upload() throws Exception {
+        File uploads = new File(root, "uploads");
+        uploads.mkdir();
+        content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File file = new File(uploads, "out.pdf");
+        Files.write(file.toPath(), content);
+        lastModified = file.lastModified() / 1000 * 1000;
+        servlet.init(ServletStubs.config(root));
+    }
+
+    private ServletStubs.Request request() {
+        return new ServletStubs.Request().parameter("file", "out.pdf");
+    }
+
+    private ServletStubs.Response get(ServletStubs.Request request) throws Exception {
+        ServletStubs.Response response = new ServletStubs.Response();
+        servlet.doGet(request.build(), response.build());
+        return response;
+    }
+
+    private static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    private void assertWhole(ServletStubs.Response response) {
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertNull(response.headers.get("Content-Range"));
+        assertArrayEquals(content, response.body.toByteArray());
+    }
+
+    private void assertPartial(ServletStubs.Response response, int start, int end) {
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.status);
+        assertEquals("bytes " + start + "-" + end + "/1000", response.headers.get("Content-Range"));
+        assertEquals(String.valueOf(end - start + 1), response.headers.get("Content-Length"));
+        assertArrayEquals(Arrays.copyOfRange(content, start, end + 1), response.body.toByteArray());
+    }
+
+    @Test
+    void rangesAreParsedToInclusiveBounds() {
+        assertArrayEquals(new long[] { 0, 99 }, DownloadServlet.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] { 500, 999 }, DownloadServlet.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[] { 900, 999 }, DownloadServlet.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] { 0, 999 }, DownloadServlet.parseRange("bytes=-5000", 1000));
+        assertArrayEquals(new long[] { 900, 999 }, DownloadServlet.parseRange("bytes=900-5000", 1000));
+        assertArrayEquals(new long[] { 7, 7 }, DownloadServlet.parseRange(" bytes= 7 - 7 ", 1000));
+    }
+
+    @Test
+    void malformedAndMultipleRangesServeTheWholeFile() {
+        assertNull(DownloadServlet.parseRange("bytes=5-2", 1000));
+        assertNull(DownloadServlet.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(DownloadServlet.parseRange("items=0-1", 1000));
+        assertNull(DownloadServlet.parseRange("bytes=abc-", 1000));
+        assertNull(DownloadServlet.parseRange("bytes=-", 1000));
+        assertNull(DownloadServlet.parseRange("bytes=12", 1000));
+    }
+
+    @Test
+    void rangesPastTheEndAreUnsatisfiable() {
+        assertEquals(0, DownloadServlet.parseRange("bytes=1000-", 1000).length);
+        assertEquals(0, DownloadServlet.parseRange("bytes=-0", 1000).length);
+        assertEquals(0, DownloadServlet.parseRange("bytes=0-", 0).length);
+        assertEquals(0, DownloadServlet.parseRange("bytes=-10", 0).length);
+    }
+
+    @Test
+    void aPlainGetSendsTheFileWithValidators() throws Exception {
+        ServletStubs.Response response = get(request());
+        assertWhole(response);
+        assertEquals("application/pdf", response.contentType);
+        assertEquals("bytes", response.headers.get("Accept-Ranges"));
+        assertEquals("\"3e8-" + Long.toHexString(lastModified) + "\"", response.headers.get("ETag"));
+        assertEquals(httpDate(lastModified), response.headers.get("Last-Modified"));
+    }
+
+    @Test
+    void aRangeGetsPartialContent() throws Exception {
+        assertPartial(get(request().header("Range", "bytes=100-199")), 100, 199);
+        assertPartial(get(request().header("Range", "bytes=-10")), 990, 999);
+
+        ServletStubs.Response past = get(request().header("Range", "bytes=2000-"));
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, past.status);
+        assertEquals("bytes */1000", past.headers.get("Content-Range"));
+
+        assertWhole(get(request().header("Range", "bytes=0-1,5-6")));
+    }
+
+    @Test
+    void ifRangeOnlyAppliesWhileTheFileMatches() throws Exception {
+        String etag = get(request()).headers.get("ETag");
+        assertPartial(get(request().header("Range", "bytes=0-9").header("If-Range", etag)), 0, 9);
+        assertWhole(get(request().header("Range", "bytes=0-9").header("If-Range", "\"other\"")));
+        // Weak validators never match If-Range
+        assertWhole(get(request().header("Range", "bytes=0-9").header("If-Range", "W/" + etag)));
+
+        assertPartial(get(request().header("Range", "bytes=0-9").header("If-Range", httpDate(lastModified))), 0, 9);
+        assertWhole(get(request().header("Range", "bytes=0-9")
+                .header("If-Range", httpDate(lastModified - 60_000))));
+        assertWhole(get(request().header("Range", "bytes=0-9").header("If-Range", "not a date")));
+    }
+
+    @Test
+    void currentCopiesAreNotModified() throws Exception {
+        String etag = get(request()).headers.get("ETag");
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, get(request().header("If-None-Match", etag)).status);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED,
+                get(request().header("If-None-Match", "\"a\", W/" + etag)).status);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, get(request().header("If-None-Match", "*")).status);
+        assertWhole(get(request().header("If-None-Match", "\"other\"")));
+
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED,
+                get(request().header("If-Modified-Since", httpDate(lastModified))).status);
+        assertWhole(get(request().header("If-Modified-Since", httpDate(lastModified - 60_000))));
+        // If-None-Match wins over a date that alone would be a 304
+        assertWhole(get(request().header("If-None-Match", "\"other\"")
+                .header("If-Modified-Since", httpDate(lastModified))));
+    }
+
+    @Test
+    void headSendsHeadersOnly() throws Exception {
+        ServletStubs.Request head = request();
+        head.method = "HEAD";
+        ServletStubs.Response response = get(head);
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertEquals("1000", response.headers.get("Content-Length"));
+        assertEquals(0, response.body.size());
+    }
+
+    @Test
+    void badNamesAreRejected() throws Exception {
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, get(new ServletStubs.Request()).status);
+        assertEquals(HttpServletResponse.SC_FORBIDDEN, get(new ServletStubs.Request().parameter("file", "../x")).status);
+        assertEquals(HttpServletResponse.SC_NOT_FOUND,
+                get(new ServletStubs.Request().parameter("file", "missing.pdf")).status);
+        assertEquals(HttpServletResponse.SC_NOT_FOUND,
+                get(new ServletStubs.Request().parameter("job", "no-such-job")).status);
+    }
+}
@@ -0,0 +1,130 @@
+package controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import util.MemoryBudget;
+
+class ImageServletTest {
+
+    private static final String BOUNDARY = "batch";
+
+    @TempDir
+    File dir;
+
+    private final ImageServlet servlet = new ImageServlet();
+
+    @BeforeEach
+    void init() throws Exception {
+        servlet.init(ServletStubs.config(dir));
+    }
+
+    private static byte[] jpeg(int width, int height) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, (int) System.nanoTime()); // not served from an earlier run's cache
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    /** A multipart body of fields and images, in the order given. */
+    private static final class Body {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Body field(String name, String value) {
+            out.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n"
+                    + value + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+
+        Body image(byte[] content) {
+            out.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"image\"; "
+                    + "filename=\"page.jpg\"\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(content);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+
+        ServletStubs.Request request() {
+            out.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            ServletStubs.Request request = new ServletStubs.Request();
+            request.method = "POST";
+            request.contentType = "multipart/form-data; boundary=" + BOUNDARY;
+            request.body = out.toByteArray();
+            return request.parameter("delivery", "stream");
+        }
+    }
+
+    private ServletStubs.Response post(ServletStubs.Request request) throws Exception {
+        ServletStubs.Response response = new ServletStubs.Response();
+        servlet.doPost(request.build(), response.build());
+        return response;
+    }
+
+    private String[] storedUploads() {
+        String[] names = new File(dir, "uploads").list();
+        return names == null ? new String[0] : names;
+    }
+
+    @Test
+    void imagesBecomePagesInUploadOrder() throws Exception {
+        long used = MemoryBudget.PROCESSING.getUsed();
+        ServletStubs.Response response = post(new Body()
+                .field("profile", "screen")
+                .image(jpeg(300, 500))
+                .image(jpeg(500, 300))
+                .image(jpeg(300, 500))
+                .request());
+
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertEquals("application/pdf", response.contentType);
+        try (PDDocument pdf = PDDocument.load(response.body.toByteArray())) {
+            assertEquals(3, pdf.getNumberOfPages());
+            assertTrue(pdf.getPage(1).getMediaBox().getWidth() > pdf.getPage(1).getMediaBox().getHeight());
+        }
+        assertEquals(0, storedUploads().length);
+        assertEquals(used, MemoryBudget.PROCESSING.getUsed());
+    }
+
+    @Test
+    void settingsAfterTheFirstImageAreRefused() throws Exception {
+        ServletStubs.Response response = post(new Body()
+                .image(jpeg(300, 500))
+                .field("profile", "print")
+                .image(jpeg(300, 500))
+                .request());
+
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.status);
+        assertEquals("profile must come before the first image", response.message);
+        assertEquals(0, storedUploads().length);
+    }
+
+    @Test
+    void aFullBudgetAnswers503AndKeepsNothing() throws Exception {
+        MemoryBudget budget = MemoryBudget.PROCESSING;
+        long free = budget.getCapacity() - budget.getUsed();
+        budget.tryReserve(free);
+        try {
+            ServletStubs.Response response = post(new Body().image(jpeg(300, 500)).request());
+
+            assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.status);
+            assertEquals(budget.getCapacity(), budget.getUsed());
+            assertEquals(0, storedUploads().length);
+        } finally {
+            budget.release(free);
+        }
+    }
+}
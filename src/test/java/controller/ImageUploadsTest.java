@@ -0,0 +1,247 @@
+package controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import util.AdmissionControl;
+import util.ConversionOptions;
+import util.ImageHeader;
+import util.ImageUtils;
+import util.MemoryBudget;
+import util.Metrics;
+import util.MultipartStream;
+
+class ImageUploadsTest {
+
+    private static final String BOUNDARY = "xyz";
+
+    @TempDir
+    File dir;
+
+    private String uploadPath() {
+        return dir.getPath() + File.separator;
+    }
+
+    private static byte[] jpeg(int width, int height) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpeg", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static InputStream body(String fileName, InputStream content) {
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new java.io.ByteArrayInputStream(ascii("--" + BOUNDARY
+                        + "\r\nContent-Disposition: form-data; name=\"image\"; filename=\"" + fileName
+                        + "\"\r\n\r\n")),
+                content,
+                new java.io.ByteArrayInputStream(ascii("\r\n--" + BOUNDARY + "--\r\n")))));
+    }
+
+    private MultipartStream.Part part(String fileName, byte[] content) throws Exception {
+        return new MultipartStream(body(fileName, new java.io.ByteArrayInputStream(content)), BOUNDARY, -1).next();
+    }
+
+    @Test
+    void imagesAreStoredUnderTheirBaseName() throws Exception {
+        byte[] jpeg = jpeg(120, 80);
+        ImageUploads.Upload upload = ImageUploads.receive(part("C:\\Users\\me\\photo.jpg", jpeg), uploadPath());
+
+        assertNotNull(upload);
+        assertEquals(dir, upload.file.getParentFile());
+        assertTrue(upload.file.getName().endsWith("_photo.jpg"), upload.file.getName());
+        assertArrayEquals(jpeg, Files.readAllBytes(upload.file.toPath()));
+        assertEquals(ImageHeader.Format.JPEG, upload.header.getFormat());
+        assertEquals(120, upload.header.getWidth());
+        assertEquals(80, upload.header.getHeight());
+
+        assertTrue(ImageUploads.receive(part("../..", jpeg), uploadPath()).file.getName().endsWith("_upload"));
+        ImageUploads.delete(Collections.singletonList(upload));
+        assertFalse(upload.file.exists());
+    }
+
+    @Test
+    void partsWithTheSameNameGetTheirOwnFiles() throws Exception {
+        byte[] first = jpeg(120, 80);
+        byte[] second = jpeg(80, 120);
+        ImageUploads.Upload a = ImageUploads.receive(part("holiday/image.jpg", first), uploadPath());
+        ImageUploads.Upload b = ImageUploads.receive(part("work/image.jpg", second), uploadPath());
+
+        assertFalse(a.file.equals(b.file));
+        assertArrayEquals(first, Files.readAllBytes(a.file.toPath()));
+        assertArrayEquals(second, Files.readAllBytes(b.file.toPath()));
+    }
+
+    @Test
+    void aSizeFoundBeyondThePrefixIsCheckedToo() throws Exception {
+        // Two full-size APP2 segments push the frame header past the first 64 KB
+        byte[] plain = jpeg(100, 80);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(plain, 0, 2);
+        for (int i = 0; i < 2; i++) {
+            out.write(new byte[] { (byte) 0xFF, (byte) 0xE2, (byte) 0xFF, (byte) 0xFF });
+            out.write(new byte[0xFFFF - 2]);
+        }
+        out.write(plain, 2, plain.length - 2);
+        byte[] huge = out.toByteArray();
+        for (int i = 2 + 2 * (0xFFFF + 2); i < huge.length - 1; i++) {
+            if ((huge[i] & 0xFF) == 0xFF && (huge[i + 1] & 0xFF) == 0xC0) {
+                // Height and width of the baseline frame header: 20000 x 20000
+                java.nio.ByteBuffer.wrap(huge, i + 5, 4).putShort((short) 20_000).putShort((short) 20_000);
+                break;
+            }
+        }
+
+        long rejected = Metrics.UPLOADS_REJECTED.get();
+        assertNull(ImageUploads.receive(part("huge.jpg", huge), uploadPath()));
+        assertEquals(rejected + 1, Metrics.UPLOADS_REJECTED.get());
+        assertEquals(0, dir.list().length);
+
+        // The same layout at its real size is accepted
+        huge = out.toByteArray();
+        ImageUploads.Upload upload = ImageUploads.receive(part("fine.jpg", huge), uploadPath());
+        assertNotNull(upload);
+        assertEquals(100, upload.header.getWidth());
+    }
+
+    @Test
+    void nonImagesAndEmptyPartsAreNotStored() throws Exception {
+        long rejected = Metrics.UPLOADS_REJECTED.get();
+        assertNull(ImageUploads.receive(part("evil.jpg", ascii("<?php echo 1; ?>")), uploadPath()));
+        assertNull(ImageUploads.receive(part("empty.jpg", new byte[0]), uploadPath()));
+        assertEquals(rejected + 1, Metrics.UPLOADS_REJECTED.get());
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    void oversizedFilesAreDeletedHalfway() throws Exception {
+        // A JPEG signature followed by zeros, streamed rather than held in memory
+        long size = ImageUploads.MAX_FILE_SIZE + 1;
+        InputStream content = new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                return position < size ? (position++ < 3 ? 0xFF : 0) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position >= size) {
+                    return -1;
+                }
+                int n = (int) Math.min(len, size - position);
+                for (int i = 0; i < n; i++) {
+                    b[off + i] = (byte) read();
+                }
+                return n;
+            }
+        };
+        byte[] signature = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF };
+        MultipartStream.Part part = new MultipartStream(body("big.jpg", new SequenceInputStream(
+                new java.io.ByteArrayInputStream(signature), content)), BOUNDARY, -1).next();
+
+        assertThrows(MultipartStream.SizeLimitExceededException.class,
+                () -> ImageUploads.receive(part, uploadPath()));
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    void rejectReasons() throws Exception {
+        assertNull(ImageUploads.rejectReason(ImageHeader.probe(jpeg(10, 10), jpeg(10, 10).length)));
+        byte[] text = ascii("hello");
+        assertTrue(ImageUploads.rejectReason(ImageHeader.probe(text, text.length)).startsWith("not a JPEG"));
+
+        // A PNG header claiming 20000 x 20000 pixels
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB), "png", out);
+        byte[] png = out.toByteArray();
+        java.nio.ByteBuffer.wrap(png, 16, 8).putInt(20_000).putInt(20_000);
+        assertEquals("20000x20000 exceeds 200000000 pixels",
+                ImageUploads.rejectReason(ImageHeader.probe(png, png.length)));
+    }
+
+    @Test
+    void aBusyServerAnswers503() throws Exception {
+        ImageUploads.Upload upload = ImageUploads.receive(part("a.jpg", jpeg(400, 300)), uploadPath());
+        MemoryBudget budget = MemoryBudget.PROCESSING;
+        long free = budget.getCapacity() - budget.getUsed();
+        assertTrue(budget.tryReserve(free));
+        try {
+            ServletStubs.Response response = new ServletStubs.Response();
+            assertNull(ImageUploads.admit(Collections.singletonList(upload), ConversionOptions.defaults(),
+                    response.build()));
+            assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.status);
+            assertEquals("30", response.headers.get("Retry-After"));
+        } finally {
+            budget.release(free);
+        }
+
+        ServletStubs.Response response = new ServletStubs.Response();
+        try (AdmissionControl.Ticket ticket = ImageUploads.admit(Collections.singletonList(upload),
+                ConversionOptions.defaults(), response.build())) {
+            assertNotNull(ticket);
+            assertTrue(ticket.getBytes() > 0);
+        }
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+    }
+
+    @Test
+    void anAdmissionGrowsWithEachImageAndWaitsHoldingNothing() throws Exception {
+        ConversionOptions options = ConversionOptions.defaults();
+        options.setCacheEnabled(false);
+        ImageHeader small = ImageHeader.probe(jpeg(200, 100), jpeg(200, 100).length);
+        ImageHeader large = ImageHeader.probe(jpeg(1600, 1000), jpeg(1600, 1000).length);
+        MemoryBudget budget = MemoryBudget.PROCESSING;
+        long used = budget.getUsed();
+
+        try (ImageUtils.Conversion conversion = ImageUtils.startConversion(options);
+                ImageUploads.Admission admission = new ImageUploads.Admission(options)) {
+            ServletStubs.Response response = new ServletStubs.Response();
+            assertTrue(admission.admit(small, conversion, response.build()));
+            long first = admission.getBytes();
+            assertTrue(first > 0);
+            assertTrue(admission.admit(large, conversion, response.build()));
+            assertTrue(admission.getBytes() > first);
+            assertEquals(used + admission.getBytes(), budget.getUsed());
+
+            // No room to grow: everything is given back before the wait, which then times out
+            long free = budget.getCapacity() - budget.getUsed();
+            assertTrue(budget.tryReserve(free));
+            try {
+                ImageHeader larger = ImageHeader.probe(jpeg(2000, 1200), jpeg(2000, 1200).length);
+                assertFalse(admission.admit(larger, conversion, response.build()));
+                assertEquals(0, admission.getBytes());
+                assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.status);
+                assertEquals(free + used, budget.getUsed());
+            } finally {
+                budget.release(free);
+            }
+        }
+        assertEquals(used, budget.getUsed());
+    }
+}
@@ -0,0 +1,214 @@
+package controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Just enough of the servlet API to call doGet/doPost directly: requests
+ * answer from maps, responses record what the servlet set. Anything else
+ * returns null, false or zero.
+ */
+final class ServletStubs {
+
+    private ServletStubs() {
+    }
+
+    /** A servlet config whose context serves real paths from root. */
+    static ServletConfig config(File root) {
+        ServletContext context = stub(ServletContext.class, (name, args) -> {
+            if (name.equals("getRealPath")) {
+                return root.getPath() + File.separator;
+            }
+            return null;
+        });
+        return stub(ServletConfig.class, (name, args) -> name.equals("getServletContext") ? context : null);
+    }
+
+    static final class Request {
+        final Map<String, String> parameters = new HashMap<>();
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final Map<String, Object> attributes = new HashMap<>();
+        String method = "GET";
+        String contentType;
+        byte[] body = new byte[0];
+        ServletInputStream input; // once the servlet has asked for the body
+
+        Request parameter(String name, String value) {
+            parameters.put(name, value);
+            return this;
+        }
+
+        Request header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        HttpServletRequest build() {
+            return stub(HttpServletRequest.class, (name, args) -> {
+                switch (name) {
+                    case "getMethod":
+                        return method;
+                    case "getProtocol":
+                        return "HTTP/1.1";
+                    case "getContentType":
+                        return contentType;
+                    case "getInputStream":
+                        if (input == null) {
+                            input = servletInput(body);
+                        }
+                        return input;
+                    case "getParameter":
+                        return parameters.get(args[0]);
+                    case "getHeader":
+                        return headers.get(args[0]);
+                    case "getDateHeader":
+                        String value = headers.get(args[0]);
+                        if (value == null) {
+                            return -1L;
+                        }
+                        try {
+                            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)
+                                    .toInstant().toEpochMilli();
+                        } catch (java.time.DateTimeException e) {
+                            throw new IllegalArgumentException(value);
+                        }
+                    case "getAttribute":
+                        return attributes.get(args[0]);
+                    case "setAttribute":
+                        attributes.put((String) args[0], args[1]);
+                        return null;
+                    default:
+                        return null;
+                }
+            });
+        }
+    }
+
+    static final class Response {
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int status = HttpServletResponse.SC_OK;
+        String message;
+        String contentType;
+
+        HttpServletResponse build() {
+            ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener listener) {
+                }
+            };
+            return stub(HttpServletResponse.class, (name, args) -> {
+                switch (name) {
+                    case "setStatus":
+                        status = (Integer) args[0];
+                        return null;
+                    case "sendError":
+                        status = (Integer) args[0];
+                        message = args.length > 1 ? (String) args[1] : null;
+                        return null;
+                    case "setHeader":
+                        headers.put((String) args[0], (String) args[1]);
+                        return null;
+                    case "setDateHeader":
+                        headers.put((String) args[0], DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                                ZonedDateTime.ofInstant(java.time.Instant.ofEpochMilli((Long) args[1]),
+                                        java.time.ZoneOffset.UTC)));
+                        return null;
+                    case "setContentType":
+                        contentType = (String) args[0];
+                        return null;
+                    case "setContentLength":
+                    case "setContentLengthLong":
+                        headers.put("Content-Length", String.valueOf(args[0]));
+                        return null;
+                    case "getOutputStream":
+                        return out;
+                    case "getWriter":
+                        return new java.io.PrintWriter(new java.io.OutputStreamWriter(body,
+                                java.nio.charset.StandardCharsets.UTF_8), true);
+                    default:
+                        return null;
+                }
+            });
+        }
+    }
+
+    private static ServletInputStream servletInput(byte[] body) {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener listener) {
+            }
+        };
+    }
+
+    private interface Handler {
+        Object invoke(String method, Object[] args) throws Exception;
+    }
+
+    private static <T> T stub(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    Object result = handler.invoke(method.getName(), args == null ? new Object[0] : args);
+                    if (result == null && method.getReturnType().isPrimitive()) {
+                        Class<?> returned = method.getReturnType();
+                        if (returned == boolean.class) {
+                            return false;
+                        }
+                        if (returned == long.class) {
+                            return 0L;
+                        }
+                        if (returned != void.class) {
+                            return 0;
+                        }
+                    }
+                    return result;
+                }));
+    }
+}
@@ -0,0 +1,136 @@
+package controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+
+class ThumbnailServletTest {
+
+    private static final String BOUNDARY = "preview";
+
+    private final ThumbnailServlet servlet = new ThumbnailServlet();
+
+    private static byte[] jpeg(int width, int height) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, (int) System.nanoTime()); // not served from an earlier run's cache
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    /** A JPEG whose EXIF segment holds the given thumbnail, followed by filler past the first 64 KB. */
+    private static byte[] withExifThumbnail(byte[] jpeg, byte[] thumbnail) {
+        int ifd1 = 8 + 2 + 4;
+        int thumbnailOffset = ifd1 + 2 + 2 * 12 + 4;
+        ByteBuffer tiff = ByteBuffer.allocate(thumbnailOffset + thumbnail.length);
+        tiff.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+        tiff.putShort((short) 0).putInt(ifd1);
+        tiff.putShort((short) 2);
+        tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset);
+        tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+        tiff.putInt(0);
+        tiff.put(thumbnail);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1 });
+        int length = 2 + 6 + tiff.capacity();
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.writeBytes("Exif\0\0".getBytes(StandardCharsets.ISO_8859_1));
+        out.writeBytes(tiff.array());
+        out.write(jpeg, 2, jpeg.length - 2);
+        out.writeBytes(new byte[256 * 1024]);
+        return out.toByteArray();
+    }
+
+    private static ServletStubs.Request upload(String size, String field, byte[] content) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (size != null) {
+            body.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"size\"\r\n\r\n" + size
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        body.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + field
+                + "\"; filename=\"a.jpg\"\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.writeBytes(content);
+        body.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        ServletStubs.Request request = new ServletStubs.Request();
+        request.method = "POST";
+        request.contentType = "multipart/form-data; boundary=" + BOUNDARY;
+        request.body = body.toByteArray();
+        return request;
+    }
+
+    private ServletStubs.Response post(ServletStubs.Request request) throws Exception {
+        ServletStubs.Response response = new ServletStubs.Response();
+        servlet.doPost(request.build(), response.build());
+        return response;
+    }
+
+    @Test
+    void anUploadedImageGetsAPreviewOfTheAskedSize() throws Exception {
+        ServletStubs.Response response = post(upload("100", "image", jpeg(400, 250)));
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertEquals("image/jpeg", response.contentType);
+        BufferedImage preview = ImageIO.read(new ByteArrayInputStream(response.body.toByteArray()));
+        assertEquals(100, preview.getWidth());
+        assertEquals(63, preview.getHeight());
+
+        preview = ImageIO.read(new ByteArrayInputStream(post(upload(null, "image", jpeg(400, 250)))
+                .body.toByteArray()));
+        assertEquals(256, preview.getWidth());
+    }
+
+    @Test
+    void aPreviewFromTheExifThumbnailStillReadsTheRestOfTheUpload() throws Exception {
+        byte[] exif = jpeg(160, 120);
+        ServletStubs.Request request = upload(null, "image", withExifThumbnail(jpeg(1600, 1200), exif));
+        ServletStubs.Response response = post(request);
+
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertArrayEquals(exif, response.body.toByteArray());
+        assertTrue(request.input.isFinished());
+        assertNull(response.headers.get("Connection"));
+
+        // A second image is not read; the connection is closed instead
+        request = upload(null, "image", withExifThumbnail(jpeg(1600, 1200), exif));
+        String body = new String(request.body, StandardCharsets.ISO_8859_1);
+        request.body = (body.substring(0, body.length() - 4) + "\r\nContent-Disposition: form-data; name=\"image\"; "
+                + "filename=\"b.jpg\"\r\n\r\nmore\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        response = post(request);
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertEquals("close", response.headers.get("Connection"));
+    }
+
+    @Test
+    void badUploadsAreRefused() throws Exception {
+        assertEquals(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                post(upload(null, "image", "plain text".getBytes(StandardCharsets.US_ASCII))).status);
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, post(upload("5", "image", jpeg(40, 40))).status);
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, post(upload("big", "image", jpeg(40, 40))).status);
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, post(upload(null, "other", jpeg(40, 40))).status);
+
+        ServletStubs.Request notMultipart = upload(null, "image", jpeg(40, 40));
+        notMultipart.contentType = "image/jpeg";
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, post(notMultipart).status);
+    }
+
+    @Test
+    void thereIsNoGet() throws Exception {
+        ServletStubs.Response response = new ServletStubs.Response();
+        servlet.service(new ServletStubs.Request().parameter("file", "a.jpg").build(), response.build());
+        assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, response.status);
+    }
+}
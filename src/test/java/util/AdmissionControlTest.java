@@ -0,0 +1,134 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class AdmissionControlTest {
+
+    private static final MemoryBudget BUDGET = MemoryBudget.PROCESSING;
+
+    /** Takes whatever is left of the processing budget; release the result. */
+    private static long fill() {
+        long free = BUDGET.getCapacity() - BUDGET.getUsed();
+        assertTrue(BUDGET.tryReserve(free));
+        return free;
+    }
+
+    @Test
+    void aTicketHoldsItsBytesUntilClosed() throws Exception {
+        long used = BUDGET.getUsed();
+        AdmissionControl.Ticket ticket = AdmissionControl.admit(1000, 0);
+        assertNotNull(ticket);
+        assertEquals(1000, ticket.getBytes());
+        assertEquals(used + 1000, BUDGET.getUsed());
+
+        ticket.close();
+        ticket.close();
+        assertEquals(used, BUDGET.getUsed());
+    }
+
+    @Test
+    void aTicketGrowsOnlyWhileTheBudgetHasRoom() throws Exception {
+        long used = BUDGET.getUsed();
+        try (AdmissionControl.Ticket ticket = AdmissionControl.admit(1000, 0)) {
+            assertTrue(ticket.tryGrowTo(500));
+            assertEquals(1000, ticket.getBytes());
+            assertTrue(ticket.tryGrowTo(3000));
+            assertEquals(3000, ticket.getBytes());
+            assertEquals(used + 3000, BUDGET.getUsed());
+
+            long filled = fill();
+            try {
+                assertFalse(ticket.tryGrowTo(4000));
+                assertEquals(3000, ticket.getBytes());
+            } finally {
+                BUDGET.release(filled);
+            }
+        }
+        assertEquals(used, BUDGET.getUsed());
+    }
+
+    @Test
+    void aFullBudgetRejectsAfterTheWait() throws Exception {
+        long filled = fill();
+        try {
+            long rejected = Metrics.ADMISSIONS_REJECTED.get();
+            assertNull(AdmissionControl.admit(1000, 50));
+            assertEquals(rejected + 1, Metrics.ADMISSIONS_REJECTED.get());
+        } finally {
+            BUDGET.release(filled);
+        }
+    }
+
+    @Test
+    void aRequestLargerThanTheBudgetRunsAlone() throws Exception {
+        assertEquals(0, BUDGET.getUsed());
+        try (AdmissionControl.Ticket ticket = AdmissionControl.admit(BUDGET.getCapacity() * 2, 0)) {
+            assertNotNull(ticket);
+            assertEquals(BUDGET.getCapacity(), ticket.getBytes());
+            assertNull(AdmissionControl.admit(1, 0));
+        }
+        assertEquals(0, BUDGET.getUsed());
+    }
+
+    @Test
+    void queuedAdmissionWaitsAndCountsRetriesNotRejections() throws Exception {
+        long filled = fill();
+        long rejected = Metrics.ADMISSIONS_REJECTED.get();
+        long retries = Metrics.ADMISSION_RETRIES.get();
+        CompletableFuture<AdmissionControl.Ticket> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return AdmissionControl.admitQueued(1000, 20);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try {
+            Thread.sleep(150);
+        } finally {
+            BUDGET.release(filled);
+        }
+
+        try (AdmissionControl.Ticket ticket = queued.get(5, TimeUnit.SECONDS)) {
+            assertEquals(1000, ticket.getBytes());
+        }
+        assertTrue(Metrics.ADMISSION_RETRIES.get() > retries);
+        assertEquals(rejected, Metrics.ADMISSIONS_REJECTED.get());
+    }
+
+    @Test
+    void theEstimateCountsOnlyTheImagesDecodedAtOnce() throws Exception {
+        ImageHeader small = ImageHeader.probe(jpeg(200, 100), jpeg(200, 100).length);
+        ImageHeader large = ImageHeader.probe(jpeg(800, 400), jpeg(800, 400).length);
+        ImageHeader unknown = ImageHeader.probe(new byte[16], 16);
+
+        ConversionOptions one = ConversionOptions.defaults();
+        one.setMaxConcurrency(1);
+        ConversionOptions two = ConversionOptions.defaults();
+        two.setMaxConcurrency(2);
+
+        long smallBytes = ImageUtils.estimateProcessingBytes(Collections.singletonList(small), one);
+        long largeBytes = ImageUtils.estimateProcessingBytes(Collections.singletonList(large), one);
+        assertTrue(largeBytes > smallBytes);
+
+        List<ImageHeader> all = Arrays.asList(small, large, small, unknown);
+        assertEquals(largeBytes, ImageUtils.estimateProcessingBytes(all, one));
+        assertEquals(largeBytes + smallBytes, ImageUtils.estimateProcessingBytes(all, two));
+        assertEquals(0, ImageUtils.estimateProcessingBytes(Collections.singletonList(unknown), two));
+    }
+
+    private static byte[] jpeg(int width, int height) throws Exception {
+        return TestImages.encode(TestImages.image(width, height), "jpeg");
+    }
+}
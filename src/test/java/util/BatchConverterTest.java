@@ -0,0 +1,145 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchConverterTest {
+
+    @TempDir
+    File dir;
+
+    private File folder(String path) {
+        File folder = new File(dir, path);
+        folder.mkdirs();
+        return folder;
+    }
+
+    private static int pages(File pdf) throws Exception {
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            return doc.getNumberOfPages();
+        }
+    }
+
+    private static int run(String... args) {
+        return BatchConverter.run(args);
+    }
+
+    /** in/a with two images and a text file, in/b/c with one PNG, and an empty folder. */
+    private File tree() throws Exception {
+        File a = folder("in/a");
+        TestImages.jpeg(a, "1.jpg", 300, 500);
+        TestImages.jpeg(a, "2.JPG", 500, 300);
+        Files.write(new File(a, "notes.txt").toPath(), "not an image".getBytes(StandardCharsets.US_ASCII));
+        TestImages.write(new File(folder("in/b/c"), "3.png"), TestImages.encode(TestImages.image(200, 300), "png"));
+        folder("in/empty");
+        return new File(dir, "in");
+    }
+
+    private List<String> checkpoint(File out) throws Exception {
+        return Files.readAllLines(new File(out, ".batch-checkpoint").toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void badArgumentsExitWithTwo() {
+        File out = new File(dir, "out");
+        assertEquals(2, run());
+        assertEquals(2, run("--output", out.getPath()));
+        assertEquals(2, run("--input", dir.getPath(), "--manifest", "m.txt", "--output", out.getPath()));
+        assertEquals(2, run("--input", dir.getPath()));
+        assertEquals(2, run("--input", dir.getPath(), "--output", out.getPath(), "--jobs", "0"));
+        assertEquals(2, run("--input", dir.getPath(), "--output", out.getPath(), "--jobs"));
+        assertEquals(2, run("--input", dir.getPath(), "--output", out.getPath(), "--profile", "poster"));
+        assertEquals(2, run("--input", dir.getPath(), "--output", out.getPath(), "--colour"));
+        assertEquals(2, run("--input", new File(dir, "missing").getPath(), "--output", out.getPath()));
+        assertEquals(0, run("--help"));
+        assertFalse(out.exists());
+    }
+
+    @Test
+    void everyFolderWithImagesBecomesAPdf() throws Exception {
+        File out = new File(dir, "out");
+        long misses = Metrics.CACHE_MISSES.get();
+        assertEquals(0, run("--input", tree().getPath(), "--output", out.getPath(), "--jobs", "2",
+                "--progress", "0"));
+
+        assertEquals(2, pages(new File(out, "a.pdf")));
+        assertEquals(1, pages(new File(out, "b/c.pdf")));
+        assertFalse(new File(out, "empty.pdf").exists());
+        assertFalse(new File(out, "b.pdf").exists());
+        assertEquals(Arrays.asList("a.pdf", "b/c.pdf"), checkpoint(out).stream().sorted().collect(
+                java.util.stream.Collectors.toList()));
+        assertTrue(Arrays.stream(new File(out, "b").list()).noneMatch(name -> name.endsWith(".part")));
+        // The page cache is off unless asked for
+        assertEquals(misses, Metrics.CACHE_MISSES.get());
+    }
+
+    @Test
+    void aSecondRunOnlyRedoesWhatIsMissing() throws Exception {
+        File in = tree();
+        File out = new File(dir, "out");
+        assertEquals(0, run("--input", in.getPath(), "--output", out.getPath(), "--progress", "0"));
+        File a = new File(out, "a.pdf");
+        File c = new File(out, "b/c.pdf");
+        assertTrue(a.setLastModified(1000_000));
+        assertTrue(c.delete());
+
+        assertEquals(0, run("--input", in.getPath(), "--output", out.getPath(), "--progress", "0"));
+        assertEquals(1000_000, a.lastModified());
+        assertTrue(c.isFile());
+        assertEquals(3, checkpoint(out).size());
+
+        assertEquals(0, run("--input", in.getPath(), "--output", out.getPath(), "--progress", "0", "--restart"));
+        assertTrue(a.lastModified() > 1000_000);
+        assertEquals(2, checkpoint(out).size());
+    }
+
+    @Test
+    void imagesDirectlyInTheInputFolderAreNamedAfterIt() throws Exception {
+        File photos = folder("photos");
+        TestImages.jpeg(photos, "1.jpg", 300, 500);
+        File out = new File(dir, "out");
+        assertEquals(0, run("--input", photos.getPath(), "--output", out.getPath(), "--progress", "0",
+                "--checkpoint", new File(dir, "done.txt").getPath(), "--cache"));
+        assertEquals(1, pages(new File(out, "photos.pdf")));
+        assertEquals(Arrays.asList("photos.pdf"), Files.readAllLines(new File(dir, "done.txt").toPath()));
+    }
+
+    @Test
+    void aManifestListsImagesAndFolders() throws Exception {
+        File a = folder("in/a");
+        TestImages.jpeg(a, "1.jpg", 300, 500);
+        TestImages.jpeg(a, "2.jpg", 300, 500);
+        File single = TestImages.jpeg(folder("in"), "single.jpg", 500, 300);
+        Files.write(new File(dir, "in/broken.jpg").toPath(), "not an image".getBytes(StandardCharsets.US_ASCII));
+        File manifest = new File(dir, "in/manifest.txt");
+        Files.write(manifest.toPath(), Arrays.asList(
+                "# output TAB inputs",
+                "",
+                "reports/all.pdf\ta\t" + single.getAbsolutePath(),
+                "one.pdf\tsingle.jpg",
+                "broken.pdf\tbroken.jpg"), StandardCharsets.UTF_8);
+        File out = new File(dir, "out");
+
+        // One document fails: the others are still written, the run reports it
+        assertEquals(1, run("--manifest", manifest.getPath(), "--output", out.getPath(), "--progress", "0"));
+        assertEquals(3, pages(new File(out, "reports/all.pdf")));
+        assertEquals(1, pages(new File(out, "one.pdf")));
+        assertFalse(new File(out, "broken.pdf").exists());
+        assertFalse(new File(out, "broken.pdf.part").exists());
+        assertFalse(checkpoint(out).contains("broken.pdf"));
+
+        Files.write(manifest.toPath(), Arrays.asList("no tab here"), StandardCharsets.UTF_8);
+        assertEquals(2, run("--manifest", manifest.getPath(), "--output", out.getPath(), "--progress", "0"));
+    }
+}
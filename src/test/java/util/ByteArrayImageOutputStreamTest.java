@@ -0,0 +1,127 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ByteArrayImageOutputStreamTest {
+
+    @TempDir
+    File dir;
+
+    private static byte[] counting(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    @Test
+    void growsPastItsInitialCapacity() throws Exception {
+        ByteArrayImageOutputStream out = new ByteArrayImageOutputStream(16);
+        byte[] bytes = counting(300_000);
+        out.write(bytes, 0, 10);
+        out.write(bytes[10]);
+        out.write(bytes, 11, bytes.length - 11);
+
+        assertEquals(bytes.length, out.size());
+        assertEquals(bytes.length, out.length());
+        assertArrayEquals(bytes, out.toByteArray());
+        try (InputStream in = out.toInputStream()) {
+            assertArrayEquals(bytes, in.readAllBytes());
+        }
+        out.release();
+    }
+
+    @Test
+    void seekingBackOverwritesWithoutShortening() throws Exception {
+        ByteArrayImageOutputStream out = new ByteArrayImageOutputStream(16);
+        out.write(counting(100));
+        out.seek(10);
+        out.write(new byte[] { -1, -1 });
+        assertEquals(100, out.size());
+
+        out.seek(9);
+        assertEquals(9, out.read());
+        assertEquals(0xFF, out.read());
+        byte[] rest = new byte[200];
+        assertEquals(89, out.read(rest, 0, rest.length));
+        assertEquals(-1, out.read());
+        out.release();
+    }
+
+    @Test
+    void bitsAreFlushedBeforeTheNextByte() throws Exception {
+        ByteArrayImageOutputStream out = new ByteArrayImageOutputStream(16);
+        out.writeBits(0b101, 3);
+        out.write(0x42);
+        assertArrayEquals(new byte[] { (byte) 0b1010_0000, 0x42 }, out.toByteArray());
+        out.release();
+    }
+
+    @Test
+    void writingAfterReleaseFails() throws Exception {
+        ByteArrayImageOutputStream out = new ByteArrayImageOutputStream();
+        out.write(1);
+        out.release();
+        assertEquals(0, out.size());
+        assertThrows(IOException.class, () -> out.write(2));
+    }
+
+    @Test
+    void encodedImagesDecodeFromTheBufferInPlace() throws Exception {
+        BufferedImage image = TestImages.image(320, 240);
+        ByteArrayImageOutputStream low = ImageUtils.encodeJpeg(image, 0.3f);
+        ByteArrayImageOutputStream high = ImageUtils.encodeJpeg(image, 0.95f);
+        assertTrue(low.size() < high.size());
+
+        BufferedImage decoded = ImageIO.read(high.toInputStream());
+        assertNotNull(decoded);
+        assertEquals(320, decoded.getWidth());
+        assertEquals(240, decoded.getHeight());
+        low.release();
+        high.release();
+
+        for (RenderOptions.Format format : RenderOptions.Format.values()) {
+            ByteArrayImageOutputStream encoded = ImageUtils.encodeImage(image, format, 0.8f);
+            assertEquals(ImageHeader.Format.valueOf(format.name()),
+                    ImageHeader.probe(encoded.toByteArray(), encoded.size()).getFormat());
+            assertEquals(320, ImageIO.read(encoded.toInputStream()).getWidth());
+            encoded.release();
+        }
+    }
+
+    @Test
+    void aConversionWritesNoTemporaryImages() throws Exception {
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        Set<String> before = new HashSet<>(Arrays.asList(tmp.list()));
+        ConversionOptions options = ConversionOptions.defaults();
+        options.setJpegPassthrough(false);
+        options.setCacheEnabled(false);
+        String image = TestImages.jpeg(dir, "a.jpg", 300, 500).getPath();
+        ImageUtils.imagesToPdf(new String[] { image, image }, new File(dir, "out.pdf").getPath(), options);
+
+        for (String name : tmp.list()) {
+            if (!before.contains(name)) {
+                assertTrue(!name.endsWith(".jpg") && !name.startsWith("pdf_temp_"), name);
+            }
+        }
+        assertEquals(2, new HashSet<>(Arrays.asList(dir.list())).size());
+    }
+}
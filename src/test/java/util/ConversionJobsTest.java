@@ -0,0 +1,130 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ConversionJobsTest {
+
+    @TempDir
+    File dir;
+
+    private String[] images(int count) throws Exception {
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = TestImages.jpeg(dir, "img" + i + ".jpg", 300, 500).getPath();
+        }
+        return paths;
+    }
+
+    private static ConversionOptions options() {
+        ConversionOptions options = ConversionOptions.defaults();
+        options.setCacheEnabled(false);
+        return options;
+    }
+
+    private static ConversionJob awaitFinished(ConversionJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!finished(job) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(finished(job), "job did not finish");
+        return job;
+    }
+
+    private static boolean finished(ConversionJob job) {
+        return job.getState() == ConversionJob.State.DONE || job.getState() == ConversionJob.State.FAILED;
+    }
+
+    /** The worker deletes the inputs right after marking the job finished. */
+    private static void assertDeleted(String path) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (new File(path).exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(new File(path).exists(), path);
+    }
+
+    @Test
+    void aJobConvertsInTheBackgroundAndDeletesItsInputs() throws Exception {
+        String[] images = images(3);
+        File output = new File(dir, "out.pdf");
+        ConversionJob job = awaitFinished(ConversionJobs.submit(images, output, options()));
+
+        assertEquals(ConversionJob.State.DONE, job.getState());
+        assertEquals(3, job.getPagesDone());
+        assertEquals(3, job.getTotalPages());
+        assertTrue(output.isFile());
+        assertFalse(new File(output.getPath() + ".part").exists());
+        for (String image : images) {
+            assertDeleted(image);
+        }
+        assertEquals(job, ConversionJobs.get(job.getId()));
+        assertTrue(job.toJson().contains("\"downloadUrl\":\"download?job=" + job.getId() + "\""));
+    }
+
+    @Test
+    void aJobUsesTheHeadersItWasGiven() throws Exception {
+        String[] images = images(2);
+        ImageHeader[] headers = { ImageHeader.probe(new File(images[0])), ImageHeader.probe(new File(images[1])) };
+        File output = new File(dir, "out.pdf");
+        ConversionJob job = awaitFinished(ConversionJobs.submit(images, headers, output, options()));
+
+        assertEquals(ConversionJob.State.DONE, job.getState());
+        assertEquals(2, job.getPagesDone());
+        assertTrue(output.isFile());
+    }
+
+    @Test
+    void aFailedJobReportsItsError() throws Exception {
+        File broken = new File(dir, "broken.jpg");
+        Files.write(broken.toPath(), "not an image".getBytes("US-ASCII"));
+        ConversionJob job = awaitFinished(
+                ConversionJobs.submit(new String[] { broken.getPath() }, new File(dir, "out.pdf"), options()));
+
+        assertEquals(ConversionJob.State.FAILED, job.getState());
+        assertEquals("No valid images could be processed", job.getError());
+        assertTrue(job.toJson().contains("\"error\":\"No valid images could be processed\""));
+        assertDeleted(broken.getPath());
+        assertFalse(new File(dir, "out.pdf").exists());
+        assertFalse(new File(dir, "out.pdf.part").exists());
+    }
+
+    @Test
+    void expiredJobsAreForgottenAndTheirFilesDeleted() throws Exception {
+        File output = new File(dir, "out.pdf");
+        ConversionJob job = awaitFinished(ConversionJobs.submit(images(1), output, options()));
+
+        ConversionJobs.purgeExpired(System.currentTimeMillis());
+        assertNotNull(ConversionJobs.get(job.getId()));
+
+        ConversionJobs.purgeExpired(Long.MAX_VALUE);
+        assertNull(ConversionJobs.get(job.getId()));
+        assertFalse(output.exists());
+    }
+
+    @Test
+    void aJobWaitsForMemoryWithoutCountingRejections() throws Exception {
+        long free = MemoryBudget.PROCESSING.getCapacity() - MemoryBudget.PROCESSING.getUsed();
+        assertTrue(MemoryBudget.PROCESSING.tryReserve(free));
+        long rejected = Metrics.ADMISSIONS_REJECTED.get();
+        ConversionJob job;
+        try {
+            job = ConversionJobs.submit(images(1), new File(dir, "out.pdf"), options());
+            Thread.sleep(200);
+            assertEquals(ConversionJob.State.QUEUED, job.getState());
+        } finally {
+            MemoryBudget.PROCESSING.release(free);
+        }
+        assertEquals(ConversionJob.State.DONE, awaitFinished(job).getState());
+        assertEquals(rejected, Metrics.ADMISSIONS_REJECTED.get());
+    }
+}
@@ -0,0 +1,46 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+class ConversionOptionsTest {
+
+    @Test
+    void profilesParseIgnoringCase() {
+        assertEquals(ConversionOptions.OutputProfile.SCREEN, ConversionOptions.OutputProfile.parse("screen"));
+        assertEquals(ConversionOptions.OutputProfile.PRINT, ConversionOptions.OutputProfile.parse(" Print "));
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> ConversionOptions.OutputProfile.parse("poster"));
+        assertEquals("Unknown output profile 'poster', expected screen, ebook, print or original", e.getMessage());
+    }
+
+    @Test
+    void aProfileSetsResolutionAndQuality() {
+        ConversionOptions options = ConversionOptions.defaults();
+        assertEquals(0, options.getTargetDpi());
+        assertEquals(0.85f, options.getJpegQuality());
+        assertEquals(0, options.getMaxOutputBytes());
+
+        options.setOutputProfile(ConversionOptions.OutputProfile.EBOOK);
+        assertEquals(150, options.getTargetDpi());
+        assertEquals(0.75f, options.getJpegQuality());
+
+        // Individual settings override the preset afterwards
+        options.setJpegQuality(0.5f);
+        assertEquals(150, options.getTargetDpi());
+        assertEquals(0.5f, options.getJpegQuality());
+    }
+
+    @Test
+    void outOfRangeValuesAreRefused() {
+        ConversionOptions options = ConversionOptions.defaults();
+        assertThrows(IllegalArgumentException.class, () -> options.setTargetDpi(-1));
+        assertThrows(IllegalArgumentException.class, () -> options.setJpegQuality(0));
+        assertThrows(IllegalArgumentException.class, () -> options.setJpegQuality(1.01f));
+        assertThrows(IllegalArgumentException.class, () -> options.setJpegQuality(Float.NaN));
+        assertThrows(IllegalArgumentException.class, () -> options.setMaxOutputBytes(-1));
+        assertThrows(IllegalArgumentException.class, () -> options.setMaxConcurrency(0));
+    }
+}
@@ -0,0 +1,115 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ImageDeduplicationTest {
+
+    @TempDir
+    File dir;
+
+    private static ConversionOptions options(boolean passthrough, boolean deduplicate) {
+        ConversionOptions options = ConversionOptions.defaults();
+        options.setJpegPassthrough(passthrough);
+        options.setCacheEnabled(false);
+        options.setDeduplicateImages(deduplicate);
+        return options;
+    }
+
+    /** The image stream drawn on each page, as loaded from the saved PDF. */
+    private static List<COSBase> pageImages(PDDocument doc) throws Exception {
+        List<COSBase> images = new ArrayList<>();
+        for (PDPage page : doc.getPages()) {
+            for (COSName name : page.getResources().getXObjectNames()) {
+                images.add(page.getResources().getXObject(name).getCOSObject());
+            }
+        }
+        return images;
+    }
+
+    private String[] aTwiceAndB(String copyName) throws Exception {
+        File a = TestImages.jpeg(dir, "a.jpg", 300, 500);
+        File b = TestImages.jpeg(dir, "b.jpg", 500, 300);
+        File copy = new File(dir, copyName);
+        if (!copy.equals(a)) {
+            Files.copy(a.toPath(), copy.toPath());
+        }
+        return new String[] { a.getPath(), b.getPath(), copy.getPath() };
+    }
+
+    @Test
+    void theSameJpegIsEmbeddedOnce() throws Exception {
+        File pdf = new File(dir, "out.pdf");
+        long deduplicated = Metrics.IMAGES_DEDUPLICATED.get();
+        ImageUtils.imagesToPdf(aTwiceAndB("a.jpg"), pdf.getPath(), options(true, true));
+
+        assertEquals(deduplicated + 1, Metrics.IMAGES_DEDUPLICATED.get());
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            List<COSBase> images = pageImages(doc);
+            assertEquals(3, images.size());
+            assertSame(images.get(0), images.get(2));
+            assertNotSame(images.get(0), images.get(1));
+        }
+    }
+
+    @Test
+    void identicalContentUnderAnotherNameIsSharedWhenReencoded() throws Exception {
+        File pdf = new File(dir, "out.pdf");
+        ImageUtils.imagesToPdf(aTwiceAndB("copy.jpg"), pdf.getPath(), options(false, true));
+
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            List<COSBase> images = pageImages(doc);
+            assertSame(images.get(0), images.get(2));
+            assertNotSame(images.get(0), images.get(1));
+        }
+    }
+
+    @Test
+    void switchedOffEveryPageGetsItsOwnImage() throws Exception {
+        File shared = new File(dir, "shared.pdf");
+        File separate = new File(dir, "separate.pdf");
+        String[] images = aTwiceAndB("a.jpg");
+        ImageUtils.imagesToPdf(images, shared.getPath(), options(true, true));
+        long deduplicated = Metrics.IMAGES_DEDUPLICATED.get();
+        ImageUtils.imagesToPdf(images, separate.getPath(), options(true, false));
+
+        assertEquals(deduplicated, Metrics.IMAGES_DEDUPLICATED.get());
+        try (PDDocument doc = PDDocument.load(separate)) {
+            List<COSBase> pages = pageImages(doc);
+            assertNotSame(pages.get(0), pages.get(2));
+        }
+        long imageBytes = new File(images[0]).length();
+        assertTrue(separate.length() - shared.length() >= imageBytes, "the second copy was not dropped");
+    }
+
+    @Test
+    void imagesAppendedToAnExistingPdfAreSharedToo() throws Exception {
+        File pdf = new File(dir, "out.pdf");
+        String[] images = aTwiceAndB("a.jpg");
+        ImageUtils.imagesToPdf(new String[] { images[1] }, pdf.getPath(), options(true, true));
+
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options(true, true))) {
+            edit.append(images[0]);
+            edit.append(images[2]);
+            assertEquals(3, edit.save());
+        }
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            List<COSBase> pages = pageImages(doc);
+            assertSame(pages.get(1), pages.get(2));
+        }
+    }
+}
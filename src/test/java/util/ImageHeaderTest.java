@@ -0,0 +1,166 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class ImageHeaderTest {
+
+    @TempDir
+    File dir;
+
+    private static ImageHeader probe(byte[] bytes) {
+        return ImageHeader.probe(bytes, bytes.length);
+    }
+
+    @Test
+    void baselineJpeg() throws Exception {
+        ImageHeader header = probe(TestImages.encode(TestImages.image(320, 200), "jpeg"));
+        assertEquals(ImageHeader.Format.JPEG, header.getFormat());
+        assertEquals(320, header.getWidth());
+        assertEquals(200, header.getHeight());
+        assertEquals(1, header.getOrientation());
+        assertEquals(3, header.getComponents());
+        assertEquals(ImageHeader.ColorSpace.YCBCR, header.getColorSpace());
+        assertEquals(8, header.getBitsPerComponent());
+        assertTrue(header.isSequentialJpeg());
+        assertFalse(header.isProgressive());
+        assertFalse(header.hasExifThumbnail());
+        assertEquals("jpeg", header.getImageIoFormatName());
+    }
+
+    @Test
+    void grayscaleAndProgressiveJpeg() throws Exception {
+        BufferedImage gray = new BufferedImage(40, 30, BufferedImage.TYPE_BYTE_GRAY);
+        ImageHeader header = probe(TestImages.encode(gray, "jpeg"));
+        assertEquals(1, header.getComponents());
+        assertEquals(ImageHeader.ColorSpace.GRAY, header.getColorSpace());
+
+        header = probe(TestImages.progressiveJpeg(TestImages.image(40, 30)));
+        assertTrue(header.isProgressive());
+        assertFalse(header.isSequentialJpeg());
+        assertEquals(40, header.getWidth());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 2, 3, 4, 5, 6, 7, 8 })
+    void exifOrientation(int orientation) throws Exception {
+        byte[] jpeg = TestImages.withExif(TestImages.encode(TestImages.image(64, 48), "jpeg"), orientation, null);
+        ImageHeader header = probe(jpeg);
+        assertEquals(orientation, header.getOrientation());
+        // Stored size, before the orientation is applied
+        assertEquals(64, header.getWidth());
+        assertEquals(48, header.getHeight());
+    }
+
+    @Test
+    void littleEndianAndOutOfRangeOrientations() {
+        byte[] exif = { 'E', 'x', 'i', 'f', 0, 0, 'I', 'I', 42, 0, 8, 0, 0, 0,
+                1, 0, 0x12, 0x01, 3, 0, 1, 0, 0, 0, 6, 0, 0, 0, 0, 0, 0, 0 };
+        assertEquals(6, ImageHeader.parseExifOrientation(exif));
+
+        exif[24] = 9;
+        assertEquals(1, ImageHeader.parseExifOrientation(exif));
+        assertEquals(1, ImageHeader.parseExifOrientation(Arrays.copyOf(exif, 12)));
+    }
+
+    @Test
+    void exifThumbnailLocation() throws Exception {
+        byte[] thumbnail = TestImages.encode(TestImages.image(160, 120), "jpeg");
+        byte[] jpeg = TestImages.withExif(TestImages.encode(TestImages.image(640, 480), "jpeg"), 6, thumbnail);
+        File file = TestImages.write(new File(dir, "exif.jpg"), jpeg);
+
+        ImageHeader header = ImageHeader.probe(file);
+        assertEquals(6, header.getOrientation());
+        assertTrue(header.hasExifThumbnail());
+        int offset = (int) header.getExifThumbnailOffset();
+        assertArrayEquals(thumbnail,
+                Arrays.copyOfRange(jpeg, offset, offset + header.getExifThumbnailLength()));
+        assertEquals(640, header.getWidth());
+    }
+
+    @Test
+    void aFrameHeaderBeyondThePrefixIsFoundInTheFile() throws Exception {
+        byte[] plain = TestImages.encode(TestImages.image(100, 80), "jpeg");
+        // Two full-size APP2 segments push the frame header past the first 64 KB
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(plain, 0, 2);
+        for (int i = 0; i < 2; i++) {
+            out.write(new byte[] { (byte) 0xFF, (byte) 0xE2, (byte) 0xFF, (byte) 0xFF });
+            out.write(new byte[0xFFFF - 2]);
+        }
+        out.write(plain, 2, plain.length - 2);
+        byte[] jpeg = out.toByteArray();
+
+        ImageHeader prefix = ImageHeader.probe(jpeg, ImageHeader.HEAD_BYTES);
+        assertEquals(ImageHeader.Format.JPEG, prefix.getFormat());
+        assertFalse(prefix.hasDimensions());
+
+        ImageHeader full = ImageHeader.probe(TestImages.write(new File(dir, "app2.jpg"), jpeg));
+        assertTrue(full.hasDimensions());
+        assertEquals(100, full.getWidth());
+        assertEquals(80, full.getHeight());
+    }
+
+    @Test
+    void png() throws Exception {
+        ImageHeader rgb = probe(TestImages.encode(TestImages.image(33, 22), "png"));
+        assertEquals(ImageHeader.Format.PNG, rgb.getFormat());
+        assertEquals(33, rgb.getWidth());
+        assertEquals(22, rgb.getHeight());
+        assertFalse(rgb.hasAlpha());
+        assertEquals(ImageHeader.ColorSpace.RGB, rgb.getColorSpace());
+
+        ImageHeader alpha = probe(TestImages.encode(new BufferedImage(5, 6, BufferedImage.TYPE_INT_ARGB), "png"));
+        assertTrue(alpha.hasAlpha());
+        assertEquals(4, alpha.getComponents());
+
+        ImageHeader gray = probe(TestImages.encode(new BufferedImage(5, 6, BufferedImage.TYPE_BYTE_GRAY), "png"));
+        assertEquals(ImageHeader.ColorSpace.GRAY, gray.getColorSpace());
+    }
+
+    @Test
+    void gifBmpAndWebp() throws Exception {
+        ImageHeader gif = probe(TestImages.encode(TestImages.image(70, 50), "gif"));
+        assertEquals(ImageHeader.Format.GIF, gif.getFormat());
+        assertEquals(70, gif.getWidth());
+        assertEquals(50, gif.getHeight());
+
+        ImageHeader bmp = probe(TestImages.encode(TestImages.image(71, 51), "bmp"));
+        assertEquals(ImageHeader.Format.BMP, bmp.getFormat());
+        assertEquals(71, bmp.getWidth());
+        assertEquals(51, bmp.getHeight());
+
+        ImageHeader webp = probe(TestImages.encode(TestImages.image(72, 52), "webp"));
+        assertEquals(ImageHeader.Format.WEBP, webp.getFormat());
+        assertEquals(72, webp.getWidth());
+        assertEquals(52, webp.getHeight());
+    }
+
+    @Test
+    void unknownAndTruncatedInput() {
+        ImageHeader text = probe("just some text".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(ImageHeader.Format.UNKNOWN, text.getFormat());
+        assertFalse(text.hasDimensions());
+        assertEquals(1, text.getOrientation());
+
+        ImageHeader empty = ImageHeader.probe(new byte[0], 0);
+        assertEquals(ImageHeader.Format.UNKNOWN, empty.getFormat());
+
+        ImageHeader truncated = ImageHeader.probe(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0 }, 4);
+        assertEquals(ImageHeader.Format.JPEG, truncated.getFormat());
+        assertFalse(truncated.hasDimensions());
+    }
+}
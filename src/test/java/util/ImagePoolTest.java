@@ -0,0 +1,130 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.CompletableFuture;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+
+import org.junit.jupiter.api.Test;
+
+class ImagePoolTest {
+
+    @Test
+    void sizeClassesArePowersOfTwoAndThreeQuarters() {
+        assertEquals(100, ImagePool.sizeClass(100));
+        assertEquals(64 * 1024, ImagePool.sizeClass(64 * 1024));
+        assertEquals(96 * 1024, ImagePool.sizeClass(64 * 1024 + 1));
+        assertEquals(96 * 1024, ImagePool.sizeClass(96 * 1024));
+        assertEquals(128 * 1024, ImagePool.sizeClass(96 * 1024 + 1));
+        assertEquals(128 * 1024, ImagePool.sizeClass(128 * 1024));
+        assertEquals(192 * 1024, ImagePool.sizeClass(128 * 1024 + 1));
+        assertEquals((1 << 30) + 1, ImagePool.sizeClass((1 << 30) + 1));
+    }
+
+    @Test
+    void releasedArraysAreHandedOutAgainWithinTheirClass() {
+        long hits = Metrics.POOL_HITS.get();
+        int[] ints = ImagePool.borrowInts(100_000);
+        assertEquals(128 * 1024, ints.length);
+        ImagePool.release(ints);
+        assertSame(ints, ImagePool.borrowInts(120_000));
+        assertEquals(hits + 1, Metrics.POOL_HITS.get());
+
+        byte[] bytes = ImagePool.borrowBytes(200_000);
+        assertEquals(256 * 1024, bytes.length);
+        ImagePool.release(bytes);
+        assertSame(bytes, ImagePool.borrowBytes(256 * 1024));
+        assertNotSame(bytes, ImagePool.borrowBytes(256 * 1024));
+    }
+
+    @Test
+    void smallAndOddSizedArraysAreNotKept() {
+        byte[] small = ImagePool.borrowBytes(100);
+        assertEquals(100, small.length);
+        ImagePool.release(small);
+        assertNotSame(small, ImagePool.borrowBytes(100));
+
+        int[] odd = new int[100_000];
+        ImagePool.release(odd);
+        assertNotSame(odd, ImagePool.borrowInts(100_000));
+    }
+
+    @Test
+    void pooledImagesHaveTheStandardTypes() {
+        BufferedImage rgb = ImagePool.borrowRgbImage(300, 300);
+        assertEquals(BufferedImage.TYPE_INT_RGB, rgb.getType());
+        assertEquals(300, rgb.getWidth());
+        int[] pixels = ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData();
+        ImagePool.release(rgb);
+        BufferedImage again = ImagePool.borrowRgbImage(310, 290);
+        assertSame(pixels, ((DataBufferInt) again.getRaster().getDataBuffer()).getData());
+        again.setRGB(309, 289, 0x123456);
+        assertEquals(0x123456, again.getRGB(309, 289) & 0xFFFFFF);
+        ImagePool.release(again);
+
+        BufferedImage bgr = ImagePool.borrowByteImage(300, 200, 3);
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, bgr.getType());
+        bgr.setRGB(0, 0, 0xFF8040);
+        byte[] data = ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData();
+        assertEquals(0x40, data[0] & 0xFF);
+        assertEquals(0xFF, data[2] & 0xFF);
+        ImagePool.release(bgr);
+
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, ImagePool.borrowByteImage(300, 200, 1).getType());
+    }
+
+    @Test
+    void returnedReadersAndWritersGoToTheNextBorrowerOnAnyThread() throws Exception {
+        ImageReader reader = ImagePool.reader("jpeg");
+        assertNotNull(reader);
+        ImageReader other = ImagePool.reader("jpeg");
+        assertNotSame(reader, other);
+        ImagePool.returnReader("jpeg", other);
+
+        reader.setInput(javax.imageio.ImageIO.createImageInputStream(new java.io.ByteArrayInputStream(new byte[1])));
+        ImagePool.returnReader("jpeg", reader);
+        assertNull(reader.getInput());
+        assertSame(reader, CompletableFuture.supplyAsync(() -> ImagePool.reader("jpeg")).get());
+
+        ImagePool.discardReader(reader);
+        assertNotSame(reader, ImagePool.reader("jpeg"));
+
+        ImageWriter writer = ImagePool.writer("jpeg");
+        assertNotNull(writer);
+        ImagePool.returnWriter("jpeg", writer);
+        assertSame(writer, ImagePool.writer("jpeg"));
+        ImagePool.discardWriter(writer);
+        assertNotSame(writer, ImagePool.writer("jpeg"));
+
+        assertNull(ImagePool.reader("no-such-format"));
+        assertNull(ImagePool.writer("no-such-format"));
+    }
+
+    @Test
+    void onlySoManyIdleWritersAreKept() {
+        // Borrowing more than can be idle empties the pool first
+        java.util.List<ImageWriter> first = new java.util.ArrayList<>();
+        for (int i = 0; i <= ImagePool.MAX_IDLE_CODECS; i++) {
+            first.add(ImagePool.writer("png"));
+        }
+        for (ImageWriter writer : first) {
+            ImagePool.returnWriter("png", writer);
+        }
+
+        java.util.Set<ImageWriter> second = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+        for (int i = 0; i <= ImagePool.MAX_IDLE_CODECS; i++) {
+            second.add(ImagePool.writer("png"));
+        }
+        second.retainAll(first);
+        assertEquals(ImagePool.MAX_IDLE_CODECS, second.size());
+    }
+}
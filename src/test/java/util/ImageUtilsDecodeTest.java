@@ -0,0 +1,60 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ImageUtilsDecodeTest {
+
+    @TempDir
+    File dir;
+
+    private static void assertColor(Color expected, BufferedImage image, int x, int y) {
+        Color actual = new Color(image.getRGB(x, y));
+        String at = "pixel " + x + "," + y + " is " + actual;
+        assertEquals(expected.getRed(), actual.getRed(), 40, at);
+        assertEquals(expected.getGreen(), actual.getGreen(), 40, at);
+        assertEquals(expected.getBlue(), actual.getBlue(), 40, at);
+    }
+
+    @Test
+    void smallImagesAreReadWhole() throws Exception {
+        File jpeg = TestImages.jpeg(dir, "small.jpg", 400, 300);
+        BufferedImage image = ImageUtils.readSubsampledImage(jpeg, 1000);
+        assertEquals(400, image.getWidth());
+        assertEquals(300, image.getHeight());
+    }
+
+    @Test
+    void largeImagesAreSubsampledToAboutTheTargetSize() throws Exception {
+        File jpeg = TestImages.jpeg(dir, "large.jpg", 1000, 800);
+        BufferedImage image = ImageUtils.readSubsampledImage(jpeg, 300);
+        assertEquals(334, image.getWidth());
+        assertEquals(267, image.getHeight());
+        assertColor(Color.RED, image, 80, 60);
+        assertColor(Color.BLUE, image, 250, 200);
+    }
+
+    @Test
+    void imagesPastTheBandedThresholdAreDecodedInBandsToTheTargetSize() throws Exception {
+        // 12.8 MP with a subsampling factor of 1: over the 12.5 MP default
+        File jpeg = TestImages.jpeg(dir, "panorama.jpg", 4000, 3200);
+        BufferedImage image = ImageUtils.readSubsampledImage(jpeg, 3000);
+
+        assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+        assertEquals(3000, image.getWidth());
+        assertEquals(2400, image.getHeight());
+        // The red quarter ends at 1500x1200 once scaled, across band boundaries
+        assertColor(Color.RED, image, 10, 10);
+        assertColor(Color.RED, image, 1490, 1190);
+        assertColor(Color.BLUE, image, 1510, 1190);
+        assertColor(Color.BLUE, image, 1490, 1210);
+        assertColor(Color.BLUE, image, 2999, 2399);
+        ImagePool.release(image);
+    }
+}
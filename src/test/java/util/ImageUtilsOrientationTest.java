@@ -0,0 +1,107 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Every EXIF orientation must come out upright, whether the PDF turns the
+ * original JPEG (lossless rotation) or the pixels are turned and re-encoded.
+ */
+class ImageUtilsOrientationTest {
+
+    @TempDir
+    File dir;
+
+    /** Where the stored image's top-left corner ends up when shown, per orientation. */
+    private static final String[] CORNER = { null, "top-left", "top-right", "bottom-right", "bottom-left",
+            "top-left", "top-right", "bottom-right", "bottom-left" };
+
+    private File orientedJpeg(int orientation) throws Exception {
+        // 5:3, so the landscape fallback for 4:3 phone photos stays out of it
+        byte[] jpeg = TestImages.encode(TestImages.image(500, 300), "jpeg");
+        return TestImages.write(new File(dir, "o" + orientation + ".jpg"), TestImages.withExif(jpeg, orientation, null));
+    }
+
+    private File convert(File image, boolean losslessRotation) throws Exception {
+        ConversionOptions options = ConversionOptions.defaults();
+        options.setMaxConcurrency(1);
+        options.setCacheEnabled(false);
+        options.setJpegPassthrough(losslessRotation);
+        options.setLosslessJpegRotation(losslessRotation);
+        File pdf = new File(dir, "out.pdf");
+        ImageUtils.imagesToPdf(new String[] { image.getPath() }, pdf.getPath(), options);
+        return pdf;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 2, 3, 4, 5, 6, 7, 8 })
+    void losslessRotationShowsTheImageUpright(int orientation) throws Exception {
+        File jpeg = orientedJpeg(orientation);
+        File pdf = convert(jpeg, true);
+
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            // The original bytes, EXIF and all; only the page turns them
+            PDPage page = doc.getPage(0);
+            COSName name = page.getResources().getXObjectNames().iterator().next();
+            try (InputStream in = page.getResources().getXObject(name).getCOSObject().createRawInputStream()) {
+                assertArrayEquals(Files.readAllBytes(jpeg.toPath()), in.readAllBytes());
+            }
+        }
+        assertUpright(pdf, orientation);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 2, 3, 4, 5, 6, 7, 8 })
+    void reencodingShowsTheImageUpright(int orientation) throws Exception {
+        assertUpright(convert(orientedJpeg(orientation), false), orientation);
+    }
+
+    /** Renders the page and finds the red quarter within the blue image. */
+    private static void assertUpright(File pdf, int orientation) throws Exception {
+        BufferedImage rendered;
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            rendered = new PDFRenderer(doc).renderImageWithDPI(0, 36);
+        }
+        int left = Integer.MAX_VALUE, right = -1, top = Integer.MAX_VALUE, bottom = -1;
+        long redX = 0, redY = 0, reds = 0;
+        for (int y = 0; y < rendered.getHeight(); y++) {
+            for (int x = 0; x < rendered.getWidth(); x++) {
+                int rgb = rendered.getRGB(x, y);
+                int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+                if (r + g + b > 600) {
+                    continue; // Page background
+                }
+                left = Math.min(left, x);
+                right = Math.max(right, x);
+                top = Math.min(top, y);
+                bottom = Math.max(bottom, y);
+                if (r > 160 && g < 100 && b < 100) {
+                    redX += x;
+                    redY += y;
+                    reds++;
+                }
+            }
+        }
+        int width = right - left + 1;
+        int height = bottom - top + 1;
+        assertEquals(orientation >= 5, height > width, "shown portrait");
+
+        double x = (double) redX / reds - left;
+        double y = (double) redY / reds - top;
+        String corner = (y < height / 2.0 ? "top" : "bottom") + "-" + (x < width / 2.0 ? "left" : "right");
+        assertEquals(CORNER[orientation], corner);
+    }
+}
@@ -0,0 +1,109 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ImageUtilsOutputSizeTest {
+
+    @TempDir
+    File dir;
+
+    private static ConversionOptions options() {
+        ConversionOptions options = ConversionOptions.defaults();
+        options.setCacheEnabled(false);
+        options.setDeduplicateImages(false);
+        return options;
+    }
+
+    /** Noise, which JPEG cannot squeeze much: the worst case for a size budget. */
+    private String[] noisyImages(int count, int width, int height) throws Exception {
+        Random random = new Random(42);
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+            paths[i] = TestImages.write(new File(dir, "noise" + i + ".jpg"), TestImages.encode(image, "jpeg"))
+                    .getPath();
+        }
+        return paths;
+    }
+
+    private static List<int[]> imageSizes(File pdf) throws Exception {
+        List<int[]> sizes = new ArrayList<>();
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            for (PDPage page : doc.getPages()) {
+                for (COSName name : page.getResources().getXObjectNames()) {
+                    PDImageXObject image = (PDImageXObject) page.getResources().getXObject(name);
+                    sizes.add(new int[] { image.getWidth(), image.getHeight() });
+                }
+            }
+        }
+        return sizes;
+    }
+
+    @Test
+    void theTargetSizeFollowsThePageBoxAndResolution() {
+        assertEquals(2048, ImageUtils.targetMaxSize(4000, 3000, 0));
+        // 4:3 on an A4 page with 20pt margins: 740pt along the long side
+        assertEquals(740, ImageUtils.targetMaxSize(4000, 3000, 72));
+        assertEquals(740, ImageUtils.targetMaxSize(3000, 4000, 72));
+        assertEquals(1542, ImageUtils.targetMaxSize(4000, 3000, 150));
+        assertEquals(2048, ImageUtils.targetMaxSize(4000, 3000, 300));
+        // A panorama is limited by the page's long side: 802pt
+        assertEquals(1070, ImageUtils.targetMaxSize(8000, 1000, 96));
+        // Never upscaled
+        assertEquals(500, ImageUtils.targetMaxSize(500, 400, 300));
+    }
+
+    @Test
+    void aProfileScalesImagesToThePage() throws Exception {
+        // Not 4:3, which would be turned to portrait as a phone photo
+        String[] images = { TestImages.jpeg(dir, "big.jpg", 1600, 1000).getPath() };
+        File original = new File(dir, "original.pdf");
+        ImageUtils.imagesToPdf(images, original.getPath(), options());
+
+        ConversionOptions screen = options();
+        screen.setOutputProfile(ConversionOptions.OutputProfile.SCREEN);
+        File small = new File(dir, "screen.pdf");
+        ImageUtils.imagesToPdf(images, small.getPath(), screen);
+
+        assertEquals(1600, imageSizes(original).get(0)[0]);
+        // The page's 802pt long side at 96 dpi
+        assertEquals(1070, imageSizes(small).get(0)[0]);
+        assertTrue(small.length() < original.length());
+    }
+
+    @Test
+    void theOutputStaysWithinItsSizeBudget() throws Exception {
+        String[] images = noisyImages(3, 800, 500);
+        File unlimited = new File(dir, "unlimited.pdf");
+        ImageUtils.imagesToPdf(images, unlimited.getPath(), options());
+
+        long budget = 150 * 1024;
+        assertTrue(unlimited.length() > 2 * budget, "test images too small: " + unlimited.length());
+        ConversionOptions options = options();
+        options.setMaxOutputBytes(budget);
+        File limited = new File(dir, "limited.pdf");
+        ImageUtils.imagesToPdf(images, limited.getPath(), options);
+
+        assertTrue(limited.length() <= budget, limited.length() + " bytes");
+        assertEquals(3, imageSizes(limited).size());
+    }
+}
@@ -0,0 +1,261 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ImageUtilsTest {
+
+    @TempDir
+    File dir;
+
+    /** Options that send every image through decode and re-encode, untouched by the cache. */
+    private static ConversionOptions reencoding(int concurrency) {
+        ConversionOptions options = ConversionOptions.defaults();
+        options.setMaxConcurrency(concurrency);
+        options.setJpegPassthrough(false);
+        options.setCacheEnabled(false);
+        options.setDeduplicateImages(false);
+        return options;
+    }
+
+    /** Options that embed JPEGs as they are where possible. */
+    private static ConversionOptions passthrough() {
+        ConversionOptions options = reencoding(1);
+        options.setJpegPassthrough(true);
+        return options;
+    }
+
+    /** Portrait and landscape images, alternating, none of them 4:3. */
+    private String[] alternatingImages(int count) throws Exception {
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = TestImages.jpeg(dir, "img" + i + ".jpg", i % 2 == 0 ? 300 : 600, i % 2 == 0 ? 600 : 300)
+                    .getPath();
+        }
+        return paths;
+    }
+
+    private static List<Boolean> portraitPages(File pdf) throws Exception {
+        List<Boolean> portrait = new ArrayList<>();
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            for (PDPage page : doc.getPages()) {
+                portrait.add(page.getMediaBox().getHeight() > page.getMediaBox().getWidth());
+            }
+        }
+        return portrait;
+    }
+
+    /** The stored bytes of the image drawn on each page, before any filter is undone. */
+    private static List<byte[]> rawImageStreams(File pdf) throws Exception {
+        List<byte[]> streams = new ArrayList<>();
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            for (PDPage page : doc.getPages()) {
+                for (COSName name : page.getResources().getXObjectNames()) {
+                    PDXObject xobject = page.getResources().getXObject(name);
+                    if (xobject instanceof PDImageXObject) {
+                        assertEquals(COSName.DCT_DECODE, xobject.getCOSObject().getFilters());
+                        try (InputStream in = xobject.getCOSObject().createRawInputStream()) {
+                            streams.add(in.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+        return streams;
+    }
+
+    @Test
+    void parallelPagesKeepTheOrderTheImagesWereGiven() throws Exception {
+        String[] images = alternatingImages(9);
+        File pdf = new File(dir, "out.pdf");
+        ImageUtils.imagesToPdf(images, pdf.getPath(), reencoding(4));
+
+        List<Boolean> portrait = portraitPages(pdf);
+        assertEquals(images.length, portrait.size());
+        for (int i = 0; i < images.length; i++) {
+            assertEquals(i % 2 == 0, portrait.get(i), "page " + (i + 1));
+        }
+    }
+
+    @Test
+    void parallelAndSequentialGiveTheSamePages() throws Exception {
+        String[] images = alternatingImages(5);
+        File sequential = new File(dir, "sequential.pdf");
+        File parallel = new File(dir, "parallel.pdf");
+        ImageUtils.imagesToPdf(images, sequential.getPath(), reencoding(1));
+        ImageUtils.imagesToPdf(images, parallel.getPath(), reencoding(3));
+
+        assertEquals(portraitPages(sequential), portraitPages(parallel));
+    }
+
+    @Test
+    void anImageThatCannotBeConvertedIsSkipped() throws Exception {
+        String[] images = alternatingImages(4);
+        File broken = new File(dir, "broken.jpg");
+        Files.write(broken.toPath(), "not an image".getBytes("US-ASCII"));
+        images[1] = broken.getPath();
+        File pdf = new File(dir, "out.pdf");
+        ImageUtils.imagesToPdf(images, pdf.getPath(), reencoding(4));
+
+        // Pages 1, 3 and 4 remain, still in order
+        List<Boolean> portrait = portraitPages(pdf);
+        assertEquals(3, portrait.size());
+        assertTrue(portrait.get(0));
+        assertTrue(portrait.get(1));
+        assertFalse(portrait.get(2));
+    }
+
+    @Test
+    void noConvertibleImageIsAnError() throws Exception {
+        File broken = new File(dir, "broken.jpg");
+        Files.write(broken.toPath(), "not an image".getBytes("US-ASCII"));
+        File pdf = new File(dir, "out.pdf");
+
+        Exception e = assertThrows(Exception.class, () -> ImageUtils.imagesToPdf(
+                new String[] { broken.getPath(), broken.getPath() }, pdf.getPath(), reencoding(2)));
+        assertEquals("No valid images could be processed", e.getMessage());
+        assertThrows(IllegalArgumentException.class,
+                () -> ImageUtils.imagesToPdf(new String[0], pdf.getPath(), reencoding(2)));
+    }
+
+    @Test
+    void aPlainJpegIsEmbeddedByteForByte() throws Exception {
+        File jpeg = TestImages.jpeg(dir, "plain.jpg", 500, 300);
+        File pdf = new File(dir, "out.pdf");
+        ImageUtils.imagesToPdf(new String[] { jpeg.getPath() }, pdf.getPath(), passthrough());
+
+        List<byte[]> streams = rawImageStreams(pdf);
+        assertEquals(1, streams.size());
+        assertArrayEquals(Files.readAllBytes(jpeg.toPath()), streams.get(0));
+    }
+
+    @Test
+    void aProgressiveJpegIsReencoded() throws Exception {
+        File jpeg = TestImages.write(new File(dir, "progressive.jpg"),
+                TestImages.progressiveJpeg(TestImages.image(500, 300)));
+        File pdf = new File(dir, "out.pdf");
+        ImageUtils.imagesToPdf(new String[] { jpeg.getPath() }, pdf.getPath(), passthrough());
+
+        List<byte[]> streams = rawImageStreams(pdf);
+        assertEquals(1, streams.size());
+        assertFalse(java.util.Arrays.equals(Files.readAllBytes(jpeg.toPath()), streams.get(0)));
+        ImageHeader embedded = ImageHeader.probe(streams.get(0), streams.get(0).length);
+        assertTrue(embedded.isSequentialJpeg());
+    }
+
+    @Test
+    void passthroughCanBeSwitchedOff() throws Exception {
+        File jpeg = TestImages.jpeg(dir, "plain.jpg", 500, 300);
+        File pdf = new File(dir, "out.pdf");
+        ImageUtils.imagesToPdf(new String[] { jpeg.getPath() }, pdf.getPath(), reencoding(1));
+
+        assertFalse(java.util.Arrays.equals(Files.readAllBytes(jpeg.toPath()), rawImageStreams(pdf).get(0)));
+    }
+
+    /** Remembers whether it was closed. */
+    private static final class ClosingStream extends ByteArrayOutputStream {
+        boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    void streamingWritesTheWholePdfAndClosesTheStream() throws Exception {
+        String[] images = alternatingImages(3);
+        ClosingStream out = new ClosingStream();
+        int pages = ImageUtils.imagesToPdf(images, out, reencoding(2));
+
+        assertEquals(3, pages);
+        assertTrue(out.closed);
+        try (PDDocument doc = PDDocument.load(out.toByteArray())) {
+            assertEquals(3, doc.getNumberOfPages());
+        }
+    }
+
+    @Test
+    void streamingWritesNothingWhenNoPageCanBeBuilt() throws Exception {
+        File broken = new File(dir, "broken.jpg");
+        Files.write(broken.toPath(), "not an image".getBytes("US-ASCII"));
+        ClosingStream out = new ClosingStream();
+
+        assertThrows(Exception.class,
+                () -> ImageUtils.imagesToPdf(new String[] { broken.getPath() }, out, reencoding(1)));
+        assertEquals(0, out.size());
+        assertFalse(out.closed);
+    }
+
+    @Test
+    void aDocumentWithoutHeapBufferSpillsToTheScratchDirAndCleansUp() throws Exception {
+        File scratch = new File(dir, "scratch");
+        assertTrue(scratch.mkdir());
+        ConversionOptions options = reencoding(2);
+        options.setDocumentHeapBytes(0);
+        options.setScratchDir(scratch);
+        long heapInUse = MemoryBudget.DOCUMENT_HEAP.getUsed();
+
+        File pdf = new File(dir, "out.pdf");
+        ImageUtils.imagesToPdf(alternatingImages(3), pdf.getPath(), options);
+
+        assertEquals(3, portraitPages(pdf).size());
+        assertEquals(0, scratch.list().length);
+        assertEquals(heapInUse, MemoryBudget.DOCUMENT_HEAP.getUsed());
+    }
+
+    @Test
+    void theDocumentHeapReservationIsReturned() throws Exception {
+        long heapInUse = MemoryBudget.DOCUMENT_HEAP.getUsed();
+        ConversionOptions options = reencoding(1);
+        options.setDocumentHeapBytes(1024 * 1024);
+        try (ImageUtils.Conversion conversion = ImageUtils.startConversion(options, 1)) {
+            assertEquals(heapInUse + 1024 * 1024, MemoryBudget.DOCUMENT_HEAP.getUsed());
+            conversion.add(TestImages.jpeg(dir, "a.jpg", 300, 600).getPath());
+        }
+        // Closed without saving: given back all the same
+        assertEquals(heapInUse, MemoryBudget.DOCUMENT_HEAP.getUsed());
+    }
+
+    @Test
+    void aRepeatedImageComesFromThePageCache() throws Exception {
+        // Content no earlier run has cached
+        java.awt.image.BufferedImage image = TestImages.image(300, 600);
+        java.util.Random random = new java.util.Random(System.nanoTime());
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 16; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        File jpeg = TestImages.write(new File(dir, "a.jpg"), TestImages.encode(image, "jpeg"));
+        ConversionOptions options = reencoding(1);
+        options.setCacheEnabled(true);
+
+        long cached = Metrics.PAGES_CACHED.get();
+        ImageUtils.imagesToPdf(new String[] { jpeg.getPath() }, new File(dir, "first.pdf").getPath(), options);
+        assertEquals(cached, Metrics.PAGES_CACHED.get());
+        ImageUtils.imagesToPdf(new String[] { jpeg.getPath() }, new File(dir, "second.pdf").getPath(), options);
+        assertEquals(cached + 1, Metrics.PAGES_CACHED.get());
+
+        assertArrayEquals(rawImageStreams(new File(dir, "first.pdf")).get(0),
+                rawImageStreams(new File(dir, "second.pdf")).get(0));
+    }
+}
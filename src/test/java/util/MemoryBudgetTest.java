@@ -0,0 +1,65 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MemoryBudgetTest {
+
+    @Test
+    void tryReserveTakesOnlyWhatIsLeft() {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryReserve(60));
+        assertFalse(budget.tryReserve(41));
+        assertTrue(budget.tryReserve(40));
+        assertEquals(100, budget.getUsed());
+
+        budget.release(60);
+        assertEquals(40, budget.getUsed());
+        assertTrue(budget.tryReserve(60));
+    }
+
+    @Test
+    void reserveWaitsForARelease() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryReserve(100));
+
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.reserve(50, 10_000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(waiting.isDone());
+        budget.release(100);
+        assertTrue(waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(50, budget.getUsed());
+    }
+
+    @Test
+    void reserveGivesUpAfterTheTimeout() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryReserve(80));
+        long start = System.nanoTime();
+        assertFalse(budget.reserve(30, 50));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(80, budget.getUsed());
+    }
+
+    @Test
+    void overReleaseAndNegativeAmounts() {
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.release(10);
+        assertEquals(0, budget.getUsed());
+        assertThrows(IllegalArgumentException.class, () -> budget.tryReserve(-1));
+        assertThrows(IllegalArgumentException.class, () -> new MemoryBudget(-1));
+    }
+}
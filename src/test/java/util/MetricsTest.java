@@ -0,0 +1,107 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MetricsTest {
+
+    @TempDir
+    File dir;
+
+    private static String scrape() throws Exception {
+        StringWriter out = new StringWriter();
+        Metrics.writePrometheus(out);
+        return out.toString();
+    }
+
+    /** The value of the one sample line starting with the given series. */
+    private static double sample(String text, String series) {
+        for (String line : text.split("\n")) {
+            if (line.startsWith(series + " ")) {
+                return Double.parseDouble(line.substring(series.length() + 1));
+            }
+        }
+        throw new AssertionError("No sample " + series);
+    }
+
+    @Test
+    void familiesAreDeclaredOnce() throws Exception {
+        String text = scrape();
+        assertTrue(text.contains("# TYPE imageutil_stage_duration_seconds histogram\n"));
+        assertTrue(text.contains("# TYPE imageutil_pages_total counter\n"));
+        assertTrue(text.contains("# TYPE imageutil_conversions_in_flight gauge\n"));
+        assertEquals(text.indexOf("# TYPE imageutil_pages_total "), text.lastIndexOf("# TYPE imageutil_pages_total "));
+    }
+
+    @Test
+    void countersAreWrittenWithTheirLabels() throws Exception {
+        double before = sample(scrape(), "imageutil_pages_total{path=\"lossless\"}");
+        Metrics.PAGES_LOSSLESS.add(3);
+        assertEquals(before + 3, sample(scrape(), "imageutil_pages_total{path=\"lossless\"}"));
+    }
+
+    @Test
+    void histogramBucketsAreCumulative() throws Exception {
+        String stage = "imageutil_stage_duration_seconds";
+        String text = scrape();
+        double count = sample(text, stage + "_count{stage=\"render\"}");
+        double small = sample(text, stage + "_bucket{stage=\"render\",le=\"0.001\"}");
+        double ten = sample(text, stage + "_bucket{stage=\"render\",le=\"10\"}");
+
+        Metrics.RENDER.observe(0.0005);
+        Metrics.RENDER.observe(0.3);
+        Metrics.RENDER.observe(60);
+
+        text = scrape();
+        assertEquals(small + 1, sample(text, stage + "_bucket{stage=\"render\",le=\"0.001\"}"));
+        assertEquals(ten + 2, sample(text, stage + "_bucket{stage=\"render\",le=\"10\"}"));
+        assertEquals(count + 3, sample(text, stage + "_bucket{stage=\"render\",le=\"+Inf\"}"));
+        assertEquals(count + 3, sample(text, stage + "_count{stage=\"render\"}"));
+
+        List<Double> buckets = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (line.startsWith(stage + "_bucket{stage=\"render\"")) {
+                buckets.add(Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1)));
+            }
+        }
+        for (int i = 1; i < buckets.size(); i++) {
+            assertTrue(buckets.get(i) >= buckets.get(i - 1), "bucket " + i);
+        }
+    }
+
+    @Test
+    void registeredGaugesAreReadAtScrapeTime() throws Exception {
+        long[] value = { 7 };
+        Metrics.gauge("imageutil_test_gauge", "Gauge registered by MetricsTest", () -> value[0]);
+        assertEquals(7, sample(scrape(), "imageutil_test_gauge"));
+        value[0] = 9;
+        assertEquals(9, sample(scrape(), "imageutil_test_gauge"));
+    }
+
+    @Test
+    void aConversionRecordsEveryStage() throws Exception {
+        long decode = Metrics.DECODE.getCount();
+        long encode = Metrics.ENCODE.getCount();
+        long embed = Metrics.EMBED.getCount();
+        long save = Metrics.SAVE.getCount();
+
+        ConversionOptions options = ConversionOptions.defaults();
+        options.setJpegPassthrough(false);
+        options.setCacheEnabled(false);
+        String image = TestImages.jpeg(dir, "a.jpg", 300, 500).getPath();
+        ImageUtils.imagesToPdf(new String[] { image, image }, new File(dir, "out.pdf").getPath(), options);
+
+        assertEquals(decode + 2, Metrics.DECODE.getCount());
+        assertEquals(encode + 2, Metrics.ENCODE.getCount());
+        assertEquals(embed + 2, Metrics.EMBED.getCount());
+        assertEquals(save + 1, Metrics.SAVE.getCount());
+    }
+}
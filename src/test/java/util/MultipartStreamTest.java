@@ -0,0 +1,169 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class MultipartStreamTest {
+
+    private static final String BOUNDARY = "----formboundary7MA4YWxk";
+
+    /** Content that keeps almost matching the delimiter, across any read split. */
+    private static final byte[] TRICKY = ("a\r\nb\r\n-c\r\n--d\r\n--" + BOUNDARY.substring(0, 10) + "e\r\n--"
+            + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "\r").getBytes(StandardCharsets.ISO_8859_1);
+
+    /** Hands out at most chunk bytes per read, like a slow connection. */
+    private static InputStream chunked(byte[] body, int chunk) {
+        return new ByteArrayInputStream(body) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static final class Body {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Body raw(String text) {
+            out.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        Body field(String name, String value) {
+            return raw("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n"
+                    + value + "\r\n");
+        }
+
+        Body file(String name, String fileName, String type, byte[] content) {
+            raw("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"; filename=\""
+                    + fileName + "\"\r\nContent-Type: " + type + "\r\n\r\n");
+            out.writeBytes(content);
+            return raw("\r\n");
+        }
+
+        byte[] end() {
+            raw("--" + BOUNDARY + "--\r\n");
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] large(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + (i >> 8));
+        }
+        // Delimiter look-alikes at the edges of the 64 KB buffer
+        System.arraycopy(TRICKY, 0, bytes, 64 * 1024 - 5, TRICKY.length);
+        System.arraycopy(TRICKY, 0, bytes, length - TRICKY.length, TRICKY.length);
+        return bytes;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 2, 3, 7, 41, 4096, 1 << 20 })
+    void partsSurviveAnySplitOfTheBody(int chunk) throws Exception {
+        byte[] file = large(150_000);
+        byte[] body = new Body().field("profile", "print").file("image", "a.jpg", "image/jpeg", file)
+                .file("image", "tricky.bin", "application/octet-stream", TRICKY).field("empty", "").end();
+        MultipartStream stream = new MultipartStream(chunked(body, chunk), BOUNDARY, -1);
+
+        MultipartStream.Part profile = stream.next();
+        assertEquals("profile", profile.getName());
+        assertFalse(profile.isFile());
+        assertEquals("print", profile.getString(100));
+
+        MultipartStream.Part image = stream.next();
+        assertTrue(image.isFile());
+        assertEquals("a.jpg", image.getSubmittedFileName());
+        assertEquals("image/jpeg", image.getContentType());
+        assertArrayEquals(file, image.getInputStream().readAllBytes());
+
+        assertArrayEquals(TRICKY, stream.next().getInputStream().readAllBytes());
+        assertEquals("", stream.next().getString(100));
+        assertNull(stream.next());
+        assertNull(stream.next());
+    }
+
+    @Test
+    void preambleEpilogueAndUnreadPartsAreSkipped() throws Exception {
+        byte[] body = new Body().raw("This is the preamble.\r\n").file("image", "a.jpg", "image/jpeg", large(100_000))
+                .field("last", "value").raw("--" + BOUNDARY + "--\r\nepilogue").out.toByteArray();
+        MultipartStream stream = new MultipartStream(chunked(body, 1000), BOUNDARY, -1);
+
+        MultipartStream.Part image = stream.next();
+        InputStream content = image.getInputStream();
+        assertEquals(100, content.readNBytes(100).length);
+
+        MultipartStream.Part last = stream.next();
+        assertEquals("last", last.getName());
+        assertEquals(-1, content.read(), "a skipped part reads as ended");
+        assertEquals("value", last.getString(100));
+        assertNull(stream.next());
+    }
+
+    @Test
+    void headersAreParsedLeniently() throws Exception {
+        byte[] body = new Body().raw("--" + BOUNDARY + "\r\ncontent-disposition: form-data;name=plain;"
+                + " filename=\"C:\\Users\\me\\photo 1.jpg\"\r\nX-Other: ignored\r\nno colon here\r\n\r\nx\r\n").end();
+        MultipartStream.Part part = new MultipartStream(chunked(body, 5), BOUNDARY, -1).next();
+        assertEquals("plain", part.getName());
+        assertEquals("C:\\Users\\me\\photo 1.jpg", part.getSubmittedFileName());
+        assertNull(part.getContentType());
+        assertEquals("x", part.getString(10));
+    }
+
+    @Test
+    void boundariesComeFromTheContentType() {
+        assertEquals("abc", MultipartStream.boundary("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartStream.boundary("Multipart/Form-Data; charset=utf-8; boundary=\"a b\""));
+        assertNull(MultipartStream.boundary("multipart/form-data"));
+        assertNull(MultipartStream.boundary("multipart/form-data; boundary="));
+        assertNull(MultipartStream.boundary("multipart/mixed; boundary=abc"));
+        assertNull(MultipartStream.boundary("application/json"));
+        assertNull(MultipartStream.boundary(null));
+        assertNull(MultipartStream.boundary("multipart/form-data; boundary=" + "x".repeat(71)));
+    }
+
+    @Test
+    void limitsAreEnforced() throws Exception {
+        byte[] body = new Body().file("image", "a.jpg", "image/jpeg", large(200_000)).end();
+        MultipartStream limited = new MultipartStream(chunked(body, 8192), BOUNDARY, 100_000);
+        InputStream content = limited.next().getInputStream();
+        assertThrows(MultipartStream.SizeLimitExceededException.class, content::readAllBytes);
+
+        byte[] field = new Body().field("title", "x".repeat(500)).end();
+        MultipartStream.Part title = new MultipartStream(chunked(field, 64), BOUNDARY, -1).next();
+        assertThrows(MultipartStream.SizeLimitExceededException.class, () -> title.getString(100));
+
+        byte[] headers = new Body().raw("--" + BOUNDARY + "\r\nX-Long: " + "h".repeat(20_000) + "\r\n\r\n").end();
+        assertThrows(MultipartStream.SizeLimitExceededException.class,
+                () -> new MultipartStream(chunked(headers, 4096), BOUNDARY, -1).next());
+    }
+
+    @Test
+    void truncatedAndMalformedBodiesFail() throws Exception {
+        byte[] body = new Body().file("image", "a.jpg", "image/jpeg", large(70_000)).out.toByteArray();
+        MultipartStream truncated = new MultipartStream(chunked(body, 100), BOUNDARY, -1);
+        InputStream content = truncated.next().getInputStream();
+        assertThrows(EOFException.class, content::readAllBytes);
+
+        byte[] bad = ("--" + BOUNDARY + "XX\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        IOException e = assertThrows(IOException.class,
+                () -> new MultipartStream(new ByteArrayInputStream(bad), BOUNDARY, -1).next());
+        assertTrue(e.getMessage().contains("bad boundary line"), e.getMessage());
+    }
+}
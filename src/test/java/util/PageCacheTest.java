@@ -0,0 +1,140 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PageCacheTest {
+
+    @TempDir
+    File dir;
+
+    private static byte[] bytes(int length, int value) {
+        byte[] bytes = new byte[length];
+        java.util.Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private File fileFor(String key) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(key + "_"));
+        return files.length == 0 ? null : files[0];
+    }
+
+    @Test
+    void memoryTierEvictsTheLeastRecentlyUsed() {
+        PageCache cache = new PageCache(300, 0, null);
+        cache.put("a", bytes(100, 1), 10, 20);
+        cache.put("b", bytes(100, 2), 10, 20);
+        cache.put("c", bytes(100, 3), 10, 20);
+        assertNotNull(cache.get("a")); // a is now the most recent
+        cache.put("d", bytes(100, 4), 10, 20);
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        PageCache.Entry d = cache.get("d");
+        assertArrayEquals(bytes(100, 4), d.jpeg);
+        assertEquals(10, d.width);
+        assertEquals(20, d.height);
+    }
+
+    @Test
+    void diskTierServesWhatMemoryDropped() {
+        PageCache cache = new PageCache(150, 1000, dir);
+        cache.put("a", bytes(100, 1), 30, 40);
+        cache.put("b", bytes(100, 2), 50, 60); // pushes a out of memory
+
+        PageCache.Entry a = cache.get("a");
+        assertNotNull(a);
+        assertArrayEquals(bytes(100, 1), a.jpeg);
+        assertEquals(30, a.width);
+        assertEquals(40, a.height);
+    }
+
+    @Test
+    void diskTierEvictsTheOldestFiles() {
+        PageCache cache = new PageCache(0, 250, dir);
+        cache.put("a", bytes(100, 1), 1, 1);
+        cache.put("b", bytes(100, 2), 1, 1);
+        cache.put("c", bytes(100, 3), 1, 1);
+
+        assertNull(fileFor("a"));
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    void pagesOnDiskSurviveARestart() {
+        new PageCache(0, 1000, dir).put("a", bytes(100, 1), 7, 9);
+
+        PageCache.Entry a = new PageCache(0, 1000, dir).get("a");
+        assertNotNull(a);
+        assertEquals(7, a.width);
+        assertEquals(9, a.height);
+    }
+
+    @Test
+    void aVanishedFileIsAMissAndFreesItsRecordedSize() throws Exception {
+        PageCache cache = new PageCache(0, 300, dir);
+        cache.put("a", bytes(100, 1), 1, 1);
+        cache.put("b", bytes(100, 2), 1, 1);
+        Files.delete(fileFor("a").toPath());
+        assertNull(cache.get("a"));
+
+        // b, c and d fill the cache exactly; nothing is left of a to push b out
+        cache.put("c", bytes(100, 3), 1, 1);
+        cache.put("d", bytes(100, 4), 1, 1);
+        assertNotNull(fileFor("b"));
+        assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    void withoutADirectoryPagesStayInMemory() {
+        PageCache cache = new PageCache(150, 1000, null);
+        cache.put("a", bytes(100, 1), 1, 1);
+        cache.put("b", bytes(100, 2), 1, 1); // pushes a out of memory, with nowhere to go
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    void oversizedPagesAreNotCached() {
+        PageCache cache = new PageCache(50, 50, dir);
+        cache.put("a", bytes(100, 1), 1, 1);
+        assertNull(cache.get("a"));
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    void keysFollowTheContentAndTheParameters() throws Exception {
+        File one = new File(dir, "one.bin");
+        File same = new File(dir, "same.bin");
+        File other = new File(dir, "other.bin");
+        Files.write(one.toPath(), bytes(10, 1));
+        Files.write(same.toPath(), bytes(10, 1));
+        Files.write(other.toPath(), bytes(10, 2));
+
+        assertEquals(PageCache.key(one, "q80"), PageCache.key(same, "q80"));
+        assertNotEquals(PageCache.key(one, "q80"), PageCache.key(other, "q80"));
+        assertNotEquals(PageCache.key(one, "q80"), PageCache.key(one, "q90"));
+        assertTrue(PageCache.key(one, "q80").endsWith("-q80"));
+    }
+
+    @Test
+    void sha256MatchesTheStandardVector() throws Exception {
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                PageCache.sha256(new ByteArrayInputStream("abc".getBytes(StandardCharsets.US_ASCII))));
+    }
+}
@@ -0,0 +1,215 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
+import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PdfEditTest {
+
+    @TempDir
+    File dir;
+
+    private File pdf;
+    private byte[] original;
+
+    private static ConversionOptions options() {
+        ConversionOptions options = ConversionOptions.defaults();
+        options.setJpegPassthrough(false);
+        options.setCacheEnabled(false);
+        options.setDeduplicateImages(false);
+        return options;
+    }
+
+    /** An image whose width tells the pages apart: 300 + 10 * index pixels. */
+    private String image(int index) throws Exception {
+        return TestImages.jpeg(dir, "img" + index + ".jpg", 300 + 10 * index, 500).getPath();
+    }
+
+    @BeforeEach
+    void threePages() throws Exception {
+        pdf = new File(dir, "doc.pdf");
+        ImageUtils.imagesToPdf(new String[] { image(0), image(1), image(2) }, pdf.getPath(), options());
+        original = Files.readAllBytes(pdf.toPath());
+    }
+
+    /** The width of the image on each page, in page order. */
+    private List<Integer> pageImages() throws Exception {
+        List<Integer> widths = new ArrayList<>();
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            for (PDPage page : doc.getPages()) {
+                for (COSName name : page.getResources().getXObjectNames()) {
+                    widths.add(((PDImageXObject) page.getResources().getXObject(name)).getWidth());
+                }
+            }
+        }
+        return widths;
+    }
+
+    private List<byte[]> rawImageStreams(File file) throws Exception {
+        List<byte[]> streams = new ArrayList<>();
+        try (PDDocument doc = PDDocument.load(file)) {
+            for (PDPage page : doc.getPages()) {
+                for (COSName name : page.getResources().getXObjectNames()) {
+                    try (InputStream in = page.getResources().getXObject(name).getCOSObject().createRawInputStream()) {
+                        streams.add(in.readAllBytes());
+                    }
+                }
+            }
+        }
+        return streams;
+    }
+
+    private void assertOriginalIsAPrefix() throws IOException {
+        byte[] saved = Files.readAllBytes(pdf.toPath());
+        assertTrue(saved.length > original.length);
+        assertArrayEquals(original, Arrays.copyOf(saved, original.length));
+    }
+
+    @Test
+    void appendedImagesAreAddedAsAnIncrementalUpdate() throws Exception {
+        List<byte[]> before = rawImageStreams(pdf);
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            assertEquals(3, edit.getPageCount());
+            edit.append(image(3));
+            edit.append(image(4));
+            assertEquals(2, edit.getAppendedCount());
+            assertEquals(5, edit.save());
+        }
+
+        assertOriginalIsAPrefix();
+        assertEquals(Arrays.asList(300, 310, 320, 330, 340), pageImages());
+        List<byte[]> after = rawImageStreams(pdf);
+        for (int i = 0; i < before.size(); i++) {
+            assertArrayEquals(before.get(i), after.get(i), "page " + (i + 1) + " was re-encoded");
+        }
+        assertEquals(1, dir.list((d, name) -> name.endsWith(".pdf") || name.endsWith(".part")).length);
+    }
+
+    @Test
+    void pagesAreReorderedAndRemovedWithoutReencoding() throws Exception {
+        List<byte[]> before = rawImageStreams(pdf);
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.setPageOrder("3,1");
+            assertEquals(2, edit.save());
+        }
+        assertOriginalIsAPrefix();
+        assertEquals(Arrays.asList(320, 300), pageImages());
+        List<byte[]> after = rawImageStreams(pdf);
+        assertArrayEquals(before.get(2), after.get(0));
+        assertArrayEquals(before.get(0), after.get(1));
+    }
+
+    @Test
+    void appendedPagesCanBeMovedToo() throws Exception {
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.append(image(3));
+            edit.setPageOrder("4,1-3");
+            assertEquals(4, edit.save());
+        }
+        assertEquals(Arrays.asList(330, 300, 310, 320), pageImages());
+
+        // A second edit stacks another update on the first
+        byte[] once = Files.readAllBytes(pdf.toPath());
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.setPageOrder("2-4");
+            assertEquals(3, edit.save());
+        }
+        byte[] twice = Files.readAllBytes(pdf.toPath());
+        assertArrayEquals(once, Arrays.copyOf(twice, once.length));
+        assertEquals(Arrays.asList(300, 310, 320), pageImages());
+    }
+
+    @Test
+    void nothingToChangeLeavesTheFileAlone() throws Exception {
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.setPageOrder("1-3");
+            assertEquals(3, edit.save());
+        }
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.append(image(3));
+            // Closed without saving: discarded
+        }
+        assertArrayEquals(original, Files.readAllBytes(pdf.toPath()));
+    }
+
+    @Test
+    void badImagesAreSkippedUnlessNothingIsLeft() throws Exception {
+        File broken = new File(dir, "broken.jpg");
+        Files.write(broken.toPath(), "not an image".getBytes(StandardCharsets.US_ASCII));
+
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.append(broken.getPath());
+            Exception e = assertThrows(Exception.class, edit::save);
+            assertEquals("No valid images could be processed", e.getMessage());
+        }
+        assertArrayEquals(original, Files.readAllBytes(pdf.toPath()));
+
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.append(broken.getPath());
+            edit.append(image(3));
+            assertEquals(4, edit.save());
+        }
+        assertEquals(Arrays.asList(300, 310, 320, 330), pageImages());
+    }
+
+    @Test
+    void badOrdersAndFinishedEditsAreRefused() throws Exception {
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.setPageOrder("1,2,1");
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, edit::save);
+            assertEquals("Page order '1,2,1' lists a page more than once", e.getMessage());
+        }
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.setPageOrder("4");
+            assertThrows(IllegalArgumentException.class, edit::save);
+        }
+        assertArrayEquals(original, Files.readAllBytes(pdf.toPath()));
+
+        try (ImageUtils.PdfEdit edit = ImageUtils.editPdf(pdf, options())) {
+            edit.setPageOrder("2");
+            edit.save();
+            assertThrows(IllegalStateException.class, edit::save);
+            assertThrows(IllegalStateException.class, () -> edit.append(image(3)));
+        }
+    }
+
+    @Test
+    void pageOrdersKeepTheirSequence() {
+        assertArrayEquals(new int[] { 3, 1, 2, 5 }, ImageUtils.parsePageOrder("3,1-2,5-", 5));
+        assertArrayEquals(new int[] { 2 }, ImageUtils.parsePageOrder(" 2 ", 5));
+        assertThrows(IllegalArgumentException.class, () -> ImageUtils.parsePageOrder("1-3,2", 5));
+        assertThrows(IllegalArgumentException.class, () -> ImageUtils.parsePageOrder("0", 5));
+        assertThrows(IllegalArgumentException.class, () -> ImageUtils.parsePageOrder("x", 5));
+    }
+
+    @Test
+    void encryptedPdfsCannotBeEdited() throws Exception {
+        File encrypted = new File(dir, "encrypted.pdf");
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            doc.protect(new StandardProtectionPolicy("owner", "", new AccessPermission()));
+            doc.save(encrypted);
+        }
+        IOException e = assertThrows(IOException.class, () -> ImageUtils.editPdf(encrypted, options()));
+        assertEquals("Encrypted PDFs cannot be edited", e.getMessage());
+    }
+}
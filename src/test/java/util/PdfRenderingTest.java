@@ -0,0 +1,149 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PdfRenderingTest {
+
+    @TempDir
+    File dir;
+
+    /** Page n is 144 x (72 + 36n) points, filled with grey level 20n. */
+    private File pdf(int pageCount) throws IOException {
+        File pdf = new File(dir, "pages.pdf");
+        try (PDDocument doc = new PDDocument()) {
+            for (int n = 1; n <= pageCount; n++) {
+                PDPage page = new PDPage(new PDRectangle(144, 72 + 36 * n));
+                doc.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(doc, page)) {
+                    content.setNonStrokingColor(new Color(20 * n, 20 * n, 20 * n));
+                    content.addRect(0, 0, 144, 72 + 36 * n);
+                    content.fill();
+                }
+            }
+            doc.save(pdf);
+        }
+        return pdf;
+    }
+
+    private static RenderOptions options(String pages, int concurrency) {
+        RenderOptions options = RenderOptions.defaults();
+        options.setDpi(36);
+        options.setPages(pages);
+        options.setMaxConcurrency(concurrency);
+        return options;
+    }
+
+    /** Page numbers as delivered, checking each image is the page it claims to be. */
+    private static List<Integer> render(ImageUtils.PdfRendering rendering) throws Exception {
+        List<Integer> delivered = new ArrayList<>();
+        rendering.renderTo((pageNumber, image) -> {
+            BufferedImage decoded = ImageIO.read(image.toInputStream());
+            assertEquals(72, decoded.getWidth());
+            assertEquals((72 + 36 * pageNumber) / 2, decoded.getHeight());
+            int grey = new Color(decoded.getRGB(36, decoded.getHeight() / 2)).getRed();
+            assertEquals(20 * pageNumber, grey, 4, "page " + pageNumber);
+            delivered.add(pageNumber);
+        });
+        return delivered;
+    }
+
+    @Test
+    void pageRangesAreSortedAndDeduplicated() {
+        assertArrayEquals(new int[] { 1, 2, 3 }, ImageUtils.parsePageRange(null, 3));
+        assertArrayEquals(new int[] { 1, 2, 3, 8, 10, 11, 12 }, ImageUtils.parsePageRange("1-3,8,10-", 12));
+        assertArrayEquals(new int[] { 1, 2, 5 }, ImageUtils.parsePageRange("5, 1 - 2 ,2", 12));
+        assertArrayEquals(new int[] { 4 }, ImageUtils.parsePageRange("4-4", 4));
+    }
+
+    @Test
+    void badPageRangesAreRefused() {
+        for (String spec : new String[] { "0", "3-2", "13", "10-13", "a", "1,,2", "-3", "1-x" }) {
+            assertThrows(IllegalArgumentException.class, () -> ImageUtils.parsePageRange(spec, 12), spec);
+        }
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> ImageUtils.parsePageRange("5", 4));
+        assertEquals("Page range '5' is outside pages 1-4", e.getMessage());
+    }
+
+    @Test
+    void theSelectedPagesAreRenderedInOrder() throws Exception {
+        try (ImageUtils.PdfRendering rendering = ImageUtils.startRendering(pdf(6), options("5-,2", 1))) {
+            assertEquals(6, rendering.getPageCount());
+            assertArrayEquals(new int[] { 2, 5, 6 }, rendering.getPages());
+            assertEquals(List.of(2, 5, 6), render(rendering));
+            assertEquals(1, rendering.loadedDocuments());
+        }
+    }
+
+    @Test
+    void parallelRenderingKeepsTheOrderAndBoundsTheCopies() throws Exception {
+        try (ImageUtils.PdfRendering rendering = ImageUtils.startRendering(pdf(10), options(null, 3))) {
+            assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), render(rendering));
+            assertTrue(rendering.loadedDocuments() <= 3, rendering.loadedDocuments() + " copies");
+            // A second pass reuses the copies already loaded
+            assertEquals(10, render(rendering).size());
+            assertTrue(rendering.loadedDocuments() <= 3, rendering.loadedDocuments() + " copies");
+        }
+    }
+
+    @Test
+    void aFailingSinkStopsTheRendering() throws Exception {
+        try (ImageUtils.PdfRendering rendering = ImageUtils.startRendering(pdf(8), options(null, 4))) {
+            List<Integer> delivered = new ArrayList<>();
+            IOException e = assertThrows(IOException.class, () -> rendering.renderTo((pageNumber, image) -> {
+                delivered.add(pageNumber);
+                if (pageNumber == 2) {
+                    throw new IOException("client went away");
+                }
+            }));
+            assertEquals("client went away", e.getMessage());
+            assertEquals(List.of(1, 2), delivered);
+        }
+    }
+
+    @Test
+    void closedOrOutOfRangeRenderingsFail() throws Exception {
+        File pdf = pdf(3);
+        assertThrows(IllegalArgumentException.class, () -> ImageUtils.startRendering(pdf, options("4", 1)));
+
+        ImageUtils.PdfRendering rendering = ImageUtils.startRendering(pdf, options(null, 1));
+        rendering.close();
+        assertThrows(IllegalStateException.class, () -> rendering.renderTo((pageNumber, image) -> { }));
+    }
+
+    @Test
+    void theEstimateCoversThePagesRenderedAtOnce() throws Exception {
+        File pdf = pdf(4);
+        long one;
+        long two;
+        try (ImageUtils.PdfRendering rendering = ImageUtils.startRendering(pdf, options(null, 1))) {
+            one = rendering.estimateProcessingBytes();
+        }
+        try (ImageUtils.PdfRendering rendering = ImageUtils.startRendering(pdf, options(null, 2))) {
+            two = rendering.estimateProcessingBytes();
+        }
+        // The largest page, page 4: 72 x 108 pixels at 36 dpi, 4 bytes each, twice
+        assertEquals(72 * 108 * 4 * 2, one);
+        // Plus page 3: 72 x 90
+        assertEquals(one + 72 * 90 * 4 * 2, two);
+    }
+}
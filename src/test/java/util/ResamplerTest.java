@@ -0,0 +1,193 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class ResamplerTest {
+
+    /** Buffer types read from their rasters, and one that takes the Java2D fallback. */
+    private static final int[] TYPES = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_BGR };
+
+    /** Every pixel a different colour, in any of TYPES. */
+    private static int colour(int x, int y) {
+        return (x * 16) << 16 | (y * 16) << 8 | 0x80;
+    }
+
+    private static BufferedImage numbered(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, 0xFF000000 | colour(x, y));
+            }
+        }
+        return image;
+    }
+
+    /** Where source pixel (x, y) of a width x height image lands, per the EXIF definitions. */
+    private static int[] oriented(int orientation, int x, int y, int width, int height) {
+        switch (orientation) {
+            case 2: return new int[] { width - 1 - x, y };
+            case 3: return new int[] { width - 1 - x, height - 1 - y };
+            case 4: return new int[] { x, height - 1 - y };
+            case 5: return new int[] { y, x };
+            case 6: return new int[] { height - 1 - y, x };
+            case 7: return new int[] { height - 1 - y, width - 1 - x };
+            case 8: return new int[] { y, width - 1 - x };
+            default: return new int[] { x, y };
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 })
+    void everyOrientationMovesEveryPixelExactly(int orientation) {
+        int width = 7;
+        int height = 4;
+        for (int type : TYPES) {
+            BufferedImage source = numbered(width, height, type);
+            BufferedImage out = Resampler.resample(source, orientation, width, height, Resampler.Filter.LANCZOS3);
+            boolean swapped = orientation >= 5 && orientation <= 8;
+            assertEquals(BufferedImage.TYPE_INT_RGB, out.getType());
+            assertEquals(swapped ? height : width, out.getWidth());
+            assertEquals(swapped ? width : height, out.getHeight());
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int[] at = oriented(orientation, x, y, width, height);
+                    assertEquals(source.getRGB(x, y) & 0xFFFFFF, out.getRGB(at[0], at[1]) & 0xFFFFFF,
+                            "type " + type + ", orientation " + orientation + ", pixel " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    void subimagesAreReadFromTheirOwnOrigin() {
+        BufferedImage whole = numbered(9, 6, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage part = whole.getSubimage(2, 1, 5, 4);
+        BufferedImage out = Resampler.resample(part, 1, 5, 4, Resampler.Filter.BOX);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 5; x++) {
+                assertEquals(colour(x + 2, y + 1), out.getRGB(x, y) & 0xFFFFFF, "pixel " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    void boxDownscalingAveragesWholeBlocks() {
+        // 2x2 blocks of one colour each, halved: every output pixel is its block
+        int width = 12;
+        int height = 8;
+        BufferedImage source = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                source.setRGB(x, y, colour(x / 2, y / 2));
+            }
+        }
+        BufferedImage out = Resampler.resample(source, 1, width / 2, height / 2, Resampler.Filter.BOX);
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                assertEquals(colour(x, y), out.getRGB(x, y) & 0xFFFFFF, "pixel " + x + "," + y);
+            }
+        }
+
+        // Two columns of black and white average to grey
+        BufferedImage stripes = new BufferedImage(4, 1, BufferedImage.TYPE_INT_RGB);
+        stripes.setRGB(0, 0, 0x000000);
+        stripes.setRGB(1, 0, 0xFFFFFF);
+        stripes.setRGB(2, 0, 0x000000);
+        stripes.setRGB(3, 0, 0xFFFFFF);
+        out = Resampler.resample(stripes, 1, 2, 1, Resampler.Filter.BOX);
+        assertEquals(0x808080, out.getRGB(0, 0) & 0xFFFFFF);
+        assertEquals(0x808080, out.getRGB(1, 0) & 0xFFFFFF);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Resampler.Filter.class)
+    void aFlatImageStaysFlatAtAnyRatio(Resampler.Filter filter) {
+        BufferedImage flat = new BufferedImage(97, 61, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = flat.createGraphics();
+        g.setColor(new java.awt.Color(0x3366CC));
+        g.fillRect(0, 0, 97, 61);
+        g.dispose();
+
+        BufferedImage out = Resampler.resample(flat, 6, 30, 20, filter);
+        assertEquals(20, out.getWidth());
+        assertEquals(30, out.getHeight());
+        for (int y = 0; y < out.getHeight(); y++) {
+            for (int x = 0; x < out.getWidth(); x++) {
+                assertEquals(0x3366CC, out.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+    @Test
+    void transparencyEndsUpOverBlack() {
+        for (int type : new int[] { BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR }) {
+            BufferedImage source = new BufferedImage(2, 1, type);
+            source.setRGB(0, 0, 0x00FFFFFF);
+            source.setRGB(1, 0, 0xFFFF0000);
+            BufferedImage out = Resampler.resample(source, 1, 2, 1, Resampler.Filter.BOX);
+            assertEquals(0x000000, out.getRGB(0, 0) & 0xFFFFFF);
+            assertEquals(0xFF0000, out.getRGB(1, 0) & 0xFFFFFF);
+        }
+    }
+
+    @Test
+    void largeImagesSplitAcrossThreadsMatchTheBlocks() {
+        // Over the parallel threshold, with blocks straddling the 64-row chunks
+        int width = 1200;
+        int height = 1000;
+        BufferedImage source = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((java.awt.image.DataBufferInt) source.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = block(x / 2, y / 2);
+            }
+        }
+        BufferedImage out = Resampler.resample(source, 8, width / 2, height / 2, Resampler.Filter.BOX);
+        assertEquals(height / 2, out.getWidth());
+        assertEquals(width / 2, out.getHeight());
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                int[] at = oriented(8, x, y, width / 2, height / 2);
+                assertEquals(block(x, y), out.getRGB(at[0], at[1]) & 0xFFFFFF);
+            }
+        }
+        ImagePool.release(out);
+    }
+
+    @Test
+    void largeImagesOnEveryPipelineThreadAtOnceStillFinish() throws Exception {
+        // No idle thread to borrow: each resample runs its chunks itself
+        int width = 1200;
+        int height = 1000;
+        BufferedImage source = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((java.awt.image.DataBufferInt) source.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = block(i % width / 2, i / width / 2);
+        }
+        java.util.concurrent.ThreadPoolExecutor pool = ImageUtils.pipelineExecutor();
+        java.util.List<java.util.concurrent.Future<BufferedImage>> results = new java.util.ArrayList<>();
+        for (int i = 0; i < pool.getMaximumPoolSize() * 2; i++) {
+            results.add(pool.submit(() -> Resampler.resample(source, 1, width / 2, height / 2,
+                    Resampler.Filter.BOX)));
+        }
+        for (java.util.concurrent.Future<BufferedImage> result : results) {
+            BufferedImage out = result.get(60, java.util.concurrent.TimeUnit.SECONDS);
+            assertEquals(block(321, 456), out.getRGB(321, 456) & 0xFFFFFF);
+            assertEquals(block(599, 499), out.getRGB(599, 499) & 0xFFFFFF);
+            ImagePool.release(out);
+        }
+    }
+
+    private static int block(int x, int y) {
+        return (x & 0xFF) << 16 | (y & 0xFF) << 8 | (x + y) & 0xFF;
+    }
+}
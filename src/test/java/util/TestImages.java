@@ -0,0 +1,107 @@
+package util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/** Images for the tests, drawn and encoded on the fly. */
+final class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * A blue image with a red block in its top-left quarter, so rotations
+     * and mirrors can be told apart, and the image from a white page.
+     */
+    static BufferedImage image(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.BLUE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, width / 2, height / 2);
+        g.dispose();
+        return image;
+    }
+
+    static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, out)) {
+            throw new IOException("No " + format + " writer");
+        }
+        return out.toByteArray();
+    }
+
+    /** Writes a JPEG of the given size to dir/name. */
+    static File jpeg(File dir, String name, int width, int height) throws IOException {
+        return write(new File(dir, name), encode(image(width, height), "jpeg"));
+    }
+
+    /** A progressive JPEG, which cannot be embedded as is. */
+    static byte[] progressiveJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The JPEG with an EXIF segment in front of its other segments, holding
+     * the orientation and, unless null, a JPEG thumbnail.
+     */
+    static byte[] withExif(byte[] jpeg, int orientation, byte[] thumbnail) {
+        int ifd1 = 8 + 2 + 12 + 4;
+        int thumbnailOffset = ifd1 + 2 + 2 * 12 + 4;
+        ByteBuffer tiff = ByteBuffer.allocate(thumbnail == null ? ifd1 : thumbnailOffset + thumbnail.length);
+        tiff.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+        // IFD0: orientation
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        tiff.putInt(thumbnail == null ? 0 : ifd1);
+        if (thumbnail != null) {
+            // IFD1: JPEGInterchangeFormat and its length
+            tiff.putShort((short) 2);
+            tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset);
+            tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+            tiff.putInt(0);
+            tiff.put(thumbnail);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        out.write(0xFF);
+        out.write(0xE1);
+        int length = 2 + 6 + tiff.capacity();
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write("Exif\0\0".getBytes(StandardCharsets.ISO_8859_1), 0, 6);
+        out.write(tiff.array(), 0, tiff.capacity());
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    static File write(File file, byte[] bytes) throws IOException {
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+}
@@ -0,0 +1,152 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ThumbnailsTest {
+
+    @TempDir
+    File dir;
+
+    /** A green EXIF thumbnail, so previews made from it stand out from the blue and red image. */
+    private static byte[] greenThumbnail(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.GREEN);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return TestImages.encode(image, "jpeg");
+    }
+
+    /** An image no earlier run has cached, with the given EXIF data. */
+    private File photo(int width, int height, int orientation, byte[] thumbnail) throws Exception {
+        BufferedImage image = TestImages.image(width, height);
+        Random random = new Random(System.nanoTime());
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 16; x++) {
+                image.setRGB(width - 1 - x, height - 1 - y, random.nextInt());
+            }
+        }
+        byte[] jpeg = TestImages.withExif(TestImages.encode(image, "jpeg"), orientation, thumbnail);
+        return TestImages.write(new File(dir, "photo" + System.nanoTime() + ".jpg"), jpeg);
+    }
+
+    private static BufferedImage decode(Thumbnails.Thumbnail thumbnail) throws Exception {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(thumbnail.getJpeg()));
+        assertEquals(thumbnail.getWidth(), image.getWidth());
+        assertEquals(thumbnail.getHeight(), image.getHeight());
+        return image;
+    }
+
+    private static boolean isGreen(BufferedImage image) {
+        Color centre = new Color(image.getRGB(image.getWidth() / 2, image.getHeight() / 2));
+        return centre.getGreen() > 200 && centre.getRed() < 60 && centre.getBlue() < 60;
+    }
+
+    @Test
+    void anUprightDcfThumbnailIsReturnedAsIs() throws Exception {
+        byte[] exif = greenThumbnail(160, 120);
+        Thumbnails.Thumbnail thumbnail = Thumbnails.create(photo(1600, 1200, 1, exif), Thumbnails.DEFAULT_SIZE);
+        assertArrayEquals(exif, thumbnail.getJpeg());
+        assertEquals(160, thumbnail.getWidth());
+        assertEquals(120, thumbnail.getHeight());
+    }
+
+    @Test
+    void theThumbnailIsRotatedAndScaledButNeverUpscaled() throws Exception {
+        byte[] exif = greenThumbnail(160, 120);
+        Thumbnails.Thumbnail rotated = Thumbnails.create(photo(1600, 1200, 6, exif), Thumbnails.DEFAULT_SIZE);
+        assertEquals(120, rotated.getWidth());
+        assertEquals(160, rotated.getHeight());
+        assertTrue(isGreen(decode(rotated)));
+
+        Thumbnails.Thumbnail smaller = Thumbnails.create(photo(1600, 1200, 1, exif), 100);
+        assertEquals(100, smaller.getWidth());
+        assertEquals(75, smaller.getHeight());
+        assertTrue(isGreen(decode(smaller)));
+
+        Thumbnails.Thumbnail larger = Thumbnails.create(photo(1600, 1200, 1, exif), 512);
+        assertEquals(160, larger.getWidth());
+        assertTrue(isGreen(decode(larger)));
+    }
+
+    @Test
+    void unsuitableThumbnailsFallBackToDecoding() throws Exception {
+        // Too small, and the wrong aspect ratio
+        for (byte[] exif : new byte[][] { greenThumbnail(80, 60), greenThumbnail(160, 160) }) {
+            Thumbnails.Thumbnail thumbnail = Thumbnails.create(photo(1600, 1200, 1, exif), Thumbnails.DEFAULT_SIZE);
+            assertEquals(256, thumbnail.getWidth());
+            assertEquals(192, thumbnail.getHeight());
+            BufferedImage image = decode(thumbnail);
+            assertTrue(new Color(image.getRGB(10, 10)).getRed() > 200, "red quarter at the top left");
+        }
+    }
+
+    @Test
+    void smallImagesAcceptThumbnailsTheirOwnSize() throws Exception {
+        byte[] exif = greenThumbnail(100, 75);
+        Thumbnails.Thumbnail thumbnail = Thumbnails.create(photo(100, 75, 1, exif), Thumbnails.DEFAULT_SIZE);
+        assertArrayEquals(exif, thumbnail.getJpeg());
+    }
+
+    @Test
+    void decodedPreviewsAreOrientedAndCached() throws Exception {
+        File photo = photo(900, 600, 8, null);
+        long hits = Metrics.CACHE_HITS.get();
+        Thumbnails.Thumbnail first = Thumbnails.create(photo, 300);
+        assertEquals(200, first.getWidth());
+        assertEquals(300, first.getHeight());
+        // Orientation 8 turns the top-left red quarter to the bottom left
+        BufferedImage image = decode(first);
+        assertTrue(new Color(image.getRGB(10, 290)).getRed() > 200);
+        assertTrue(new Color(image.getRGB(10, 10)).getBlue() > 200);
+
+        Thumbnails.Thumbnail second = Thumbnails.create(photo, 300);
+        assertEquals(hits + 1, Metrics.CACHE_HITS.get());
+        assertArrayEquals(first.getJpeg(), second.getJpeg());
+    }
+
+    @Test
+    void thePrefixOfAnUploadIsEnough() throws Exception {
+        byte[] exif = greenThumbnail(160, 120);
+        byte[] jpeg = Files.readAllBytes(photo(1600, 1200, 1, exif).toPath());
+        int length = Math.min(jpeg.length, ImageHeader.HEAD_BYTES);
+        ImageHeader header = ImageHeader.probe(jpeg, length);
+
+        Thumbnails.Thumbnail thumbnail = Thumbnails.fromPrefix(jpeg, length, header, Thumbnails.DEFAULT_SIZE);
+        assertArrayEquals(exif, thumbnail.getJpeg());
+
+        int cut = (int) header.getExifThumbnailOffset() + 10;
+        assertNull(Thumbnails.fromPrefix(jpeg, cut, ImageHeader.probe(jpeg, cut), Thumbnails.DEFAULT_SIZE));
+        byte[] plain = TestImages.encode(TestImages.image(64, 48), "jpeg");
+        assertNull(Thumbnails.fromPrefix(plain, plain.length, ImageHeader.probe(plain, plain.length), 64));
+    }
+
+    @Test
+    void badInputIsRefused() throws Exception {
+        File text = new File(dir, "notes.jpg");
+        Files.write(text.toPath(), "not an image".getBytes(StandardCharsets.US_ASCII));
+        assertThrows(IllegalArgumentException.class, () -> Thumbnails.create(text, 100));
+
+        File photo = photo(100, 80, 1, null);
+        assertThrows(IllegalArgumentException.class, () -> Thumbnails.create(photo, 0));
+        assertThrows(IllegalArgumentException.class, () -> Thumbnails.create(photo, Thumbnails.MAX_SIZE + 1));
+    }
+}
@@ -0,0 +1,49 @@
+package util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class VirtualThreadsTest {
+
+    @Test
+    void theBuildRecordsItsDefault() throws Exception {
+        Properties build = new Properties();
+        try (InputStream in = VirtualThreads.class.getResourceAsStream("/imageutil-build.properties")) {
+            assertNotNull(in);
+            build.load(in);
+        }
+        String value = build.getProperty("virtualThreads");
+        assertTrue("true".equals(value) || "false".equals(value), value);
+    }
+
+    @Test
+    void platformThreadsAreNeverVirtual() throws Exception {
+        assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+        Thread thread = new Thread(() -> { });
+        assertFalse(VirtualThreads.isVirtual(thread));
+        assertEquals(VirtualThreads.isEnabled(), VirtualThreads.executor() != null);
+    }
+
+    @Test
+    void olderJvmsStayOnPlatformThreads() {
+        assumeTrue(Runtime.version().feature() < 21);
+        assertFalse(VirtualThreads.isEnabled());
+    }
+
+    @Test
+    void enabledTasksRunOnNamedVirtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isEnabled());
+        Thread thread = VirtualThreads.executor().submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+        assertTrue(VirtualThreads.isVirtual(thread));
+        assertTrue(thread.getName().startsWith("imageutil-virtual-"), thread.getName());
+    }
+}